@@ -0,0 +1,139 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of reusable direct buffers for frame payloads, so a session in steady
+ * state reads and writes the socket without allocating. Buffers come in power
+ * of two size classes from MIN_CLASS_BYTES up to MAX_CLASS_BYTES; the smallest
+ * classes hold the single block payloads of 2048 and 4096 bit keys, the larger
+ * ones multi-block and Hybrid messages. Requests larger than MAX_CLASS_BYTES
+ * get a heap buffer that is never pooled, so a rare large frame does not pin
+ * direct memory. Each class keeps at most CLASS_RETAINED_BYTES of idle buffers.
+ * @author Colby Bratton
+ *
+ */
+public final class BufferPool {
+	
+	// smallest size class, holds a frame of one 2048 bit block
+	public static final int MIN_CLASS_BYTES = 512;
+	
+	// largest size class that is pooled
+	public static final int MAX_CLASS_BYTES = 1024 * 1024;
+	
+	// idle bytes kept per size class, the rest are left to the garbage collector
+	private static final int CLASS_RETAINED_BYTES = 1024 * 1024;
+	
+	// most idle buffers kept per size class
+	private static final int CLASS_RETAINED_LIMIT = 256;
+	
+	// log2 of MIN_CLASS_BYTES, index 0 of the size classes
+	private static final int MIN_CLASS_SHIFT = Integer.numberOfTrailingZeros(MIN_CLASS_BYTES);
+	
+	// pool shared by every session of the process
+	private static final BufferPool DEFAULT = new BufferPool();
+	
+	// idle buffers of each size class, each guarded by its own lock
+	private final ArrayDeque<ByteBuffer>[] idle;
+	
+	/**
+	 * Constructor to build an empty pool
+	 */
+	public BufferPool()
+	{
+		// generic arrays cannot be created, so the array itself is raw
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		ArrayDeque<ByteBuffer>[] classes = new ArrayDeque[Integer.numberOfTrailingZeros(MAX_CLASS_BYTES) - MIN_CLASS_SHIFT + 1];
+		idle = classes;
+		for (int i = 0; i < idle.length; i++)
+		{
+			idle[i] = new ArrayDeque<>(classLimit(i));
+		}
+	}
+	
+	/**
+	 * @return pool shared by every session of the process
+	 */
+	public static BufferPool getDefault()
+	{
+		return DEFAULT;
+	}
+	
+	/**
+	 * Takes a buffer with room for at least length bytes, positioned at 0 with
+	 * its limit at length
+	 * @param length number of bytes the caller needs
+	 * @return pooled direct buffer, or an unpooled heap buffer above MAX_CLASS_BYTES
+	 */
+	public ByteBuffer acquire(int length)
+	{
+		if (length > MAX_CLASS_BYTES)
+		{
+			return ByteBuffer.allocate(length);
+		}
+		
+		int index = classOf(length);
+		ByteBuffer buffer;
+		synchronized (idle[index])
+		{
+			buffer = idle[index].pollLast();
+		}
+		if (buffer == null)
+		{
+			buffer = ByteBuffer.allocateDirect(MIN_CLASS_BYTES << index);
+		}
+		
+		buffer.clear().limit(length);
+		return buffer;
+	}
+	
+	/**
+	 * Returns a buffer taken from acquire to the pool. Heap buffers and buffers
+	 * of a full size class are dropped.
+	 * @param buffer buffer no longer used by the caller
+	 */
+	public void release(ByteBuffer buffer)
+	{
+		int capacity = buffer.capacity();
+		if (!buffer.isDirect() || capacity < MIN_CLASS_BYTES || capacity > MAX_CLASS_BYTES
+				|| Integer.bitCount(capacity) != 1)
+		{
+			return;
+		}
+		
+		int index = classOf(capacity);
+		synchronized (idle[index])
+		{
+			if (idle[index].size() < classLimit(index))
+			{
+				idle[index].addLast(buffer);
+			}
+		}
+	}
+	
+	/**
+	 * @param length number of bytes needed, at most MAX_CLASS_BYTES
+	 * @return index of the smallest size class holding length bytes
+	 */
+	private static int classOf(int length)
+	{
+		if (length <= MIN_CLASS_BYTES)
+		{
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_CLASS_SHIFT;
+	}
+	
+	/**
+	 * @param index size class
+	 * @return most idle buffers kept for the class
+	 */
+	private static int classLimit(int index)
+	{
+		return Math.max(2, Math.min(CLASS_RETAINED_LIMIT, CLASS_RETAINED_BYTES / (MIN_CLASS_BYTES << index)));
+	}
+}
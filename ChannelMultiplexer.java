@@ -0,0 +1,525 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Carries many logical channels over one PKI connection. The public keys are
+ * exchanged once, with the HELLO frames on channel 0, and every channel then
+ * shares the remote user's key and the connection's Hybrid session keys, so
+ * opening a channel costs no handshake, no RSA operation, and no round trip:
+ * its OPEN frame goes out in the same write as its first message.
+ * <p>
+ * One thread reads the connection (run() or demultiplex()), checks every
+ * frame's sequence number, applies HELLO, KEY, OPEN, CLOSE, and WINDOW frames
+ * itself, and routes MODE and DATA frames to their channel, where they are
+ * decrypted by whichever thread receives on it. The side that connected opens
+ * odd numbered channels and the side that accepted even numbered ones, each
+ * counting up and never reusing a number. Channel 0 is always open and
+ * carries the conversation of a remote user that opens no channels, so a
+ * plain PKIClient session works against a multiplexing server unchanged.
+ * @author Colby Bratton
+ *
+ */
+public class ChannelMultiplexer implements Runnable {
+	
+	// most channels, besides channel 0, open at once on a connection,
+	// set with -Dpki.maxChannels=<count>; both sides should use the same limit
+	public static final int MAX_CHANNELS = Integer.getInteger("pki.maxChannels", 256);
+	
+	// frame reader from the remote user, used by a single thread
+	private final FrameReader reader;
+	
+	// frame writer to the remote user, shared by every channel's sender
+	private final FrameWriter writer;
+	
+	// RSA instance of the local user, held on the key announced in the HELLO
+	// frame even if the shared key is rotated while the connection is open
+	private final RSA rsa;
+	
+	// remote user and Hybrid session keys, shared by every channel
+	private final HybridSession hybrid;
+	
+	// applies the remote user's HELLO and KEY frames
+	private final MessageReceiver control;
+	
+	// open channels by number, channel 0 included
+	private final Map<Integer, PKIChannel> channels = new ConcurrentHashMap<>();
+	
+	// true on the side that connected, which opens odd numbered channels
+	private final boolean initiator;
+	
+	// number of the next channel opened locally, guarded by channels
+	private int nextLocalId;
+	
+	// highest channel number the remote user has opened so far
+	private int lastRemoteId;
+	
+	// sequence number expected on the next frame from the remote user
+	private int nextSequence;
+	
+	// true once the remote user's HELLO frame has been accepted
+	private boolean helloReceived;
+	
+	// handed each channel the remote user opens, null if it may open none
+	private volatile Consumer<PKIChannel> channelListener;
+	
+	// traffic counters of the connection, null when it is not tracked
+	private volatile SessionMetrics metrics;
+	
+	// why run() stopped, null while it runs or if the connection closed cleanly
+	private volatile Exception failure;
+	
+	// what every channel was ended with once the connection ended, null until then, guarded by channels
+	private IOException ended;
+	
+	/**
+	 * Constructor to build a multiplexer over an established connection
+	 * @param reader frame reader from the remote user
+	 * @param writer frame writer to the remote user
+	 * @param rsa RSA instance of the local user
+	 * @param knownPeers checks the remote user's public key
+	 * @param peerLabel where the remote user is connecting from
+	 * @param initiator true on the side that connected
+	 */
+	public ChannelMultiplexer(FrameReader reader, FrameWriter writer, RSA rsa,
+			KnownPeers knownPeers, String peerLabel, boolean initiator)
+	{
+		this.reader = reader;
+		this.writer = writer;
+		this.rsa = rsa.snapshot();
+		this.hybrid = new HybridSession(this.rsa);
+		this.initiator = initiator;
+		this.nextLocalId = initiator ? 1 : 2;
+		
+		control = new MessageReceiver(null, this.rsa, hybrid, knownPeers, peerLabel);
+		control.setMultiplexed();
+		channels.put(0, newChannel(0));
+	}
+	
+	/**
+	 * Sends the local user's public key and waits for the remote user's, which
+	 * must be the first frame it sends. Must be called before run().
+	 * @return key of the remote user
+	 * @throws IOException if the connection fails or something else arrives first
+	 * @throws GeneralSecurityException if the remote user's public key is rejected
+	 */
+	public RSAPeerKey exchangeKeys() throws IOException, GeneralSecurityException
+	{
+		getChannel(0).sendHello();
+		
+		// anything but a HELLO frame is rejected by dispatch
+		dispatch(reader.read());
+		return hybrid.getPeer();
+	}
+	
+	/**
+	 * Opens a new channel. Its OPEN frame is sent together with its first message.
+	 * @return the new channel
+	 * @throws IOException if MAX_CHANNELS are open or the connection has ended
+	 */
+	public PKIChannel openChannel() throws IOException
+	{
+		PKIChannel channel;
+		synchronized (channels)
+		{
+			if (ended != null)
+			{
+				throw new IOException("Connection has ended", ended);
+			}
+			if (channels.size() > MAX_CHANNELS)
+			{
+				throw new IOException("Too many open channels, at most " + MAX_CHANNELS);
+			}
+			if (nextLocalId < 0)
+			{
+				throw new IOException("Channel numbers of this connection are used up");
+			}
+			channel = newChannel(nextLocalId);
+			nextLocalId += 2;
+			
+			// the OPEN frame is queued under the channels lock, so channels open in number order
+			channels.put(channel.getId(), channel);
+			writeControl(channel.getId(), PKIFrame.TYPE_OPEN, ByteBuffer.allocate(0), false);
+		}
+		return channel;
+	}
+	
+	/**
+	 * @param id number of an open channel
+	 * @return the channel, or null if it is not open
+	 */
+	public PKIChannel getChannel(int id)
+	{
+		return channels.get(id);
+	}
+	
+	/**
+	 * @return number of open channels, channel 0 included
+	 */
+	public int getOpenChannels()
+	{
+		return channels.size();
+	}
+	
+	/**
+	 * Sets the handler of channels the remote user opens. It runs on the thread
+	 * reading the connection, so it should hand the channel to another thread
+	 * rather than receive on it. Without a handler, a remote OPEN frame ends the
+	 * connection.
+	 * @param channelListener called with each channel the remote user opens
+	 */
+	public void setChannelListener(Consumer<PKIChannel> channelListener)
+	{
+		this.channelListener = channelListener;
+	}
+	
+	/**
+	 * Counts the traffic of every channel in the connection's metrics
+	 * @param metrics traffic counters of the connection
+	 */
+	public void setMetrics(SessionMetrics metrics)
+	{
+		this.metrics = metrics;
+		control.setMetrics(metrics);
+		for (PKIChannel channel : channels.values())
+		{
+			channel.setMetrics(metrics);
+		}
+	}
+	
+	/**
+	 * Reads and routes frames until the connection closes, then ends every channel
+	 */
+	@Override
+	public void run()
+	{
+		try
+		{
+			demultiplex();
+		}
+		catch (IOException | GeneralSecurityException | IllegalArgumentException e) // connection dropped or remote user misbehaved
+		{
+			failure = e;
+		}
+	}
+	
+	/**
+	 * Reads and routes frames on the calling thread until the connection closes.
+	 * Every channel is ended when it returns or throws.
+	 * @throws IOException if the connection fails or a frame is malformed or not allowed
+	 * @throws GeneralSecurityException if a session key is rejected
+	 * @throws IllegalArgumentException if a session key does not match the keys
+	 */
+	public void demultiplex() throws IOException, GeneralSecurityException
+	{
+		IOException cause = new EOFException("Connection closed");
+		try
+		{
+			while (true)
+			{
+				dispatch(reader.read());
+			}
+		}
+		catch (EOFException eof) // remote user closed the connection
+		{
+			// a clean end, the channels see it as an EOFException once they are drained
+		}
+		catch (IOException ioe)
+		{
+			cause = ioe;
+			throw ioe;
+		}
+		catch (GeneralSecurityException gse)
+		{
+			cause = new IOException(gse.getMessage(), gse);
+			throw gse;
+		}
+		catch (IllegalArgumentException iae)
+		{
+			cause = new IOException(iae.getMessage(), iae);
+			throw iae;
+		}
+		finally
+		{
+			// under the lock, so no channel is opened after the others were ended
+			synchronized (channels)
+			{
+				ended = cause;
+				for (PKIChannel channel : channels.values())
+				{
+					channel.fail(cause);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return why run() stopped, or null if it is running or the connection closed cleanly
+	 */
+	public Exception getFailure()
+	{
+		return failure;
+	}
+	
+	/**
+	 * Sends a WINDOW frame handing credit back to the remote sender of a channel
+	 * @param channel channel whose messages were taken
+	 * @param bytes DATA payload bytes taken
+	 * @throws IOException if the frame cannot be written
+	 */
+	void sendWindow(PKIChannel channel, int bytes) throws IOException
+	{
+		writeControl(channel.getId(), PKIFrame.TYPE_WINDOW, ByteBuffer.allocate(Integer.BYTES).putInt(0, bytes), true);
+	}
+	
+	/**
+	 * Sends a channel's CLOSE frame, forgetting the channel if the remote user
+	 * closed its side already
+	 * @param channel channel whose local side ended
+	 * @throws IOException if the frame cannot be written
+	 */
+	void sendClose(PKIChannel channel) throws IOException
+	{
+		writeControl(channel.getId(), PKIFrame.TYPE_CLOSE, ByteBuffer.allocate(0), true);
+		if (channel.isRemoteClosed())
+		{
+			forget(channel);
+		}
+	}
+	
+	/**
+	 * Handles a single frame from the remote user
+	 * @param frame next frame read from the connection
+	 * @throws IOException if the frame is out of sequence or not allowed here
+	 * @throws GeneralSecurityException if the remote user's key or session key is rejected
+	 */
+	private void dispatch(PKIFrame frame) throws IOException, GeneralSecurityException
+	{
+		try
+		{
+			// a gap or repeat means frames were lost, injected, or replayed
+			if (frame.getSequence() != nextSequence)
+			{
+				throw new IOException("Frame " + frame.getSequence() + " received, expected " + nextSequence);
+			}
+			nextSequence++;
+			
+			// nothing but the remote user's key may come first
+			if (!helloReceived && frame.getType() != PKIFrame.TYPE_HELLO)
+			{
+				throw new IOException("Message received before public keys were exchanged");
+			}
+		}
+		catch (IOException ioe)
+		{
+			frame.release();
+			throw ioe;
+		}
+		
+		switch (frame.getType())
+		{
+			case PKIFrame.TYPE_HELLO:
+			case PKIFrame.TYPE_KEY:
+				// connection wide, whatever the channel, and applied in arrival order
+				control.accept(frame);
+				helloReceived = true;
+				return;
+			case PKIFrame.TYPE_MODE:
+			case PKIFrame.TYPE_DATA:
+				route(frame);
+				return;
+			default:
+				break;
+		}
+		
+		// OPEN, CLOSE, and WINDOW frames carry no more than a count
+		int id = frame.getChannel();
+		byte type = frame.getType();
+		int grant = type == PKIFrame.TYPE_WINDOW ? frame.getPayloadBuffer().getInt(0) : 0;
+		if (metrics != null)
+		{
+			metrics.frameReceived(PKIFrame.HEADER_BYTES + frame.getPayloadLength());
+		}
+		frame.release();
+		
+		switch (type)
+		{
+			case PKIFrame.TYPE_OPEN:
+				open(id);
+				break;
+			case PKIFrame.TYPE_CLOSE:
+				if (id == 0)
+				{
+					throw new IOException("Channel 0 cannot be closed");
+				}
+				PKIChannel closed = requireChannel(id);
+				if (closed.remoteClose())
+				{
+					forget(closed);
+				}
+				break;
+			case PKIFrame.TYPE_WINDOW:
+				if (id == 0)
+				{
+					throw new IOException("Channel 0 has no window");
+				}
+				PKIChannel granted = channels.get(id);
+				if (granted != null)
+				{
+					granted.grant(grant);
+				}
+				// a channel closed locally may still be sent credit it no longer needs
+				else if (!isKnownId(id))
+				{
+					throw new IOException("Window frame for unknown channel " + id);
+				}
+				break;
+			default:
+				throw new IOException("Unknown frame type " + type);
+		}
+	}
+	
+	/**
+	 * Hands a MODE or DATA frame to its channel
+	 * @param frame frame from the remote user
+	 * @throws IOException if the channel is not open or the frame breaks its flow control
+	 */
+	private void route(PKIFrame frame) throws IOException
+	{
+		try
+		{
+			requireChannel(frame.getChannel()).deliver(frame);
+		}
+		catch (IOException ioe) // frame not allowed, it will never be received
+		{
+			frame.release();
+			throw ioe;
+		}
+	}
+	
+	/**
+	 * Opens a channel for the remote user and hands it to the channel listener
+	 * @param id number the remote user chose
+	 * @throws IOException if the number is not the remote user's next, or too many channels are open
+	 */
+	private void open(int id) throws IOException
+	{
+		Consumer<PKIChannel> listener = channelListener;
+		if (listener == null)
+		{
+			throw new IOException("Remote user may not open channels");
+		}
+		// the remote user's numbers have the other parity and only go up
+		if (id <= lastRemoteId || (id % 2 == 1) == initiator)
+		{
+			throw new IOException("Remote user opened channel " + id + " out of order");
+		}
+		
+		PKIChannel channel;
+		synchronized (channels)
+		{
+			if (channels.size() > MAX_CHANNELS)
+			{
+				throw new IOException("Remote user opened more than " + MAX_CHANNELS + " channels");
+			}
+			lastRemoteId = id;
+			channel = newChannel(id);
+			channels.put(id, channel);
+		}
+		listener.accept(channel);
+	}
+	
+	/**
+	 * @param id channel number from a frame
+	 * @return the open channel
+	 * @throws IOException if the channel is not open
+	 */
+	private PKIChannel requireChannel(int id) throws IOException
+	{
+		PKIChannel channel = channels.get(id);
+		if (channel == null)
+		{
+			throw new IOException("Frame for channel " + id + ", which is not open");
+		}
+		return channel;
+	}
+	
+	/**
+	 * @param id channel number from a frame
+	 * @return true if either side has opened a channel with this number
+	 */
+	private boolean isKnownId(int id)
+	{
+		if (id <= 0)
+		{
+			return false;
+		}
+		if ((id % 2 == 1) == initiator)
+		{
+			synchronized (channels)
+			{
+				return id < nextLocalId;
+			}
+		}
+		return id <= lastRemoteId;
+	}
+	
+	/**
+	 * Drops a channel once both sides have closed it
+	 */
+	private void forget(PKIChannel channel)
+	{
+		channels.remove(channel.getId(), channel);
+	}
+	
+	/**
+	 * Builds a channel whose sender and receiver share this connection's writer and keys
+	 */
+	private PKIChannel newChannel(int id)
+	{
+		MessageSender sender = new MessageSender(writer, rsa, hybrid, id);
+		MessageReceiver receiver = new MessageReceiver(null, rsa, hybrid);
+		receiver.setMultiplexed();
+		
+		PKIChannel channel = new PKIChannel(id, this, sender, receiver);
+		if (metrics != null)
+		{
+			channel.setMetrics(metrics);
+		}
+		return channel;
+	}
+	
+	/**
+	 * Writes an OPEN, CLOSE, or WINDOW frame
+	 * @param id channel the frame belongs to
+	 * @param type frame type
+	 * @param payload frame body
+	 * @param flush true to send it now, false to leave it for the next flush
+	 * @throws IOException if the frame cannot be written
+	 */
+	private void writeControl(int id, byte type, ByteBuffer payload, boolean flush) throws IOException
+	{
+		SessionMetrics counters = metrics;
+		if (counters != null)
+		{
+			counters.frameSent(PKIFrame.HEADER_BYTES + payload.remaining());
+		}
+		synchronized (writer)
+		{
+			writer.write(id, type, (byte) 0, (byte) 0, payload);
+			if (flush)
+			{
+				writer.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental parser for PKI session frames received by a non-blocking
+ * channel. Bytes may arrive in pieces of any size, so a partial header or
+ * payload is kept until the rest arrives.
+ * @author Colby Bratton
+ *
+ */
+public class FrameParser {
+	
+	// holds a partially received header
+	private final ByteBuffer header = ByteBuffer.allocate(PKIFrame.HEADER_BYTES);
+	
+	// pool the payload buffers are taken from, null for heap arrays
+	private final BufferPool pool;
+	
+	// frame being received, null while its header is incomplete
+	private PKIFrame frame;
+	
+	// number of payload bytes received so far
+	private int payloadPos;
+	
+	/**
+	 * Constructor to build a parser whose frames hold heap payload arrays
+	 */
+	public FrameParser()
+	{
+		this(null);
+	}
+	
+	/**
+	 * Constructor to build a parser whose frames hold pooled payload buffers,
+	 * handed back with PKIFrame.release()
+	 * @param pool pool the payload buffers are taken from, null for heap arrays
+	 */
+	public FrameParser(BufferPool pool)
+	{
+		this.pool = pool;
+	}
+	
+	/**
+	 * Consumes received bytes until a frame is complete or the bytes run out
+	 * @param in bytes received from the remote user
+	 * @return complete frame, or null if more bytes are needed
+	 * @throws IOException if the header is malformed
+	 */
+	public PKIFrame parse(ByteBuffer in) throws IOException
+	{
+		// collect the header first
+		if (frame == null)
+		{
+			while (header.hasRemaining() && in.hasRemaining())
+			{
+				header.put(in.get());
+			}
+			if (header.hasRemaining())
+			{
+				return null;
+			}
+			
+			header.flip();
+			frame = PKIFrame.fromHeader(header, pool);
+			header.clear();
+			payloadPos = 0;
+		}
+		
+		// then the payload, as far as the received bytes go
+		ByteBuffer payload = frame.getPayloadBuffer();
+		int count = Math.min(in.remaining(), payload.limit() - payloadPos);
+		payload.put(payloadPos, in, in.position(), count);
+		in.position(in.position() + count);
+		payloadPos += count;
+		if (payloadPos < payload.limit())
+		{
+			return null;
+		}
+		
+		PKIFrame complete = frame;
+		frame = null;
+		return complete;
+	}
+}
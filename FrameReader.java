@@ -0,0 +1,141 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads PKI session frames from a blocking input stream or channel. Frames read
+ * from a channel get their payload from a BufferPool and are read straight into
+ * direct memory; the payload goes back to the pool when the frame is released.
+ * @author Colby Bratton
+ *
+ */
+public class FrameReader {
+	
+	// time spent receiving payloads once their header has arrived
+	private static final LatencyHistogram READ_LATENCY = PKIMetrics.getDefault().histogram("socket.read");
+	
+	// stream from the remote user, null when reading from a channel
+	private final DataInputStream in;
+	
+	// blocking channel from the remote user, null when reading from a stream
+	private final ReadableByteChannel channel;
+	
+	// pool the payloads of channel frames are taken from
+	private final BufferPool pool;
+	
+	// reusable header buffer, direct when reading from a channel
+	private final ByteBuffer header;
+	
+	/**
+	 * Constructor to build a frame reader over a stream
+	 * @param in stream from the remote user
+	 */
+	public FrameReader(InputStream in)
+	{
+		this.in = in instanceof DataInputStream ? (DataInputStream) in : new DataInputStream(in);
+		this.channel = null;
+		this.pool = null;
+		this.header = ByteBuffer.allocate(PKIFrame.HEADER_BYTES);
+	}
+	
+	/**
+	 * Constructor to build a frame reader over a blocking channel, with payloads
+	 * taken from the shared buffer pool
+	 * @param channel blocking channel from the remote user
+	 */
+	public FrameReader(ReadableByteChannel channel)
+	{
+		this(channel, BufferPool.getDefault());
+	}
+	
+	/**
+	 * Constructor to build a frame reader over a blocking channel
+	 * @param channel blocking channel from the remote user
+	 * @param pool pool the payload buffers are taken from
+	 */
+	public FrameReader(ReadableByteChannel channel, BufferPool pool)
+	{
+		this.in = null;
+		this.channel = channel;
+		this.pool = pool;
+		this.header = ByteBuffer.allocateDirect(PKIFrame.HEADER_BYTES);
+	}
+	
+	/**
+	 * Reads the next frame, blocking until all of it has arrived. A frame read
+	 * from a channel holds a pooled payload, which whoever handles the frame
+	 * hands back with PKIFrame.release().
+	 * @return next frame from the remote user
+	 * @throws java.io.EOFException if the remote user closed the connection
+	 * @throws IOException if the frame is malformed or the read fails
+	 */
+	public PKIFrame read() throws IOException
+	{
+		if (channel != null)
+		{
+			return readChannel();
+		}
+		
+		in.readFully(header.array(), 0, PKIFrame.HEADER_BYTES);
+		header.clear();
+		
+		// waiting for the header is idle time, only the payload read is timed
+		long start = System.nanoTime();
+		PKIFrame frame = PKIFrame.fromHeader(header);
+		in.readFully(frame.getPayload());
+		READ_LATENCY.recordSince(start);
+		return frame;
+	}
+	
+	/**
+	 * Reads the next frame from the channel into a pooled payload buffer
+	 * @return next frame from the remote user
+	 * @throws IOException if the frame is malformed or the read fails
+	 */
+	private PKIFrame readChannel() throws IOException
+	{
+		header.clear();
+		readFully(header);
+		header.flip();
+		
+		// the length is checked before a payload buffer is taken
+		long start = System.nanoTime();
+		PKIFrame frame = PKIFrame.fromHeader(header, pool);
+		try
+		{
+			readFully(frame.getPayloadBuffer());
+		}
+		catch (IOException ioe) // connection dropped inside the payload
+		{
+			frame.release();
+			throw ioe;
+		}
+		READ_LATENCY.recordSince(start);
+		return frame;
+	}
+	
+	/**
+	 * Reads from the channel until the buffer is full
+	 * @param buffer buffer to be filled up to its limit
+	 * @throws EOFException if the remote user closed the connection first
+	 * @throws IOException if the read fails
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) < 0)
+			{
+				throw new EOFException();
+			}
+		}
+	}
+}
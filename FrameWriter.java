@@ -0,0 +1,257 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * Writes PKI session frames to an output stream or channel. Frames are buffered
+ * until flush() is called, so several frames (for example a MODE frame, a KEY
+ * frame, and the DATA frame they belong to) go out in a single write. Over a
+ * channel each payload is copied into a pooled direct buffer, and the headers and
+ * payloads of all pending frames are sent with one gathering write. A writer is
+ * not thread safe; the senders of a ChannelMultiplexer share one by locking it.
+ * @author Colby Bratton
+ *
+ */
+public class FrameWriter {
+	
+	// frames smaller than this are coalesced before being written
+	private static final int COALESCE_BUFFER_SIZE = 64 * 1024;
+	
+	// buffered stream to the remote user, null when writing to a channel
+	private final OutputStream out;
+	
+	// blocking channel to the remote user, null when writing to a stream
+	private final GatheringByteChannel channel;
+	
+	// pool the payload copies of channel frames are taken from
+	private final BufferPool pool;
+	
+	// reusable header buffer of the stream writer
+	private final ByteBuffer header = ByteBuffer.allocate(PKIFrame.HEADER_BYTES);
+	
+	// header then payload of every pending channel frame, in order, with its count
+	private ByteBuffer[] pending = new ByteBuffer[8];
+	private int pendingCount;
+	
+	// payload bytes of the pending channel frames
+	private int pendingBytes;
+	
+	// reusable direct header buffers of the channel writer, one per pending frame
+	private ByteBuffer[] headers = new ByteBuffer[4];
+	
+	// sequence number of the next frame written
+	private int nextSequence;
+	
+	// latency of writes to the socket, null when the stream is not a socket
+	private final LatencyHistogram flushLatency;
+	
+	/**
+	 * Constructor to build a frame writer over a stream
+	 * @param out stream to the remote user
+	 */
+	public FrameWriter(OutputStream out)
+	{
+		this(out, PKIMetrics.getDefault().histogram("socket.write"));
+	}
+	
+	/**
+	 * Constructor to build a frame writer with its own write latency histogram
+	 * @param out stream to the remote user
+	 * @param flushLatency latency of each flush, null to leave flushes untimed
+	 */
+	FrameWriter(OutputStream out, LatencyHistogram flushLatency)
+	{
+		this.out = new BufferedOutputStream(out, COALESCE_BUFFER_SIZE);
+		this.channel = null;
+		this.pool = null;
+		this.flushLatency = flushLatency;
+	}
+	
+	/**
+	 * Constructor to build a frame writer over a blocking channel, with payload
+	 * copies taken from the shared buffer pool
+	 * @param channel blocking channel to the remote user
+	 */
+	public FrameWriter(GatheringByteChannel channel)
+	{
+		this(channel, BufferPool.getDefault());
+	}
+	
+	/**
+	 * Constructor to build a frame writer over a blocking channel
+	 * @param channel blocking channel to the remote user
+	 * @param pool pool the payload copies are taken from
+	 */
+	public FrameWriter(GatheringByteChannel channel, BufferPool pool)
+	{
+		this.out = null;
+		this.channel = channel;
+		this.pool = pool;
+		this.flushLatency = PKIMetrics.getDefault().histogram("socket.write");
+	}
+	
+	/**
+	 * Buffers a frame, assigning it the next sequence number
+	 * @param type frame type
+	 * @param mode encryption mode
+	 * @param flags option bits
+	 * @param payload frame body
+	 * @throws IOException if the buffer had to be written and the write failed
+	 */
+	public void write(byte type, byte mode, byte flags, byte[] payload) throws IOException
+	{
+		write(0, type, mode, flags, ByteBuffer.wrap(payload));
+	}
+	
+	/**
+	 * Buffers a frame of the session's own channel whose payload is the remaining
+	 * bytes of a buffer, assigning it the next sequence number
+	 * @param type frame type
+	 * @param mode encryption mode
+	 * @param flags option bits
+	 * @param payload frame body, left at its limit
+	 * @throws IOException if the buffer had to be written and the write failed
+	 */
+	public void write(byte type, byte mode, byte flags, ByteBuffer payload) throws IOException
+	{
+		write(0, type, mode, flags, payload);
+	}
+	
+	/**
+	 * Buffers a frame of a logical channel whose payload is the remaining bytes of
+	 * a buffer, assigning it the next sequence number. The payload of a heap
+	 * buffer is copied straight from its array.
+	 * @param frameChannel logical channel the frame belongs to, 0 for the session's own
+	 * @param type frame type
+	 * @param mode encryption mode
+	 * @param flags option bits
+	 * @param payload frame body, left at its limit
+	 * @throws IOException if the buffer had to be written and the write failed
+	 */
+	public void write(int frameChannel, byte type, byte mode, byte flags, ByteBuffer payload) throws IOException
+	{
+		if (channel != null)
+		{
+			queue(frameChannel, type, mode, flags, payload);
+			return;
+		}
+		
+		if (!payload.hasArray())
+		{
+			byte[] copy = new byte[payload.remaining()];
+			payload.get(copy);
+			payload = ByteBuffer.wrap(copy);
+		}
+		
+		header.clear();
+		PKIFrame.writeHeader(header, type, mode, flags, frameChannel, nextSequence++, payload.remaining());
+		
+		out.write(header.array(), 0, PKIFrame.HEADER_BYTES);
+		out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+		payload.position(payload.limit());
+	}
+	
+	/**
+	 * Writes every buffered frame to the remote user
+	 * @throws IOException if the write fails
+	 */
+	public void flush() throws IOException
+	{
+		long start = System.nanoTime();
+		if (channel != null)
+		{
+			writePending();
+		}
+		else
+		{
+			out.flush();
+		}
+		if (flushLatency != null)
+		{
+			flushLatency.recordSince(start);
+		}
+	}
+	
+	/**
+	 * Adds a channel frame to the pending gathering write, copying its payload
+	 * into a pooled buffer so the caller may reuse its own buffer right away
+	 * @param frameChannel logical channel the frame belongs to
+	 * @param type frame type
+	 * @param mode encryption mode
+	 * @param flags option bits
+	 * @param payload frame body, left at its limit
+	 * @throws IOException if the pending frames had to be written and the write failed
+	 */
+	private void queue(int frameChannel, byte type, byte mode, byte flags, ByteBuffer payload) throws IOException
+	{
+		// like the stream writer, write out what is pending once it passes the coalesce size
+		if (pendingBytes > 0 && pendingBytes + payload.remaining() > COALESCE_BUFFER_SIZE)
+		{
+			writePending();
+		}
+		
+		int frameIndex = pendingCount / 2;
+		if (frameIndex == headers.length)
+		{
+			headers = Arrays.copyOf(headers, headers.length * 2);
+			pending = Arrays.copyOf(pending, pending.length * 2);
+		}
+		if (headers[frameIndex] == null)
+		{
+			headers[frameIndex] = ByteBuffer.allocateDirect(PKIFrame.HEADER_BYTES);
+		}
+		
+		ByteBuffer frameHeader = headers[frameIndex];
+		frameHeader.clear();
+		PKIFrame.writeHeader(frameHeader, type, mode, flags, frameChannel, nextSequence++, payload.remaining());
+		frameHeader.flip();
+		
+		ByteBuffer copy = pool.acquire(payload.remaining());
+		copy.put(payload).flip();
+		
+		pending[pendingCount++] = frameHeader;
+		pending[pendingCount++] = copy;
+		pendingBytes += copy.remaining();
+	}
+	
+	/**
+	 * Sends every pending channel frame with gathering writes, then returns their
+	 * payload copies to the pool
+	 * @throws IOException if the write fails
+	 */
+	private void writePending() throws IOException
+	{
+		try
+		{
+			int first = 0;
+			while (first < pendingCount)
+			{
+				channel.write(pending, first, pendingCount - first);
+				
+				// skip the buffers that were written in full
+				while (first < pendingCount && !pending[first].hasRemaining())
+				{
+					first++;
+				}
+			}
+		}
+		finally
+		{
+			for (int i = 1; i < pendingCount; i += 2)
+			{
+				pool.release(pending[i]);
+			}
+			Arrays.fill(pending, 0, pendingCount, null);
+			pendingCount = 0;
+			pendingBytes = 0;
+		}
+	}
+}
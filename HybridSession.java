@@ -0,0 +1,222 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Hybrid messaging for a PKI session. The first Hybrid message sent in each
+ * direction is preceded by a KEY frame carrying a random AES session key,
+ * encrypted with the RSA Both mode so it is both confidential and authenticated. Every Hybrid message
+ * after that is encrypted with AES-GCM under the session key, which costs
+ * no RSA operations at all. The logical channels of a ChannelMultiplexer share
+ * one session, so a connection exchanges each session key only once.
+ * @author Colby Bratton
+ *
+ */
+public class HybridSession {
+	
+	// AES key size in bytes (256 bits)
+	private static final int KEY_BYTES = 32;
+	
+	// GCM nonce size in bytes, and authentication tag size in bits
+	private static final int NONCE_BYTES = 12;
+	private static final int TAG_BITS = 128;
+	
+	// transformation used for every Hybrid message
+	private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	
+	// latency of Hybrid message encryption and decryption, published by PKIMetrics
+	private static final LatencyHistogram SEAL_LATENCY = PKIMetrics.getDefault().histogram("hybrid.seal");
+	private static final LatencyHistogram OPEN_LATENCY = PKIMetrics.getDefault().histogram("hybrid.open");
+	
+	// RSA instance used to wrap and unwrap the session keys
+	private final RSA rsa;
+	
+	// remote user the session keys are exchanged with, null for the RSA instance's default.
+	// Set by the receive side when the remote user's HELLO frame arrives.
+	private volatile RSAPeerKey peer;
+	
+	// true once the remote user's HELLO frame has said it accepts compressed messages
+	private volatile boolean peerAcceptsCompression;
+	
+	// source of randomness for session keys
+	private final SecureRandom random = new SecureRandom();
+	
+	// session key for messages sent by the local user, and
+	// number of messages sent under it (used as the GCM nonce, guarded by this)
+	private volatile SecretKey outboundKey;
+	private long outboundCount;
+	
+	// session key for messages sent by the remote user
+	private volatile SecretKey inboundKey;
+	
+	/**
+	 * Constructor to build a Hybrid session on top of an RSA instance. The RSA
+	 * instance must hold the remote user's credentials before any message is sent.
+	 * @param rsa RSA instance of the local user
+	 */
+	public HybridSession(RSA rsa)
+	{
+		this(rsa, null);
+	}
+	
+	/**
+	 * Constructor to build a Hybrid session with a specific remote user, so a
+	 * single RSA instance may hold sessions with many remote users at once
+	 * @param rsa RSA instance of the local user
+	 * @param peer key of the remote user, or null for the RSA instance's remote user
+	 */
+	public HybridSession(RSA rsa, RSAPeerKey peer)
+	{
+		this.rsa = rsa;
+		this.peer = peer;
+	}
+	
+	/**
+	 * @return key of the remote user, falling back to the RSA instance's remote user
+	 */
+	RSAPeerKey getPeer()
+	{
+		return peer != null ? peer : rsa.getRemoteKey();
+	}
+	
+	/**
+	 * Sets the remote user of the session, once its public key has been received
+	 * @param peer key of the remote user
+	 */
+	void setPeer(RSAPeerKey peer)
+	{
+		this.peer = peer;
+	}
+	
+	/**
+	 * @return true if the remote user accepts messages compressed before encryption
+	 */
+	boolean peerAcceptsCompression()
+	{
+		return peerAcceptsCompression;
+	}
+	
+	/**
+	 * Records whether the remote user accepts compressed messages, from its HELLO frame
+	 * @param accepts true if the HELLO frame carried FLAG_COMPRESSED
+	 */
+	void setPeerAcceptsCompression(boolean accepts)
+	{
+		this.peerAcceptsCompression = accepts;
+	}
+	
+	/**
+	 * @return true once the local user's session key has been created
+	 */
+	public boolean hasOutboundKey()
+	{
+		return outboundKey != null;
+	}
+	
+	/**
+	 * Creates the local user's session key. The returned frame must reach
+	 * the remote user ahead of the first sealed message.
+	 * @return session key encrypted with the RSA Both mode
+	 */
+	public byte[] createOutboundKey()
+	{
+		byte[] keyBytes = new byte[KEY_BYTES];
+		random.nextBytes(keyBytes);
+		
+		byte[] wrappedKey = rsa.encryptBlocks(keyBytes, RSAMode.BOTH, getPeer());
+		outboundKey = new SecretKeySpec(keyBytes, "AES");
+		return wrappedKey;
+	}
+	
+	/**
+	 * @return true once the remote user's session key has been received
+	 */
+	public boolean hasInboundKey()
+	{
+		return inboundKey != null;
+	}
+	
+	/**
+	 * Unwraps and stores the remote user's session key
+	 * @param wrappedKey session key encrypted with the RSA Both mode
+	 * @throws GeneralSecurityException if the unwrapped key has the wrong length
+	 */
+	public void acceptInboundKey(byte[] wrappedKey) throws GeneralSecurityException
+	{
+		byte[] keyBytes = rsa.decryptBlocks(wrappedKey, RSAMode.BOTH, getPeer());
+		if (keyBytes.length != KEY_BYTES)
+		{
+			throw new GeneralSecurityException("Session key has the wrong length");
+		}
+		inboundKey = new SecretKeySpec(keyBytes, "AES");
+	}
+	
+	/**
+	 * Encrypts a message under the outbound session key
+	 * @param message message, in bytes, to be encrypted
+	 * @return nonce followed by the ciphertext and tag
+	 * @throws GeneralSecurityException if the message cannot be encrypted
+	 */
+	public byte[] seal(byte[] message) throws GeneralSecurityException
+	{
+		long start = System.nanoTime();
+		
+		// a counter nonce is never reused under the same key, even by channels sealing at once
+		long count;
+		synchronized (this)
+		{
+			count = outboundCount++;
+		}
+		byte[] nonce = ByteBuffer.allocate(NONCE_BYTES).putLong(NONCE_BYTES - Long.BYTES, count).array();
+		
+		Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+		cipher.init(Cipher.ENCRYPT_MODE, outboundKey, new GCMParameterSpec(TAG_BITS, nonce));
+		
+		byte[] sealed = new byte[NONCE_BYTES + cipher.getOutputSize(message.length)];
+		System.arraycopy(nonce, 0, sealed, 0, NONCE_BYTES);
+		cipher.doFinal(message, 0, message.length, sealed, NONCE_BYTES);
+		
+		SEAL_LATENCY.recordSince(start);
+		return sealed;
+	}
+	
+	/**
+	 * Decrypts and authenticates a message under the inbound session key
+	 * @param sealed nonce followed by the ciphertext and tag
+	 * @return byte form of the decrypted message
+	 * @throws GeneralSecurityException if the message fails authentication
+	 */
+	public byte[] open(byte[] sealed) throws GeneralSecurityException
+	{
+		if (sealed.length < NONCE_BYTES)
+		{
+			throw new GeneralSecurityException("Hybrid message is too short");
+		}
+		
+		long start = System.nanoTime();
+		Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+		cipher.init(Cipher.DECRYPT_MODE, inboundKey, new GCMParameterSpec(TAG_BITS, sealed, 0, NONCE_BYTES));
+		byte[] message = cipher.doFinal(sealed, NONCE_BYTES, sealed.length - NONCE_BYTES);
+		
+		OPEN_LATENCY.recordSince(start);
+		return message;
+	}
+	
+	/**
+	 * @param selection letter chosen by the user
+	 * @return true if the selection is (H)ybrid
+	 */
+	public static boolean isHybrid(String selection)
+	{
+		return selection.contentEquals("h") || selection.contentEquals("H");
+	}
+}
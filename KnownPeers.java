@@ -0,0 +1,375 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Checks the public keys received in HELLO frames. On a client, keys are pinned
+ * to the server address the user chose: the first key a server presents is
+ * checked for being a plausible RSA public key and pinned to its label, and
+ * after that the server must present the same key every time. A different key
+ * is refused, since it may come from someone else answering at that address,
+ * unless changed keys are accepted with -Dpki.knownPeers.acceptChanged=true.
+ * At most MAX_PEERS labels are pinned, so peers cannot grow the store without
+ * bound.
+ * <p>
+ * A server has no address of its clients worth pinning to, as clients behind
+ * one NAT or on one host share it, so the known peers of a server (see
+ * forServer) pin nothing. They only cache the keys that passed the checks by
+ * fingerprint, so a reconnecting client is not checked again, and drop the
+ * least recently used key once MAX_PEERS are cached.
+ * <p>
+ * The known peers file holds one pinned key per line: its fingerprint,
+ * followed by the label of the peer it is pinned to.
+ * @author Colby Bratton
+ *
+ */
+public class KnownPeers {
+	
+	// default known peers file, overridable with -Dpki.knownPeers
+	public static final String DEFAULT_PATH = System.getProperty("pki.knownPeers", "known_peers");
+	
+	// largest number of peers pinned, overridable with -Dpki.knownPeers.max
+	public static final int MAX_PEERS = Integer.getInteger("pki.knownPeers.max", 1024);
+	
+	// when true, a peer presenting a new key is pinned to it instead of refused,
+	// set with -Dpki.knownPeers.acceptChanged=true
+	public static final boolean ACCEPT_CHANGED_KEYS = Boolean.getBoolean("pki.knownPeers.acceptChanged");
+	
+	// smallest remote n value accepted, overridable with -Dpki.minModulusBits
+	public static final int MIN_MODULUS_BITLENGTH = Integer.getInteger("pki.minModulusBits", 2048);
+	
+	// largest remote n value accepted. Checking a larger n for factors would let
+	// a single HELLO frame hold a thread for seconds.
+	public static final int MAX_MODULUS_BITLENGTH = 16384;
+	
+	// largest remote public key accepted, in bits
+	public static final int MAX_PUBLIC_EXPONENT_BITLENGTH = 256;
+	
+	// Miller-Rabin rounds used to make sure a remote n value is not prime
+	private static final int COMPOSITE_CERTAINTY = 20;
+	
+	// lazily created known peers shared by PKIClient sessions
+	private static KnownPeers defaultKnownPeers;
+	
+	// lazily created key cache shared by PKIServer connections
+	private static KnownPeers defaultServerKnownPeers;
+	
+	// file pinned fingerprints are kept in, null to keep them in memory only
+	private final File file;
+	
+	// false for a server, which caches keys by fingerprint instead of pinning labels
+	private final boolean pinLabels;
+	
+	// keys that passed the checks on a server, by fingerprint, least recently used first
+	private final Map<String, RSAPeerKey> validated = new LinkedHashMap<String, RSAPeerKey>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, RSAPeerKey> eldest)
+		{
+			return size() > MAX_PEERS;
+		}
+	};
+	
+	// fingerprint pinned to each peer label, now or in an earlier run
+	private final ConcurrentMap<String, String> pinned = new ConcurrentHashMap<>();
+	
+	// parsed key of each peer label, so a reconnecting peer reuses its key object
+	private final ConcurrentMap<String, RSAPeerKey> keys = new ConcurrentHashMap<>();
+	
+	/**
+	 * Constructor to build known peers backed by a file. Keys already in the
+	 * file stay pinned to their peers, and new pins are appended to it.
+	 * @param file known peers file, null to keep pins in memory only
+	 * @throws IOException if the file exists but cannot be read
+	 */
+	public KnownPeers(File file) throws IOException
+	{
+		this.file = file;
+		this.pinLabels = true;
+		
+		if (file != null && file.exists())
+		{
+			try (BufferedReader knownPeersInput = new BufferedReader(new FileReader(file)))
+			{
+				String line;
+				while ((line = knownPeersInput.readLine()) != null)
+				{
+					// a later line for the same peer replaces an earlier one
+					String[] fields = line.trim().split("\\s+", 2);
+					if (fields.length == 2)
+					{
+						pinned.put(fields[1], fields[0]);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Constructor for known peers kept in memory only
+	 * @param pinLabels true to pin keys to labels, false to cache them by fingerprint
+	 */
+	private KnownPeers(boolean pinLabels)
+	{
+		this.file = null;
+		this.pinLabels = pinLabels;
+	}
+	
+	/**
+	 * Builds known peers for a server, which pin no label and cache the keys
+	 * that passed the checks by fingerprint, in memory only
+	 * @return new known peers for a server
+	 */
+	public static KnownPeers forServer()
+	{
+		return new KnownPeers(false);
+	}
+	
+	/**
+	 * Returns the shared known peers, loading DEFAULT_PATH on first use. If the
+	 * file cannot be read, pins are kept in memory only.
+	 * @return shared known peers
+	 */
+	public static synchronized KnownPeers getDefault()
+	{
+		if (defaultKnownPeers == null)
+		{
+			try
+			{
+				defaultKnownPeers = new KnownPeers(new File(DEFAULT_PATH));
+			}
+			catch (IOException ioe) // unreadable file, start with no pins
+			{
+				System.out.println("Known peers file " + DEFAULT_PATH + " could not be read: " + ioe.getMessage());
+				defaultKnownPeers = new KnownPeers(true);
+			}
+		}
+		return defaultKnownPeers;
+	}
+	
+	/**
+	 * Returns the known peers shared by the connections of a server, created
+	 * with forServer on first use
+	 * @return shared known peers of a server
+	 */
+	public static synchronized KnownPeers getServerDefault()
+	{
+		if (defaultServerKnownPeers == null)
+		{
+			defaultServerKnownPeers = forServer();
+		}
+		return defaultServerKnownPeers;
+	}
+	
+	/**
+	 * Accepts a public key received from a remote user. The key pinned to the
+	 * peer is returned straight away, a peer with no pin has its key checked
+	 * and pinned first. On a server, a cached key is returned straight away and
+	 * any other key is checked and cached.
+	 * @param n n value of the remote user
+	 * @param pubKey public key of the remote user
+	 * @param label peer the key came from
+	 * @return key of the remote user
+	 * @throws GeneralSecurityException if the key differs from the peer's pinned
+	 *         key, or is new and fails the checks or finds the store full
+	 */
+	public RSAPeerKey verify(BigInteger n, BigInteger pubKey, String label) throws GeneralSecurityException
+	{
+		// labels are free text, keep each pin on one line of the file
+		String peer = label.replaceAll("\\s+", "_");
+		String fingerprint = RSAPeerKey.fingerprint(n, pubKey);
+		
+		if (!pinLabels)
+		{
+			return verifyCached(n, pubKey, peer, fingerprint);
+		}
+		
+		RSAPeerKey key = keys.get(peer);
+		if (key != null && key.getFingerprint().equals(fingerprint))
+		{
+			return key;
+		}
+		
+		// a changed key is refused before any work is done on it
+		String previous = pinned.get(peer);
+		if (previous != null && !previous.equals(fingerprint) && !ACCEPT_CHANGED_KEYS)
+		{
+			throw changedKey(peer, previous, fingerprint);
+		}
+		
+		if (!fingerprint.equals(previous))
+		{
+			validate(n, pubKey);
+			pin(peer, fingerprint);
+		}
+		
+		key = new RSAPeerKey(peer, n, pubKey);
+		keys.put(peer, key);
+		return key;
+	}
+	
+	/**
+	 * Accepts a key on a server: a key already cached is returned, any other is
+	 * checked and cached, evicting the least recently used key when full
+	 * @param n n value of the remote user
+	 * @param pubKey public key of the remote user
+	 * @param peer label of the peer, free of whitespace
+	 * @param fingerprint fingerprint of the key
+	 * @return key of the remote user, known by the peer's label
+	 * @throws GeneralSecurityException if a key not yet cached fails the checks
+	 */
+	private RSAPeerKey verifyCached(BigInteger n, BigInteger pubKey, String peer, String fingerprint)
+			throws GeneralSecurityException
+	{
+		RSAPeerKey key;
+		synchronized (validated)
+		{
+			key = validated.get(fingerprint);
+		}
+		
+		if (key == null)
+		{
+			// checked outside the lock, so one slow key does not hold up other clients
+			validate(n, pubKey);
+			key = new RSAPeerKey(peer, n, pubKey);
+			synchronized (validated)
+			{
+				validated.put(fingerprint, key);
+			}
+		}
+		
+		// the same key may reach the server from another host
+		return key.getPeerId().equals(peer) ? key : new RSAPeerKey(peer, n, pubKey);
+	}
+	
+	/**
+	 * @param label peer a key came from
+	 * @return fingerprint of the key pinned to the peer, or null if it has none,
+	 *         always the case on a server
+	 */
+	public String getPinned(String label)
+	{
+		return pinned.get(label.replaceAll("\\s+", "_"));
+	}
+	
+	/**
+	 * Checks that a remote public key is usable: n is odd, neither too small nor
+	 * too large, free of small factors, and not prime, and e is an odd value
+	 * between 3 and n of at most MAX_PUBLIC_EXPONENT_BITLENGTH bits. The sizes are
+	 * checked before any arithmetic is done on the key.
+	 * @param n n value of the remote user
+	 * @param pubKey public key of the remote user
+	 * @throws GeneralSecurityException if any check fails
+	 */
+	static void validate(BigInteger n, BigInteger pubKey) throws GeneralSecurityException
+	{
+		if (n.bitLength() < MIN_MODULUS_BITLENGTH)
+		{
+			throw new GeneralSecurityException("Remote n has " + n.bitLength()
+					+ " bits, at least " + MIN_MODULUS_BITLENGTH + " are required");
+		}
+		if (n.bitLength() > MAX_MODULUS_BITLENGTH)
+		{
+			throw new GeneralSecurityException("Remote n has " + n.bitLength()
+					+ " bits, at most " + MAX_MODULUS_BITLENGTH + " are accepted");
+		}
+		if (pubKey.bitLength() > MAX_PUBLIC_EXPONENT_BITLENGTH)
+		{
+			throw new GeneralSecurityException("Remote public key has " + pubKey.bitLength()
+					+ " bits, at most " + MAX_PUBLIC_EXPONENT_BITLENGTH + " are accepted");
+		}
+		if (!pubKey.testBit(0) || pubKey.compareTo(BigInteger.valueOf(3)) < 0 || pubKey.compareTo(n) >= 0)
+		{
+			throw new GeneralSecurityException("Remote public key must be odd and between 3 and n");
+		}
+		
+		// an even n or a small factor means n is not a product of large primes
+		if (!n.testBit(0) || !n.gcd(RSAKeyGenerator.SMALL_PRIME_PRODUCT).equals(BigInteger.ONE))
+		{
+			throw new GeneralSecurityException("Remote n has a small factor");
+		}
+		if (n.isProbablePrime(COMPOSITE_CERTAINTY))
+		{
+			throw new GeneralSecurityException("Remote n is prime");
+		}
+	}
+	
+	/**
+	 * @param peer label of a peer
+	 * @param previous fingerprint pinned to the peer
+	 * @param fingerprint fingerprint of the key the peer presented
+	 * @return exception refusing the peer's changed key
+	 */
+	private GeneralSecurityException changedKey(String peer, String previous, String fingerprint)
+	{
+		return new GeneralSecurityException("Key of " + peer + " has changed from " + previous + " to "
+				+ fingerprint + (file != null ? ", remove its line from " + file + " if the change is expected" : ""));
+	}
+	
+	/**
+	 * Pins a checked key to a peer, appending it to the known peers file. A peer
+	 * that already has a different key pinned is refused unless ACCEPT_CHANGED_KEYS
+	 * is set, and a new peer is refused once MAX_PEERS are pinned.
+	 * @param peer label of the peer, free of whitespace
+	 * @param fingerprint fingerprint of a key that passed the checks
+	 * @throws GeneralSecurityException if the key cannot be pinned to the peer
+	 */
+	private synchronized void pin(String peer, String fingerprint) throws GeneralSecurityException
+	{
+		String previous = pinned.get(peer);
+		if (fingerprint.equals(previous))
+		{
+			return;
+		}
+		if (previous != null && !ACCEPT_CHANGED_KEYS)
+		{
+			throw changedKey(peer, previous, fingerprint);
+		}
+		if (previous == null && pinned.size() >= MAX_PEERS)
+		{
+			throw new GeneralSecurityException("Key of " + peer + " not pinned, " + MAX_PEERS
+					+ " peers are already known");
+		}
+		
+		if (previous != null)
+		{
+			System.out.println("Key of " + peer + " has changed from " + previous + " to " + fingerprint);
+		}
+		pinned.put(peer, fingerprint);
+		keys.remove(peer);
+		
+		if (file == null)
+		{
+			return;
+		}
+		
+		// a new peer is appended, a changed key rewrites the file so it keeps one line per peer
+		try (BufferedWriter knownPeersOutput = new BufferedWriter(new FileWriter(file, previous == null)))
+		{
+			if (previous == null)
+			{
+				knownPeersOutput.write(fingerprint + " " + peer + "\n");
+				return;
+			}
+			for (Map.Entry<String, String> pin : pinned.entrySet())
+			{
+				knownPeersOutput.write(pin.getValue() + " " + pin.getKey() + "\n");
+			}
+		}
+		catch (IOException ioe) // pin is kept in memory for this run
+		{
+			System.out.println("Known peers file " + file + " could not be updated: " + ioe.getMessage());
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram for a single operation. Recording takes a few
+ * atomic adds, so it is cheap enough to wrap every RSA exponentiation.
+ * <p>
+ * Latencies are counted in log-linear buckets: every power of two of
+ * nanoseconds is split into four buckets, so a percentile is reported within
+ * about 12% of the true value while the whole range of a long fits in
+ * 248 counters.
+ * @author Colby Bratton
+ *
+ */
+public final class LatencyHistogram {
+	
+	// bits of each power of two used to pick a bucket within it
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	
+	// enough buckets for any non-negative long
+	private static final int BUCKET_COUNT = (Long.SIZE - SUB_BITS) * SUB_BUCKETS;
+	
+	// name the operation is published under
+	private final String name;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+	
+	/**
+	 * Constructor to build an empty histogram
+	 * @param name name the operation is published under
+	 */
+	public LatencyHistogram(String name)
+	{
+		this.name = name;
+	}
+	
+	/**
+	 * Records an operation that started at a System.nanoTime() reading and has just finished
+	 * @param startNanos System.nanoTime() when the operation started
+	 */
+	public void recordSince(long startNanos)
+	{
+		record(System.nanoTime() - startNanos);
+	}
+	
+	/**
+	 * Records a single latency
+	 * @param nanos latency in nanoseconds, negative values count as zero
+	 */
+	public void record(long nanos)
+	{
+		nanos = Math.max(nanos, 0);
+		
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.increment();
+		totalNanos.add(nanos);
+		if (nanos > maxNanos.get())
+		{
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+	}
+	
+	/**
+	 * @return name the operation is published under
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * @return number of latencies recorded
+	 */
+	public long getCount()
+	{
+		return count.sum();
+	}
+	
+	/**
+	 * Estimates a percentile from the bucket counts
+	 * @param fraction percentile as a fraction, e.g. 0.99
+	 * @return latency in nanoseconds at or below which the fraction of operations finished
+	 */
+	public long percentile(double fraction)
+	{
+		// counts are read once, so the walk sees a consistent total
+		long[] counts = new long[BUCKET_COUNT];
+		long total = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0)
+		{
+			return 0;
+		}
+		
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				// middle of the bucket, never above the largest value seen
+				return Math.min(lowerBound(i) + bucketWidth(i) / 2, maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+	
+	/**
+	 * Takes a snapshot of the histogram for publishing
+	 * @return counts and latencies in microseconds
+	 */
+	public OperationStats snapshot()
+	{
+		long n = count.sum();
+		double mean = n == 0 ? 0 : (double) totalNanos.sum() / n;
+		
+		return new OperationStats(name, n, toMicros(mean), toMicros(percentile(0.50)),
+				toMicros(percentile(0.90)), toMicros(percentile(0.99)), toMicros(maxNanos.get()));
+	}
+	
+	/**
+	 * Forgets every recorded latency. Latencies recorded while the reset is in
+	 * progress may be partly kept.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++)
+		{
+			buckets.set(i, 0);
+		}
+		count.reset();
+		totalNanos.reset();
+		maxNanos.set(0);
+	}
+	
+	/**
+	 * Finds the bucket a latency is counted in. Values below four get a bucket
+	 * each, above that the top three bits of the value pick the bucket.
+	 */
+	private static int bucketOf(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+		{
+			return (int) nanos;
+		}
+		
+		int msb = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (msb - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+	
+	/**
+	 * @return smallest latency counted in a bucket
+	 */
+	private static long lowerBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (bucket / SUB_BUCKETS - 1);
+	}
+	
+	/**
+	 * @return number of distinct latencies counted in a bucket
+	 */
+	private static long bucketWidth(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+		{
+			return 1;
+		}
+		return 1L << (bucket / SUB_BUCKETS - 1);
+	}
+	
+	/**
+	 * @return nanoseconds as microseconds
+	 */
+	private static double toMicros(double nanos)
+	{
+		return nanos / 1000.0;
+	}
+}
@@ -0,0 +1,527 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receive side of a PKI session. Applies MODE and KEY control frames and
+ * decrypts DATA frames with the mode currently in effect, inflating the ones
+ * sent compressed. When run on its own thread it prints every message as it
+ * arrives, so the local user may keep sending without waiting for the remote
+ * user to reply.
+ * @author Colby Bratton
+ *
+ */
+public class MessageReceiver implements Runnable {
+	
+	// latency of inflating a compressed message, published by PKIMetrics
+	private static final LatencyHistogram INFLATE_LATENCY = PKIMetrics.getDefault().histogram("compression.inflate");
+	
+	// first size of the inflate buffer for a message, doubled as the message inflates
+	private static final int MIN_INFLATE_BYTES = 64 * 1024;
+	
+	// largest message or inflate buffer kept between messages, larger ones are
+	// released once the message in them is no longer needed
+	private static final int MAX_RETAINED_BYTES = 1024 * 1024;
+	
+	// frame reader from the remote user, null when frames are supplied through accept()
+	private final FrameReader reader;
+	
+	// RSA instance of the local user, shared with any other sessions
+	private final RSA rsa;
+	
+	// remote user and Hybrid session keys, the receive side only touches the inbound key
+	private final HybridSession hybrid;
+	
+	// mode announced by the remote user's last MODE frame, 0 before the first one
+	private byte currentMode;
+	
+	// sequence number expected on the next frame
+	private int nextSequence;
+	
+	// true when a ChannelMultiplexer checks sequence numbers and channels before
+	// handing this receiver the frames of one logical channel
+	private boolean multiplexed;
+	
+	// pins the remote user's public key, null if HELLO frames are not accepted
+	private final KnownPeers knownPeers;
+	
+	// where the remote user is connecting from, recorded when its key is first pinned
+	private final String peerLabel;
+	
+	// true once the remote user's HELLO frame has been accepted
+	private boolean helloReceived;
+	
+	// true if the last message received carried a verified signature
+	private boolean lastMessageSigned;
+	
+	// messages returned by receiveBuffer() are decrypted into this buffer, grown as needed and reused
+	private ByteBuffer messageBuffer = ByteBuffer.allocate(0);
+	
+	// inflates compressed messages into inflateBuffer, which then trades places with messageBuffer
+	private final Inflater inflater = new Inflater(true);
+	private ByteBuffer inflateBuffer = ByteBuffer.allocate(0);
+	
+	// traffic counters of the session, null when the session is not tracked
+	private SessionMetrics metrics;
+	
+	/**
+	 * Constructor to build the receive side of a session
+	 * @param reader frame reader from the remote user, may be null if
+	 *        frames are only supplied through accept()
+	 * @param rsa RSA instance of the local user
+	 * @param hybrid Hybrid session shared with the send side
+	 */
+	public MessageReceiver(FrameReader reader, RSA rsa, HybridSession hybrid)
+	{
+		this(reader, rsa, hybrid, null, null);
+	}
+	
+	/**
+	 * Constructor to build the receive side of a session that learns the remote
+	 * user's public key from its HELLO frame
+	 * @param reader frame reader from the remote user, may be null if
+	 *        frames are only supplied through accept()
+	 * @param rsa RSA instance of the local user
+	 * @param hybrid Hybrid session shared with the send side, given the remote user's key
+	 * @param knownPeers checks the remote user's public key
+	 * @param peerLabel where the remote user is connecting from
+	 */
+	public MessageReceiver(FrameReader reader, RSA rsa, HybridSession hybrid,
+			KnownPeers knownPeers, String peerLabel)
+	{
+		this.reader = reader;
+		this.rsa = rsa;
+		this.hybrid = hybrid;
+		this.knownPeers = knownPeers;
+		this.peerLabel = peerLabel;
+	}
+	
+	/**
+	 * Reads frames until the remote user's HELLO frame has been accepted
+	 * @return key of the remote user
+	 * @throws IOException if the connection fails or a message arrives first
+	 * @throws GeneralSecurityException if the remote user's public key is rejected
+	 */
+	public RSAPeerKey awaitPeer() throws IOException, GeneralSecurityException
+	{
+		while (!helloReceived)
+		{
+			if (accept(reader.read()) != null)
+			{
+				throw new IOException("Message received before public keys were exchanged");
+			}
+		}
+		return hybrid.getPeer();
+	}
+	
+	/**
+	 * Receives and prints messages until the connection is closed
+	 */
+	@Override
+	public void run()
+	{
+		while (true)
+		{
+			try
+			{
+				byte[] message = receive();
+				
+				// print decrypted message to terminal
+				if (getMode().contentEquals("C"))
+				{
+					System.out.println("\n" + new String(message));
+				}
+				else if (lastMessageSigned)
+				{
+					System.out.println("\nSigned Message (signature verified)!: " + new String(message));
+				}
+				else
+				{
+					System.out.println("\nAuthentication Message!: " + new String(message));
+				}
+			}
+			catch (EOFException eof) // remote user quit
+			{
+				System.out.println("\nRemote user closed the connection");
+				return;
+			}
+			catch (IOException ioe) // connection dropped, closed locally, or broken framing
+			{
+				return;
+			}
+			catch (GeneralSecurityException | IllegalArgumentException e) // message could not be decrypted
+			{
+				System.out.println("\nReceived message could not be decrypted: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Reads frames until a complete message has been received
+	 * @return byte form of the decrypted message
+	 * @throws IOException if the connection fails or a frame is malformed
+	 * @throws GeneralSecurityException if a Hybrid message fails authentication or a signature is not valid
+	 */
+	public byte[] receive() throws IOException, GeneralSecurityException
+	{
+		byte[] message = null;
+		while (message == null)
+		{
+			message = accept(reader.read());
+		}
+		return message;
+	}
+	
+	/**
+	 * Reads frames until a complete message has been received, decrypting it into
+	 * a buffer the receiver reuses. Block mode messages are decrypted from the
+	 * frame straight into that buffer, so receiving them allocates no message array.
+	 * @return buffer holding the decrypted message between its position and limit,
+	 *         only valid until the next call
+	 * @throws IOException if the connection fails or a frame is malformed
+	 * @throws GeneralSecurityException if a Hybrid message fails authentication or a signature is not valid
+	 */
+	public ByteBuffer receiveBuffer() throws IOException, GeneralSecurityException
+	{
+		// the last message is no longer valid, so a large buffer need not wait for the next one
+		releaseLargeBuffers();
+		
+		ByteBuffer message = null;
+		while (message == null)
+		{
+			message = acceptBuffer(reader.read());
+		}
+		return message;
+	}
+	
+	/**
+	 * Handles a single frame
+	 * @param frame next frame from the remote user
+	 * @return decrypted message for a DATA frame, null for a control frame
+	 * @throws IOException if the frame is out of sequence or not allowed here
+	 * @throws GeneralSecurityException if a Hybrid message fails authentication or a signature is not valid
+	 */
+	public byte[] accept(PKIFrame frame) throws IOException, GeneralSecurityException
+	{
+		byte[] message;
+		try
+		{
+			if (!acceptFrame(frame))
+			{
+				return null;
+			}
+			message = openMessage(frame);
+		}
+		finally
+		{
+			// the frame's payload goes back to its pool once it has been handled
+			frame.release();
+		}
+		
+		if ((frame.getFlags() & PKIFrame.FLAG_COMPRESSED) != 0)
+		{
+			ByteBuffer inflated = inflate(ByteBuffer.wrap(message));
+			message = new byte[inflated.remaining()];
+			inflated.get(message);
+			releaseLargeBuffers();
+		}
+		
+		if (metrics != null)
+		{
+			metrics.messageReceived();
+		}
+		return message;
+	}
+	
+	/**
+	 * Handles a single frame, decrypting a message into the buffer the receiver reuses
+	 * @param frame next frame from the remote user
+	 * @return buffer holding the decrypted message for a DATA frame, only valid
+	 *         until the next call, or null for a control frame
+	 * @throws IOException if the frame is out of sequence or not allowed here
+	 * @throws GeneralSecurityException if a Hybrid message fails authentication or a signature is not valid
+	 */
+	public ByteBuffer acceptBuffer(PKIFrame frame) throws IOException, GeneralSecurityException
+	{
+		releaseLargeBuffers();
+		try
+		{
+			if (!acceptFrame(frame))
+			{
+				return null;
+			}
+			
+			String selection = PKIFrame.selectionOf(currentMode);
+			if (HybridSession.isHybrid(selection) || (frame.getFlags() & PKIFrame.FLAG_SIGNED) != 0)
+			{
+				// Hybrid and signed messages are opened as whole arrays
+				byte[] message = openMessage(frame);
+				messageBuffer = reserve(messageBuffer, message.length).put(message);
+			}
+			else
+			{
+				lastMessageSigned = false;
+				
+				// block mode messages are decrypted straight out of the (pooled) payload buffer
+				RSAMode mode = RSAMode.fromSelection(selection);
+				ByteBuffer payload = frame.getPayloadBuffer();
+				messageBuffer = reserve(messageBuffer, rsa.decryptedLength(payload, mode, hybrid.getPeer()));
+				rsa.decryptBlocks(payload, messageBuffer, mode, hybrid.getPeer());
+			}
+		}
+		finally
+		{
+			// the frame's payload goes back to its pool once it has been handled
+			frame.release();
+		}
+		
+		messageBuffer.flip();
+		if ((frame.getFlags() & PKIFrame.FLAG_COMPRESSED) != 0)
+		{
+			// the two buffers trade places, so both keep being reused
+			ByteBuffer inflated = inflate(messageBuffer);
+			inflateBuffer = messageBuffer.capacity() > MAX_RETAINED_BYTES ? ByteBuffer.allocate(0) : messageBuffer;
+			messageBuffer = inflated;
+		}
+		
+		if (metrics != null)
+		{
+			metrics.messageReceived();
+		}
+		return messageBuffer;
+	}
+	
+	/**
+	 * Checks a frame's sequence number and handles it if it is a control frame
+	 * @param frame next frame from the remote user
+	 * @return true if the frame is a DATA frame whose message is ready to be opened
+	 * @throws IOException if the frame is out of sequence or not allowed here
+	 * @throws GeneralSecurityException if the remote user's key or session key is rejected
+	 */
+	private boolean acceptFrame(PKIFrame frame) throws IOException, GeneralSecurityException
+	{
+		if (!multiplexed)
+		{
+			// a gap or repeat means frames were lost, injected, or replayed
+			if (frame.getSequence() != nextSequence)
+			{
+				throw new IOException("Frame " + frame.getSequence() + " received, expected " + nextSequence);
+			}
+			nextSequence++;
+			
+			if (frame.getChannel() != 0)
+			{
+				throw new IOException("Frame for channel " + frame.getChannel() + " on a session without channels");
+			}
+		}
+		
+		if (metrics != null)
+		{
+			metrics.frameReceived(PKIFrame.HEADER_BYTES + frame.getPayloadLength());
+		}
+		
+		switch (frame.getType())
+		{
+			case PKIFrame.TYPE_MODE:
+				currentMode = frame.getMode();
+				return false;
+			case PKIFrame.TYPE_HELLO:
+				// only one HELLO per session, and only where one is expected
+				if (knownPeers == null || helloReceived)
+				{
+					throw new IOException("Unexpected HELLO frame");
+				}
+				BigInteger[] key = PKIFrame.decodePublicKey(frame.getPayload());
+				hybrid.setPeer(knownPeers.verify(key[0], key[1], peerLabel));
+				hybrid.setPeerAcceptsCompression((frame.getFlags() & PKIFrame.FLAG_COMPRESSED) != 0);
+				helloReceived = true;
+				return false;
+			case PKIFrame.TYPE_KEY:
+				requirePeer();
+				hybrid.acceptInboundKey(frame.getPayload());
+				return false;
+			case PKIFrame.TYPE_DATA:
+				requirePeer();
+				break;
+			default:
+				throw new IOException("Unknown frame type " + frame.getType());
+		}
+		
+		// data must follow a MODE frame and match it
+		if (currentMode == 0 || frame.getMode() != currentMode)
+		{
+			throw new IOException("Message sent without negotiating its mode");
+		}
+		return true;
+	}
+	
+	/**
+	 * Decrypts the message of an accepted DATA frame into a new array
+	 * @param frame DATA frame from the remote user
+	 * @return decrypted message
+	 * @throws GeneralSecurityException if a Hybrid message fails authentication or a signature is not valid
+	 */
+	private byte[] openMessage(PKIFrame frame) throws GeneralSecurityException
+	{
+		String selection = PKIFrame.selectionOf(currentMode);
+		byte[] message;
+		boolean hybridMessage = HybridSession.isHybrid(selection);
+		lastMessageSigned = !hybridMessage && (frame.getFlags() & PKIFrame.FLAG_SIGNED) != 0;
+		if (hybridMessage)
+		{
+			message = hybrid.open(frame.getPayload());
+		}
+		else if (lastMessageSigned)
+		{
+			// throws if the signature does not match the remote user's key
+			message = rsa.decryptSigned(frame.getPayload(), RSAMode.fromSelection(selection), hybrid.getPeer());
+		}
+		else
+		{
+			message = rsa.decryptBlocks(frame.getPayload(), RSAMode.fromSelection(selection), hybrid.getPeer());
+		}
+		return message;
+	}
+	
+	/**
+	 * Inflates a compressed message straight into the reused inflate buffer.
+	 * The buffer is doubled only as the inflater fills it, and output stops at
+	 * the length the message declares, itself limited to MAX_PAYLOAD_LENGTH, so
+	 * a small message can neither expand into a memory blowup nor reserve
+	 * memory for a length it never inflates to.
+	 * @param compressed original length followed by a raw deflate stream, consumed
+	 * @return inflate buffer, holding the message between its position and limit
+	 * @throws IOException if the message is malformed or does not inflate to its length
+	 */
+	private ByteBuffer inflate(ByteBuffer compressed) throws IOException
+	{
+		long start = System.nanoTime();
+		int length = compressed.remaining() >= Integer.BYTES ? compressed.getInt() : -1;
+		if (length < 0 || length > PKIFrame.MAX_PAYLOAD_LENGTH)
+		{
+			throw new IOException("Compressed message has an invalid length: " + length);
+		}
+		
+		// one byte of room past the declared length shows up a message that inflates longer
+		int limit = length + 1;
+		inflateBuffer = reserve(inflateBuffer, Math.min(limit, MIN_INFLATE_BYTES));
+		inflateBuffer.limit(Math.min(limit, inflateBuffer.capacity()));
+		
+		inflater.setInput(compressed);
+		boolean finished;
+		try
+		{
+			while (!inflater.finished())
+			{
+				if (!inflateBuffer.hasRemaining() && inflateBuffer.limit() < limit)
+				{
+					// grow only once the inflater has filled the buffer
+					int capacity = (int) Math.min(2L * inflateBuffer.capacity(), limit);
+					inflateBuffer = ByteBuffer.allocate(capacity).put(inflateBuffer.flip());
+				}
+				
+				if (inflater.inflate(inflateBuffer) == 0
+						&& (inflater.needsInput() || inflater.needsDictionary() || !inflateBuffer.hasRemaining()))
+				{
+					break;
+				}
+			}
+			finished = inflater.finished();
+		}
+		catch (DataFormatException dfe) // not a deflate stream
+		{
+			throw new IOException("Compressed message is malformed", dfe);
+		}
+		finally
+		{
+			// drop the inflater's hold on the compressed buffer
+			inflater.reset();
+		}
+		
+		if (!finished || inflateBuffer.position() != length)
+		{
+			throw new IOException("Compressed message does not inflate to its length");
+		}
+		INFLATE_LATENCY.recordSince(start);
+		return inflateBuffer.flip();
+	}
+	
+	/**
+	 * Clears a reused buffer, replacing it with a larger one if it is too small
+	 * @param buffer buffer to be reused
+	 * @param length number of bytes it must hold
+	 * @return cleared buffer with room for length bytes
+	 */
+	private static ByteBuffer reserve(ByteBuffer buffer, int length)
+	{
+		if (buffer.capacity() < length)
+		{
+			return ByteBuffer.allocate(length);
+		}
+		return buffer.clear();
+	}
+	
+	/**
+	 * Releases the message and inflate buffers if an unusually large message grew
+	 * them, so an idle session does not keep holding that memory. Called only
+	 * once the last message returned is no longer valid.
+	 */
+	void releaseLargeBuffers()
+	{
+		if (messageBuffer.capacity() > MAX_RETAINED_BYTES)
+		{
+			messageBuffer = ByteBuffer.allocate(0);
+		}
+		if (inflateBuffer.capacity() > MAX_RETAINED_BYTES)
+		{
+			inflateBuffer = ByteBuffer.allocate(0);
+		}
+	}
+	
+	/**
+	 * Checks that the remote user's public key is known before a KEY or DATA frame is used
+	 * @throws IOException if the session expects a HELLO frame that has not arrived
+	 */
+	private void requirePeer() throws IOException
+	{
+		if ((knownPeers != null && !helloReceived) || hybrid.getPeer() == null)
+		{
+			throw new IOException("Message received before public keys were exchanged");
+		}
+	}
+	
+	/**
+	 * Hands sequence number and channel checks to a ChannelMultiplexer, which sees
+	 * every frame of the connection while this receiver sees only one channel's
+	 */
+	void setMultiplexed()
+	{
+		multiplexed = true;
+	}
+	
+	/**
+	 * Counts the traffic of this receive side in a session's metrics
+	 * @param metrics traffic counters of the session
+	 */
+	public void setMetrics(SessionMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * @return menu letter of the mode currently in effect
+	 */
+	public String getMode()
+	{
+		return PKIFrame.selectionOf(currentMode);
+	}
+}
@@ -0,0 +1,339 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.function.IntConsumer;
+import java.util.zip.Deflater;
+
+/**
+ * Send side of a PKI session. Encrypts messages with the selected mode and
+ * writes them as frames, sending a MODE control frame only when the mode
+ * changes and a KEY frame ahead of the first Hybrid message. Every frame
+ * belonging to one message is written with a single flush. When the remote
+ * user accepts it, a message of at least COMPRESSION_THRESHOLD bytes is
+ * deflated before it is encrypted, so it takes fewer RSA blocks and fewer
+ * bytes on the wire; a compressed DATA payload decrypts to the original
+ * length (4 bytes) followed by a raw deflate stream. The senders of a
+ * ChannelMultiplexer's channels share one frame writer and Hybrid session,
+ * taking the writer's lock for each frame.
+ * @author Colby Bratton
+ *
+ */
+public class MessageSender {
+	
+	// when true (the default), Authentication and Both messages are sent hash-then-sign,
+	// -Dpki.signatures=false sends them with the whole message raised to the private key
+	static final boolean SIGN_MESSAGES = Boolean.parseBoolean(System.getProperty("pki.signatures", "true"));
+	
+	// when true (the default), HELLO frames offer compression and messages are compressed
+	// for remote users that offer it too, -Dpki.compression=false turns it off
+	static final boolean COMPRESS_MESSAGES = Boolean.parseBoolean(System.getProperty("pki.compression", "true"));
+	
+	// shorter messages are never compressed, set with -Dpki.compression.minBytes=<bytes>
+	// (at least 16, below that nothing is gained)
+	static final int COMPRESSION_THRESHOLD = Math.max(16, Integer.getInteger("pki.compression.minBytes", 128));
+	
+	// latency of compressing a message, published by PKIMetrics
+	private static final LatencyHistogram DEFLATE_LATENCY = PKIMetrics.getDefault().histogram("compression.deflate");
+	
+	// frame writer to the remote user, possibly shared with the senders of other channels
+	private final FrameWriter writer;
+	
+	// logical channel the frames are sent on, 0 for the session's own
+	private final int channel;
+	
+	// RSA instance of the local user, shared with any other sessions
+	private final RSA rsa;
+	
+	// remote user and Hybrid session keys, the send side only touches the outbound key
+	private final HybridSession hybrid;
+	
+	// mode most recently announced to the remote user, 0 before the first MODE frame
+	private byte currentMode;
+	
+	// traffic counters of the session, null when the session is not tracked
+	private SessionMetrics metrics;
+	
+	// told the payload length of every DATA frame as it is queued, null when not needed
+	private IntConsumer dataListener;
+	
+	// block mode messages are encrypted into this buffer, grown as needed and reused
+	private ByteBuffer encryptBuffer = ByteBuffer.allocate(0);
+	
+	// compresses messages into compressBuffer, both reused for every message
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private ByteBuffer compressBuffer = ByteBuffer.allocate(0);
+	
+	/**
+	 * Constructor to build the send side of a session
+	 * @param writer frame writer to the remote user
+	 * @param rsa RSA instance of the local user
+	 * @param hybrid Hybrid session shared with the receive side
+	 */
+	public MessageSender(FrameWriter writer, RSA rsa, HybridSession hybrid)
+	{
+		this(writer, rsa, hybrid, 0);
+	}
+	
+	/**
+	 * Constructor to build the send side of a logical channel
+	 * @param writer frame writer to the remote user, shared by every channel of the connection
+	 * @param rsa RSA instance of the local user
+	 * @param hybrid Hybrid session shared by every channel of the connection
+	 * @param channel logical channel the frames are sent on
+	 */
+	MessageSender(FrameWriter writer, RSA rsa, HybridSession hybrid, int channel)
+	{
+		this.writer = writer;
+		this.rsa = rsa;
+		this.hybrid = hybrid;
+		this.channel = channel;
+	}
+	
+	/**
+	 * Sends the local user's public key in a HELLO frame. Must be the first
+	 * frame of the session.
+	 * @throws IOException if the frame cannot be written
+	 */
+	public synchronized void sendHello() throws IOException
+	{
+		byte flags = COMPRESS_MESSAGES ? PKIFrame.FLAG_COMPRESSED : 0;
+		write(PKIFrame.TYPE_HELLO, (byte) 0, flags, ByteBuffer.wrap(PKIFrame.encodePublicKey(rsa.getN(), rsa.getPubKey())));
+		flush();
+	}
+	
+	/**
+	 * Encrypts and sends a single message
+	 * @param selection C, A, B, or H menu letter
+	 * @param message message, in bytes, to be encrypted
+	 * @throws IOException if the frames cannot be written
+	 * @throws GeneralSecurityException if a Hybrid message cannot be encrypted
+	 */
+	public synchronized void send(String selection, byte[] message)
+			throws IOException, GeneralSecurityException
+	{
+		queue(selection, message);
+		flush();
+	}
+	
+	/**
+	 * Encrypts and sends a single message held in a buffer
+	 * @param selection C, A, B, or H menu letter
+	 * @param message buffer whose remaining bytes are encrypted, left at its limit
+	 * @throws IOException if the frames cannot be written
+	 * @throws GeneralSecurityException if a Hybrid message cannot be encrypted
+	 */
+	public synchronized void send(String selection, ByteBuffer message)
+			throws IOException, GeneralSecurityException
+	{
+		queue(selection, message);
+		flush();
+	}
+	
+	/**
+	 * Encrypts a message and buffers its frames without writing them, so
+	 * several messages may be coalesced into one write by flush()
+	 * @param selection C, A, B, or H menu letter
+	 * @param message message, in bytes, to be encrypted
+	 * @throws IOException if the buffer had to be written and the write failed
+	 * @throws GeneralSecurityException if a Hybrid message cannot be encrypted
+	 */
+	public synchronized void queue(String selection, byte[] message)
+			throws IOException, GeneralSecurityException
+	{
+		queue(selection, ByteBuffer.wrap(message));
+	}
+	
+	/**
+	 * Encrypts a message held in a buffer and buffers its frames without writing
+	 * them. Block mode messages are encrypted from the buffer straight into a
+	 * buffer the sender reuses, so sending them allocates nothing per message.
+	 * @param selection C, A, B, or H menu letter
+	 * @param message buffer whose remaining bytes are encrypted, left at its limit
+	 * @throws IOException if the buffer had to be written and the write failed
+	 * @throws GeneralSecurityException if a Hybrid message cannot be encrypted
+	 */
+	public synchronized void queue(String selection, ByteBuffer message)
+			throws IOException, GeneralSecurityException
+	{
+		byte mode = PKIFrame.modeOf(selection);
+		
+		// announce the mode only when it changes
+		if (mode != currentMode)
+		{
+			write(PKIFrame.TYPE_MODE, mode, (byte) 0, ByteBuffer.allocate(0));
+			currentMode = mode;
+		}
+		
+		ByteBuffer encryptedMessage;
+		byte flags = 0;
+		RSAMode rsaMode = RSAMode.fromSelection(selection);
+		
+		// compress first, so every mode encrypts the shorter message
+		if (COMPRESS_MESSAGES && hybrid.peerAcceptsCompression() && message.remaining() >= COMPRESSION_THRESHOLD)
+		{
+			ByteBuffer compressed = compress(message);
+			if (compressed != null)
+			{
+				message = compressed;
+				flags |= PKIFrame.FLAG_COMPRESSED;
+			}
+		}
+		
+		if (HybridSession.isHybrid(selection))
+		{
+			// agree on a session key with the first Hybrid message of any channel,
+			// the KEY frame is queued before another channel can seal under the key
+			synchronized (hybrid)
+			{
+				if (!hybrid.hasOutboundKey())
+				{
+					write(PKIFrame.TYPE_KEY, mode, (byte) 0, ByteBuffer.wrap(hybrid.createOutboundKey()));
+				}
+			}
+			encryptedMessage = ByteBuffer.wrap(hybrid.seal(toArray(message)));
+		}
+		else if (SIGN_MESSAGES && rsaMode != RSAMode.CONFIDENTIALITY)
+		{
+			// one private key operation per message, whatever its length
+			encryptedMessage = ByteBuffer.wrap(rsa.encryptSigned(toArray(message), rsaMode, hybrid.getPeer()));
+			flags |= PKIFrame.FLAG_SIGNED;
+		}
+		else
+		{
+			int length = rsa.encryptedLength(message.remaining(), rsaMode, hybrid.getPeer());
+			if (encryptBuffer.capacity() < length)
+			{
+				encryptBuffer = ByteBuffer.allocate(length);
+			}
+			encryptBuffer.clear();
+			rsa.encryptBlocks(message, encryptBuffer, rsaMode, hybrid.getPeer());
+			encryptedMessage = encryptBuffer.flip();
+		}
+		
+		write(PKIFrame.TYPE_DATA, mode, flags, encryptedMessage);
+		if (metrics != null)
+		{
+			metrics.messageSent();
+		}
+	}
+	
+	/**
+	 * Writes every queued frame to the remote user
+	 * @throws IOException if the write fails
+	 */
+	public synchronized void flush() throws IOException
+	{
+		synchronized (writer)
+		{
+			writer.flush();
+		}
+	}
+	
+	/**
+	 * Counts the traffic of this send side in a session's metrics
+	 * @param metrics traffic counters of the session
+	 */
+	public synchronized void setMetrics(SessionMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Sets the listener told the payload length of every DATA frame this sender
+	 * queues. It runs while the frame writer is held, so it always runs before
+	 * any flush can send the frame.
+	 * @param dataListener listener counting the DATA payload bytes sent
+	 */
+	synchronized void setDataListener(IntConsumer dataListener)
+	{
+		this.dataListener = dataListener;
+	}
+	
+	/**
+	 * Buffers a frame on this sender's channel and counts its bytes
+	 */
+	private void write(byte type, byte mode, byte flags, ByteBuffer payload) throws IOException
+	{
+		int length = payload.remaining();
+		if (metrics != null)
+		{
+			metrics.frameSent(PKIFrame.HEADER_BYTES + length);
+		}
+		synchronized (writer)
+		{
+			writer.write(channel, type, mode, flags, payload);
+			
+			if (type == PKIFrame.TYPE_DATA && dataListener != null)
+			{
+				dataListener.accept(length);
+			}
+		}
+	}
+	
+	/**
+	 * Deflates a message into the reused compression buffer, behind its original
+	 * length. Gives up as soon as the output would not be shorter than the message.
+	 * @param message buffer whose remaining bytes are compressed, left at its limit
+	 *        on success and untouched otherwise
+	 * @return compressed message, or null if the message does not compress
+	 */
+	private ByteBuffer compress(ByteBuffer message)
+	{
+		long start = System.nanoTime();
+		int position = message.position();
+		int length = message.remaining();
+		
+		if (compressBuffer.capacity() < length)
+		{
+			compressBuffer = ByteBuffer.allocate(length);
+		}
+		// one byte short of the message, so only output that saves space fits
+		compressBuffer.clear().limit(length - 1);
+		compressBuffer.putInt(length);
+		
+		deflater.reset();
+		deflater.setInput(message);
+		deflater.finish();
+		while (!deflater.finished() && compressBuffer.hasRemaining())
+		{
+			deflater.deflate(compressBuffer);
+		}
+		boolean smaller = deflater.finished();
+		
+		// drop the deflater's hold on the message buffer
+		deflater.reset();
+		DEFLATE_LATENCY.recordSince(start);
+		
+		if (!smaller)
+		{
+			message.position(position);
+			return null;
+		}
+		message.position(position + length);
+		return compressBuffer.flip();
+	}
+	
+	/**
+	 * Returns the remaining bytes of a buffer as an array, for the Hybrid and
+	 * signed paths, which work on whole arrays. A buffer wrapping a whole array
+	 * gives back that array without a copy.
+	 */
+	private static byte[] toArray(ByteBuffer message)
+	{
+		if (message.hasArray() && message.arrayOffset() == 0 && message.position() == 0
+				&& message.remaining() == message.array().length)
+		{
+			message.position(message.limit());
+			return message.array();
+		}
+		
+		byte[] copy = new byte[message.remaining()];
+		message.get(copy);
+		return copy;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+/**
+ * Snapshot of a LatencyHistogram, published through JMX as one row per
+ * operation. All latencies are in microseconds.
+ * @author Colby Bratton
+ *
+ */
+public final class OperationStats {
+	
+	private final String name;
+	private final long count;
+	private final double meanMicros;
+	private final double p50Micros;
+	private final double p90Micros;
+	private final double p99Micros;
+	private final double maxMicros;
+	
+	/**
+	 * Constructor to build a snapshot
+	 * @param name name of the operation
+	 * @param count number of operations recorded
+	 * @param meanMicros mean latency
+	 * @param p50Micros median latency
+	 * @param p90Micros 90th percentile latency
+	 * @param p99Micros 99th percentile latency
+	 * @param maxMicros largest latency
+	 */
+	public OperationStats(String name, long count, double meanMicros, double p50Micros,
+			double p90Micros, double p99Micros, double maxMicros)
+	{
+		this.name = name;
+		this.count = count;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p90Micros = p90Micros;
+		this.p99Micros = p99Micros;
+		this.maxMicros = maxMicros;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public long getCount()
+	{
+		return count;
+	}
+	
+	public double getMeanMicros()
+	{
+		return meanMicros;
+	}
+	
+	public double getP50Micros()
+	{
+		return p50Micros;
+	}
+	
+	public double getP90Micros()
+	{
+		return p90Micros;
+	}
+	
+	public double getP99Micros()
+	{
+		return p99Micros;
+	}
+	
+	public double getMaxMicros()
+	{
+		return maxMicros;
+	}
+	
+	/**
+	 * @return single line of the text dump
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format("%-32s %10d %12.1f %12.1f %12.1f %12.1f %12.1f",
+				name, count, meanMicros, p50Micros, p90Micros, p99Micros, maxMicros);
+	}
+}
@@ -0,0 +1,423 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+
+/**
+ * A logical channel of a ChannelMultiplexer: one conversation among many
+ * sharing a single connection and its key exchange. Messages are sent and
+ * received exactly as on a session of their own, in any mode, with their own
+ * MODE frames. Any thread may send; one thread at a time receives.
+ * <p>
+ * Every channel but 0 is flow controlled. A sender may keep sending while
+ * fewer than WINDOW_BYTES of its DATA payloads are waiting to be taken by the
+ * remote receiver, so a message may overshoot the window but never starts past
+ * it, and the remote user hands credit back with a WINDOW frame once its
+ * application has taken half a window. A busy or stalled channel therefore
+ * holds at most a window and a message of the remote user's memory, and never
+ * holds up the other channels. Channel 0 carries the conversation of a session
+ * that opens no channels and, like one, is only slowed by the connection.
+ * <p>
+ * close() ends the local user's side only; messages already on the way, and
+ * any the remote user still sends, can be received until receive() reports
+ * the remote user's CLOSE with an EOFException.
+ * @author Colby Bratton
+ *
+ */
+public class PKIChannel {
+	
+	// DATA payload bytes a channel may have waiting at the remote user
+	public static final int WINDOW_BYTES = 256 * 1024;
+	
+	// number of the channel in frame headers
+	private final int id;
+	
+	// connection the channel belongs to
+	private final ChannelMultiplexer multiplexer;
+	
+	// send and receive sides, sharing the connection's writer and Hybrid session
+	private final MessageSender sender;
+	private final MessageReceiver receiver;
+	
+	// frames routed to the channel and not yet received, guarded by this
+	private final ArrayDeque<PKIFrame> inbound = new ArrayDeque<>();
+	
+	// DATA payload bytes the channel may still send before it has to wait
+	private long sendCredit = WINDOW_BYTES;
+	
+	// DATA payload bytes queued in inbound, and bytes received since the last WINDOW frame
+	private long queuedBytes;
+	private long takenBytes;
+	
+	// set by close() and by the remote user's CLOSE frame
+	private boolean localClosed;
+	private boolean remoteClosed;
+	
+	// why the connection ended, null while it is up
+	private IOException failure;
+	
+	/**
+	 * Constructor used by ChannelMultiplexer
+	 * @param id number of the channel
+	 * @param multiplexer connection the channel belongs to
+	 * @param sender send side on the channel
+	 * @param receiver receive side of the channel, fed by deliver()
+	 */
+	PKIChannel(int id, ChannelMultiplexer multiplexer, MessageSender sender, MessageReceiver receiver)
+	{
+		this.id = id;
+		this.multiplexer = multiplexer;
+		this.sender = sender;
+		this.receiver = receiver;
+		
+		// credit is taken as each DATA frame is queued, so a grant handing it back
+		// can never arrive first
+		if (id != 0)
+		{
+			sender.setDataListener(this::debit);
+		}
+	}
+	
+	/**
+	 * Encrypts and sends a single message, waiting for credit if the channel's
+	 * window is used up
+	 * @param selection C, A, B, or H menu letter
+	 * @param message message, in bytes, to be encrypted
+	 * @throws IOException if the channel is closed or the connection fails
+	 * @throws GeneralSecurityException if a Hybrid message cannot be encrypted
+	 */
+	public void send(String selection, byte[] message) throws IOException, GeneralSecurityException
+	{
+		send(selection, ByteBuffer.wrap(message));
+	}
+	
+	/**
+	 * Encrypts and sends a single message held in a buffer, waiting for credit if
+	 * the channel's window is used up
+	 * @param selection C, A, B, or H menu letter
+	 * @param message buffer whose remaining bytes are encrypted, left at its limit
+	 * @throws IOException if the channel is closed or the connection fails
+	 * @throws GeneralSecurityException if a Hybrid message cannot be encrypted
+	 */
+	public void send(String selection, ByteBuffer message) throws IOException, GeneralSecurityException
+	{
+		// the sender's lock keeps the credit check and the send together
+		synchronized (sender)
+		{
+			awaitCredit();
+			sender.send(selection, message);
+		}
+	}
+	
+	/**
+	 * Waits for the next message on the channel
+	 * @return byte form of the decrypted message
+	 * @throws EOFException once the remote user has closed the channel and every message was received
+	 * @throws IOException if the connection fails or a frame is malformed
+	 * @throws GeneralSecurityException if a Hybrid message fails authentication or a signature is not valid
+	 */
+	public byte[] receive() throws IOException, GeneralSecurityException
+	{
+		byte[] message = null;
+		while (message == null)
+		{
+			message = receiver.accept(take());
+		}
+		return message;
+	}
+	
+	/**
+	 * Waits for the next message on the channel, decrypting it into a buffer the
+	 * channel reuses
+	 * @return buffer holding the decrypted message between its position and limit,
+	 *         only valid until the next call
+	 * @throws EOFException once the remote user has closed the channel and every message was received
+	 * @throws IOException if the connection fails or a frame is malformed
+	 * @throws GeneralSecurityException if a Hybrid message fails authentication or a signature is not valid
+	 */
+	public ByteBuffer receiveBuffer() throws IOException, GeneralSecurityException
+	{
+		// the last message is no longer valid, so a large buffer need not wait for the next one
+		receiver.releaseLargeBuffers();
+		
+		ByteBuffer message = null;
+		while (message == null)
+		{
+			message = receiver.acceptBuffer(take());
+		}
+		return message;
+	}
+	
+	/**
+	 * Ends the local user's side of the channel. Does nothing if it already ended.
+	 * @throws IOException if the CLOSE frame cannot be written
+	 */
+	public void close() throws IOException
+	{
+		synchronized (sender)
+		{
+			synchronized (this)
+			{
+				if (localClosed)
+				{
+					return;
+				}
+				localClosed = true;
+			}
+			multiplexer.sendClose(this);
+		}
+	}
+	
+	/**
+	 * @return number of the channel in frame headers
+	 */
+	public int getId()
+	{
+		return id;
+	}
+	
+	/**
+	 * @return menu letter of the mode of the last message received
+	 */
+	public String getMode()
+	{
+		return receiver.getMode();
+	}
+	
+	/**
+	 * Sends the local user's public key, on channel 0 when the connection opens
+	 * @throws IOException if the frame cannot be written
+	 */
+	void sendHello() throws IOException
+	{
+		sender.sendHello();
+	}
+	
+	/**
+	 * Queues a MODE or DATA frame routed to the channel. Runs on the thread
+	 * reading the connection, which waits while channel 0 is full.
+	 * @param frame frame of this channel
+	 * @throws IOException if the frame breaks the channel's flow control or comes after its CLOSE
+	 */
+	synchronized void deliver(PKIFrame frame) throws IOException
+	{
+		if (remoteClosed)
+		{
+			throw new IOException("Frame received on channel " + id + " after it was closed");
+		}
+		
+		if (frame.getType() == PKIFrame.TYPE_DATA)
+		{
+			if (id == 0)
+			{
+				// channel 0 has no credit, the connection waits for its receiver instead
+				while (queuedBytes >= WINDOW_BYTES && failure == null)
+				{
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException ie) // reader stopped
+					{
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted waiting for channel 0");
+					}
+				}
+			}
+			// every byte not yet handed back counts against the window
+			else if (queuedBytes + takenBytes >= WINDOW_BYTES)
+			{
+				throw new IOException("Channel " + id + " sent past its window");
+			}
+			queuedBytes += frame.getPayloadLength();
+		}
+		
+		inbound.add(frame);
+		notifyAll();
+	}
+	
+	/**
+	 * Adds credit from the remote user's WINDOW frame and wakes a waiting sender
+	 * @param bytes DATA payload bytes the remote user has taken
+	 * @throws IOException if the grant is not positive or exceeds what was sent
+	 */
+	synchronized void grant(int bytes) throws IOException
+	{
+		if (bytes <= 0 || sendCredit + bytes > WINDOW_BYTES)
+		{
+			throw new IOException("Invalid window grant of " + bytes + " on channel " + id);
+		}
+		sendCredit += bytes;
+		notifyAll();
+	}
+	
+	/**
+	 * Records the remote user's CLOSE frame
+	 * @return true if the local side had already been closed, so the channel is done
+	 */
+	synchronized boolean remoteClose()
+	{
+		remoteClosed = true;
+		notifyAll();
+		return localClosed;
+	}
+	
+	/**
+	 * @return true once the local side has been closed
+	 */
+	synchronized boolean isLocalClosed()
+	{
+		return localClosed;
+	}
+	
+	/**
+	 * @return true once the remote user's CLOSE frame has arrived
+	 */
+	synchronized boolean isRemoteClosed()
+	{
+		return remoteClosed;
+	}
+	
+	/**
+	 * Ends the channel because its connection ended. Waiting senders and
+	 * receivers get the failure.
+	 * @param cause EOFException for a closed connection, otherwise what broke it
+	 */
+	synchronized void fail(IOException cause)
+	{
+		if (failure == null)
+		{
+			failure = cause;
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Counts the channel's traffic in its connection's metrics
+	 * @param metrics traffic counters of the connection
+	 */
+	void setMetrics(SessionMetrics metrics)
+	{
+		sender.setMetrics(metrics);
+		receiver.setMetrics(metrics);
+	}
+	
+	/**
+	 * Takes the credit of a DATA frame the channel's sender has queued
+	 * @param bytes payload length of the frame
+	 */
+	private synchronized void debit(int bytes)
+	{
+		sendCredit -= bytes;
+	}
+	
+	/**
+	 * Waits until the channel may send
+	 * @throws IOException if the channel is closed, the connection ended, or the wait was interrupted
+	 */
+	private synchronized void awaitCredit() throws IOException
+	{
+		while (true)
+		{
+			if (localClosed)
+			{
+				throw new IOException("Channel " + id + " is closed");
+			}
+			if (failure != null)
+			{
+				throw failure;
+			}
+			if (id == 0 || sendCredit > 0)
+			{
+				return;
+			}
+			
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ie) // sender abandoned
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for window on channel " + id);
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the next frame routed to the channel, handing credit back to the
+	 * remote user once half a window has been taken
+	 * @return next MODE or DATA frame
+	 * @throws IOException if the channel ended or the connection failed with nothing left to receive
+	 */
+	private PKIFrame take() throws IOException
+	{
+		PKIFrame frame;
+		int grant = 0;
+		synchronized (this)
+		{
+			while (inbound.isEmpty())
+			{
+				if (remoteClosed)
+				{
+					throw new EOFException("Channel " + id + " closed by the remote user");
+				}
+				if (failure != null)
+				{
+					throw failure;
+				}
+				
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException ie) // receiver abandoned
+				{
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting on channel " + id);
+				}
+			}
+			
+			frame = inbound.poll();
+			if (frame.getType() == PKIFrame.TYPE_DATA)
+			{
+				queuedBytes -= frame.getPayloadLength();
+				if (id == 0)
+				{
+					// let the connection's reader go on
+					notifyAll();
+				}
+				else if (!remoteClosed)
+				{
+					takenBytes += frame.getPayloadLength();
+					if (takenBytes >= WINDOW_BYTES / 2)
+					{
+						grant = (int) takenBytes;
+						takenBytes = 0;
+					}
+				}
+			}
+		}
+		
+		if (grant > 0)
+		{
+			try
+			{
+				multiplexer.sendWindow(this, grant);
+			}
+			catch (IOException ioe) // connection failed, the frame will never be handled
+			{
+				frame.release();
+				throw ioe;
+			}
+		}
+		return frame;
+	}
+}
@@ -4,6 +4,9 @@
 package pki_environment;
 
 import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.security.GeneralSecurityException;
 import java.util.Scanner;
 import java.io.*;
 
@@ -20,13 +23,19 @@ public class PKIClient {
 	// socket for PKIClient, connects to PKIServer
     private Socket socket = null; 
     
-    private DataInputStream clientIn = null; // client input from server
-    private DataOutputStream clientOut = null; // client output to server
+    // blocking channel to and from server, frames cross it through pooled direct buffers
+    private SocketChannel channel = null;
     private BufferedReader terminalInput = null; // local user input from terminal
     
     // RSA object instance to utilize RSA encryption, decryption,
     // and credential file commands
     private RSA clientRSA;
+    
+    // Hybrid session built on clientRSA, holds the session keys for (H)ybrid messages
+    private HybridSession clientHybrid;
+    
+    // traffic counters of a multiplexed connection, null until multiplex() is called
+    private SessionMetrics multiplexMetrics;
   
     /**
      * Constructor to establish connection with server on provided IP address
@@ -40,26 +49,23 @@ public class PKIClient {
         // establish a connection with PKIServer 
         try
         { 
-        	// connect to PKIServer socket
-            socket = new Socket(address, port); 
+        	// connect to PKIServer socket, the channel stays in blocking mode
+        	// and carries both input from and output to PKIServer
+            channel = SocketChannel.open(new InetSocketAddress(address, port)); 
+            socket = channel.socket();
             System.out.println("Connected\n"); 
-  
-            // takes input from PKIServer socket
-            clientIn = new DataInputStream(
-            		new BufferedInputStream(socket.getInputStream()));
-            
-            // sends output to PKIServer socket
-            clientOut = new DataOutputStream(socket.getOutputStream());
             
             // takes local user input from terminal
             terminalInput = new BufferedReader(new InputStreamReader(System.in));
             
-            // new RSA instance for local user
+            // new RSA instance for local user, loaded from the keystore if one is
+            // configured, otherwise built from a pregenerated key pair
             // stores all necessary values and methods for encryption, decryption,
             // and cred file operation
-            clientRSA = new RSA();
+            clientRSA = RSAKeyStore.openLocalUser();
+            clientHybrid = new HybridSession(clientRSA);
         } 
-        catch(UnknownHostException u) // if connection to server cannot be established
+        catch(UnresolvedAddressException u) // if connection to server cannot be established
         { 
             System.out.println("Failed to connect to appropriate server!");
         } 
@@ -70,25 +76,18 @@ public class PKIClient {
     } 
     
     /**
-     * Provides environment for encrypted messaging. Allows user to utilize credential
-     * file operations, choose the type of encryption they would like to use, and to
+     * Provides environment for encrypted messaging. Exchanges public keys with the
+     * remote user, then allows user to choose the type of encryption they would like to use, and to
      * send messages over socket w/ encryption. Utilizes client socket for connection
      * with server.
      */
     public void PKISession()
-    {  
-    	// handle file operations separately
-    	credentialSelection();
-    	
+    {
         String message = ""; // message to be encrypted and sent over socket
-        byte [] encryptedMessage; // message received from socket for decryption
         
         // contains string of encryption type user wants to utilize on message
         String encryptSelect; 
         
-        // contains string of decryption type to be used on encryptedMessage
-        String decryptSelect; 
-        
         // keeps track of current state of messaging
         // terminates connection when false
         Boolean continueMessaging = true;
@@ -96,16 +95,39 @@ public class PKIClient {
         // receives basic local user input from terminal
         // used for operation selection, not message input from terminal
         Scanner encTypeInput = new Scanner(System.in);
-          
+        
+        // frames to server, with the mode announced only when it changes
+        MessageSender sender = new MessageSender(new FrameWriter(channel), clientRSA, clientHybrid);
+        
+        // frames from server, starting with the HELLO frame holding its public key
+        MessageReceiver receiver = new MessageReceiver(new FrameReader(channel), clientRSA, clientHybrid,
+        		KnownPeers.getDefault(), socket.getRemoteSocketAddress().toString());
+        
+        // traffic counters of this session, published by PKIMetrics
+        SessionMetrics sessionMetrics = PKIMetrics.getDefault().openSession(socket.getRemoteSocketAddress().toString());
+        sender.setMetrics(sessionMetrics);
+        receiver.setMetrics(sessionMetrics);
+        
+        // exchange public keys before any message is sent
+        continueMessaging = exchangePublicKeys(sender, receiver);
+        
+        // receive and print messages from server on a separate thread,
+        // so either user may send at any time
+        if (continueMessaging)
+        {
+        	Thread receiverThread = new Thread(receiver, "pki-receiver");
+        	receiverThread.setDaemon(true);
+        	receiverThread.start();
+        }
+        
         // while true, continue messaging environment
         while (continueMessaging) 
         { 
         	System.out.printf("\nHow would you like to encrypt your message?\n"
-        			+ "(C)onfidentiality, (A)uthentication, (B)oth, or (Q)uit?: ");
+        			+ "(C)onfidentiality, (A)uthentication, (B)oth, (H)ybrid, or (Q)uit?: ");
         	
         	// get desired encryption type from user
         	encryptSelect = encTypeInput.next();
-        	//System.out.println(); // newline to make terminal easier to read
         	
         	if (encryptSelect.contentEquals("q")
         			|| encryptSelect.contentEquals("Q"))
@@ -117,84 +139,33 @@ public class PKIClient {
         	{	
         		try
         		{ 
-        			// send encryption type to server
-        			clientOut.writeUTF(encryptSelect);
-        			// receive decryption type from server
-        			decryptSelect = clientIn.readUTF();
-        			
-// SEND MESSAGE-------------------------------------------------------------------------------------
-        			// PKIClient sends message first
-        			message = terminalInput.readLine(); // get message from terminal
-        			
-        			// Confidential encryption
-        			if (encryptSelect.contentEquals("c")
-        					|| encryptSelect.contentEquals("C"))
-        			{
-        				encryptedMessage = clientRSA.encryptConfidentiality(message.getBytes());
-        			}
-        			// Authentication encryption
-        			else if (encryptSelect.contentEquals("a")
-        					|| encryptSelect.contentEquals("A"))
-        			{
-        				encryptedMessage = clientRSA.encryptAuthentication(message.getBytes());
-        			}
-        			// Confidential and Authentication encryption
-        			else
-        			{
-        				encryptedMessage = clientRSA.encryptBoth(message.getBytes());
-        			}
-        			
-        			// send message byte length to server
-        			clientOut.writeInt(encryptedMessage.length);
-        			// send encryptedMessage to server
-        			clientOut.write(encryptedMessage);
-				
-// RECEIVE MESSAGE----------------------------------------------------------------------------------
-        			// receive length of encrypted message from server
-        			int messageLen = clientIn.readInt();
-        			// receive encrypted message from server
-        			encryptedMessage = new byte[messageLen];
-        			clientIn.readFully(encryptedMessage, 0, encryptedMessage.length);
+        			// get message from terminal
+        			message = terminalInput.readLine();
         			
-        			// Confidential decryption
-        			if (decryptSelect.contentEquals("c")
-        					|| decryptSelect.contentEquals("C"))
-        			{
-        				message = new String(clientRSA.decryptConfidentiality(encryptedMessage));
-        			}
-        			// Authentication decryption
-        			else if (decryptSelect.contentEquals("a")
-        					|| decryptSelect.contentEquals("A"))
-        			{
-        				System.out.printf("Authentication Message!: ");
-        				message = new String(clientRSA.decryptAuthentication(encryptedMessage));
-        			}
-        			// Confidential and Authentication decryption
-        			else
-        			{
-        				System.out.printf("Authentication Message!: ");
-        				message = new String(clientRSA.decryptBoth(encryptedMessage));
-        			}
-        			
-        			// print decrypted message to terminal
-        			System.out.println(message);
-        		} 
-        		catch(IOException i)
+        			// encrypt and send message, with any MODE or KEY frame
+        			// it needs, in a single write
+        			sender.send(encryptSelect, message.getBytes());
+        		}
+        		catch(IOException i) 
         		{ 
-        			System.out.println("Error sending or receiving message. Try again!"); 
+        			System.out.println("Error sending message. Try again!"); 
+        		}
+        		catch (GeneralSecurityException gse) // Hybrid message could not be encrypted
+        		{
+        			System.out.println("Hybrid message could not be encrypted: " + gse.getMessage());
         		}
         	}
         }
         System.out.println("Closing connection");
+        sessionMetrics.close();
+        System.out.println("Session totals: " + sessionMetrics);
   
         // close socket connection and all input/output streams 
         try
         { 
         	encTypeInput.close(); // close operation input from terminal
-        	clientIn.close(); // close input from server
-        	clientOut.close(); // close output to server
-            terminalInput.close(); // close message input from terminal
-            socket.close(); // terminate connection to PKIServer
+        	terminalInput.close(); // close message input from terminal
+            channel.close(); // terminate connection to PKIServer
         } 
         catch(IOException i) // error closing socket or input/output stream(s)
         { 
@@ -202,11 +173,86 @@ public class PKIClient {
         } 
     }
     
+    /**
+     * Exchanges public keys with the server over the socket, replacing the out of
+     * band credential file exchange. Both HELLO frames cross in a single round trip.
+     * @param sender send side of the session
+     * @param receiver receive side of the session
+     * @return true if the server's public key was received and accepted
+     */
+    private boolean exchangePublicKeys(MessageSender sender, MessageReceiver receiver)
+    {
+    	try
+    	{
+    		sender.sendHello();
+    		RSAPeerKey serverKey = receiver.awaitPeer();
+    		
+    		System.out.println("Public keys exchanged. Server key fingerprint: " + serverKey.getFingerprint());
+    		System.out.println("Starting encrypted messaging. "
+    				+ "Either user may send messages at any time.");
+    		return true;
+    	}
+    	catch (IOException | GeneralSecurityException e) // connection failed or key rejected
+    	{
+    		System.out.println("Key exchange failed: " + e.getMessage());
+    		return false;
+    	}
+    }
+    
+    /**
+     * Starts carrying logical channels over the connection, for programs that hold
+     * many conversations with the server at once instead of the interactive
+     * PKISession. Public keys are exchanged once, here, and the server's frames
+     * are then routed to their channels on a background thread. A connection is
+     * used either by PKISession or by this, never both.
+     * @return multiplexer that opens channels to the server
+     * @throws IOException if the client is not connected or the connection fails
+     * @throws GeneralSecurityException if the server's public key is rejected
+     */
+    public ChannelMultiplexer multiplex() throws IOException, GeneralSecurityException
+    {
+    	if (channel == null)
+    	{
+    		throw new IOException("Not connected to a server");
+    	}
+    	
+    	String label = socket.getRemoteSocketAddress().toString();
+    	ChannelMultiplexer multiplexer = new ChannelMultiplexer(new FrameReader(channel), new FrameWriter(channel),
+    			clientRSA, KnownPeers.getDefault(), label, true);
+    	multiplexMetrics = PKIMetrics.getDefault().openSession(label);
+    	multiplexer.setMetrics(multiplexMetrics);
+    	multiplexer.exchangeKeys();
+    	
+    	// route frames from server to their channels on a separate thread
+    	Thread demultiplexer = new Thread(multiplexer, "pki-demultiplexer");
+    	demultiplexer.setDaemon(true);
+    	demultiplexer.start();
+    	return multiplexer;
+    }
+    
+    /**
+     * Closes the connection to the server, ending every channel of a multiplexed one
+     * @throws IOException if the connection cannot be closed
+     */
+    public void close() throws IOException
+    {
+    	if (multiplexMetrics != null)
+    	{
+    		multiplexMetrics.close();
+    	}
+    	if (channel != null)
+    	{
+    		channel.close();
+    	}
+    }
+    
     /**
      * Environment for user to create or import credential files
      * for use with encrypted messaging. Provides framework for 
      * generation a file with particular name, and importing a 
-     * file with a particular name. 
+     * file with a particular name, and exporting a public-only file
+     * for remote users. Not needed by PKISession, which exchanges public
+     * keys over the socket; started before it with --credentials. 
      */
     public void credentialSelection()
     {
@@ -230,8 +276,9 @@ public class PKIClient {
         {
         	System.out.println("What would you like to do?");
         	System.out.println("(A) Create a personal credential file\n"
-        			+ "(B) Input a remote user credential file\n"
-        			+ "(C) Start sending and receiving messages");
+        			+ "(B) Export a public-only credential file for remote users\n"
+        			+ "(C) Input a remote user credential file\n"
+        			+ "(D) Start sending and receiving messages");
         	
         	// get cred file operation from local user
         	optionSelect = optionInput.next();
@@ -246,9 +293,19 @@ public class PKIClient {
         		credFileName = optionInput.next(); 
         		clientRSA.createCredentialsFile(credFileName);
         	}
-        	// Import a remote user cred file
+        	// Export a public-only cred file
         	else if (optionSelect.contentEquals("b")
         			|| optionSelect.contentEquals("B"))
+        	{
+        		System.out.printf("Input the name for the public credential file: ");
+        		
+        		// get file name from local user
+        		credFileName = optionInput.next();
+        		clientRSA.exportPublicKey(credFileName);
+        	}
+        	// Import a remote user cred file
+        	else if (optionSelect.contentEquals("c")
+        			|| optionSelect.contentEquals("C"))
         	{
         		System.out.println("Input the name of the credential file: ");
         		
@@ -257,12 +314,12 @@ public class PKIClient {
         		clientRSA.inputNewCredentialsFile(credFileName);
         	}
         	// End cred file manipulation
-        	else if (optionSelect.contentEquals("c")
-        			|| optionSelect.contentEquals("C"))
+        	else if (optionSelect.contentEquals("d")
+        			|| optionSelect.contentEquals("D"))
         	{
         		credSelect = false;
         		System.out.println("Starting encrypted messaging. "
-        				+ "Client may send a message first.");
+        				+ "Either user may send messages at any time.");
         	}
         	else
         	{
@@ -273,8 +330,22 @@ public class PKIClient {
   
     public static void main(String args[]) 
     { 
+    	// start generating key pairs in the background,
+    	// unless the key is already in a keystore
+    	if (RSAKeyStore.needsKeyPool())
+    	{
+    		RSAKeyPool.getDefault();
+    	}
+    	
     	// establish connection to PKIServer at designated IP and port
         PKIClient client = new PKIClient("192.168.56.1", 5000); 
+        
+        // --credentials creates, exports, or imports credential files first
+        if (args.length >= 1 && args[0].equals("--credentials"))
+        {
+        	client.credentialSelection();
+        }
+        
         // start a secure and encrypted messaging session (PKI Environment)
         client.PKISession();
     } 
@@ -0,0 +1,366 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * A single frame of the PKI session protocol. Every frame starts with a
+ * fixed 16 byte header followed by its payload:
+ * <pre>
+ *   version (1) | type (1) | mode (1) | flags (1) | channel (4) | sequence (4) | length (4)
+ * </pre>
+ * The encryption mode is set once with a MODE frame and stays in effect for
+ * every following DATA frame of the same channel until its next MODE frame.
+ * Sequence numbers count the frames sent in one direction, across all
+ * channels, starting at 0. Each side opens the session with a HELLO frame
+ * carrying its public key, whose flags say whether it accepts compressed
+ * messages.
+ * <p>
+ * Channel 0 is the session's own conversation. A ChannelMultiplexer opens
+ * further logical channels with OPEN frames, ends each direction of one with a
+ * CLOSE frame, and paces them with WINDOW frames; HELLO and KEY frames belong
+ * to the whole connection, whatever their channel.
+ * @author Colby Bratton
+ *
+ */
+public final class PKIFrame {
+	
+	// protocol version written in every header
+	public static final byte VERSION = 2;
+	
+	// size of the fixed header in bytes
+	public static final int HEADER_BYTES = 16;
+	
+	// largest DATA payload accepted from a remote user, set with -Dpki.maxPayloadBytes=<bytes>;
+	// checked before any memory is set aside for the payload
+	public static final int MAX_PAYLOAD_LENGTH = Integer.getInteger("pki.maxPayloadBytes", 16 * 1024 * 1024);
+	
+	// largest HELLO or KEY payload accepted: the two length prefixes and signed
+	// magnitudes of the largest public key KnownPeers accepts, which is also
+	// more than a session key wrapped in one block of that n value
+	public static final int MAX_CONTROL_PAYLOAD_LENGTH = 2 * Integer.BYTES
+			+ (KnownPeers.MAX_MODULUS_BITLENGTH + KnownPeers.MAX_PUBLIC_EXPONENT_BITLENGTH) / 8 + 2;
+	
+	// frame types
+	public static final byte TYPE_DATA = 0; // encrypted message
+	public static final byte TYPE_MODE = 1; // control frame, switches the encryption mode
+	public static final byte TYPE_KEY = 2; // RSA wrapped Hybrid session key
+	public static final byte TYPE_HELLO = 3; // public key (n, e) of the sender, first frame of a session
+	public static final byte TYPE_OPEN = 4; // opens the logical channel named in the header
+	public static final byte TYPE_CLOSE = 5; // sender will send nothing more on the channel
+	public static final byte TYPE_WINDOW = 6; // int count of DATA payload bytes the sender may send again
+	
+	// flag bits
+	public static final byte FLAG_SIGNED = 0x01; // DATA payload is a hash-then-sign message from RSA.encryptSigned
+	public static final byte FLAG_COMPRESSED = 0x02; // DATA: message deflated before encryption, HELLO: sender accepts that
+	
+	// header fields
+	private final byte type;
+	private final byte mode;
+	private final byte flags;
+	private final int channel;
+	private final int sequence;
+	
+	// frame body, filled in by the reader after the header is decoded
+	private final ByteBuffer payload;
+	
+	// pool the payload is returned to by release(), null when it is not pooled
+	private BufferPool pool;
+	
+	/**
+	 * Constructor to build a frame from its fields
+	 * @param type TYPE_DATA, TYPE_MODE, TYPE_KEY, or TYPE_HELLO
+	 * @param mode encryption mode, the upper case menu letter (C, A, B, or H)
+	 * @param flags option bits, 0 when none are set
+	 * @param sequence position of the frame in its direction of the session
+	 * @param payload frame body
+	 */
+	public PKIFrame(byte type, byte mode, byte flags, int sequence, byte[] payload)
+	{
+		this(type, mode, flags, 0, sequence, ByteBuffer.wrap(payload), null);
+	}
+	
+	/**
+	 * Constructor to build a frame of a logical channel from its fields
+	 * @param type frame type
+	 * @param mode encryption mode, the upper case menu letter (C, A, B, or H)
+	 * @param flags option bits, 0 when none are set
+	 * @param channel logical channel the frame belongs to, 0 for the session's own
+	 * @param sequence position of the frame in its direction of the session
+	 * @param payload frame body
+	 */
+	public PKIFrame(byte type, byte mode, byte flags, int channel, int sequence, byte[] payload)
+	{
+		this(type, mode, flags, channel, sequence, ByteBuffer.wrap(payload), null);
+	}
+	
+	/**
+	 * Constructor to build a frame around a payload buffer
+	 * @param type frame type
+	 * @param mode encryption mode
+	 * @param flags option bits
+	 * @param channel logical channel the frame belongs to
+	 * @param sequence position of the frame in its direction of the session
+	 * @param payload frame body, from position 0 to its limit
+	 * @param pool pool the payload is returned to by release(), null if it is not pooled
+	 */
+	private PKIFrame(byte type, byte mode, byte flags, int channel, int sequence, ByteBuffer payload, BufferPool pool)
+	{
+		this.type = type;
+		this.mode = mode;
+		this.flags = flags;
+		this.channel = channel;
+		this.sequence = sequence;
+		this.payload = payload;
+		this.pool = pool;
+	}
+	
+	/**
+	 * Decodes a header into a frame with an empty heap payload of the right length
+	 * @param header HEADER_BYTES bytes of header
+	 * @return frame whose payload array is ready to be read into
+	 * @throws IOException if the version is unknown or the length is out of range
+	 */
+	static PKIFrame fromHeader(ByteBuffer header) throws IOException
+	{
+		return fromHeader(header, null);
+	}
+	
+	/**
+	 * Decodes a header into a frame with an empty payload of the right length.
+	 * The length is checked against the limit for the frame type before the
+	 * payload is taken, so a hostile length never reserves memory.
+	 * @param header HEADER_BYTES bytes of header
+	 * @param pool pool the payload buffer is taken from, null for a heap array
+	 * @return frame whose payload buffer is ready to be read into
+	 * @throws IOException if the version or type is unknown or the length is out of range
+	 */
+	static PKIFrame fromHeader(ByteBuffer header, BufferPool pool) throws IOException
+	{
+		byte version = header.get();
+		if (version != VERSION)
+		{
+			throw new IOException("Unsupported frame version " + version);
+		}
+		
+		byte type = header.get();
+		byte mode = header.get();
+		byte flags = header.get();
+		int channel = header.getInt();
+		int sequence = header.getInt();
+		int length = header.getInt();
+		
+		if (length < 0 || length > maxPayloadLength(type))
+		{
+			throw new IOException("Frame length " + length + " out of range");
+		}
+		
+		if (pool == null)
+		{
+			return new PKIFrame(type, mode, flags, channel, sequence, new byte[length]);
+		}
+		return new PKIFrame(type, mode, flags, channel, sequence, pool.acquire(length), pool);
+	}
+	
+	/**
+	 * @param type frame type
+	 * @return largest payload accepted for the type
+	 * @throws IOException if the type is unknown
+	 */
+	private static int maxPayloadLength(byte type) throws IOException
+	{
+		switch (type)
+		{
+			case TYPE_DATA:
+				return MAX_PAYLOAD_LENGTH;
+			case TYPE_MODE:
+			case TYPE_OPEN:
+			case TYPE_CLOSE:
+				return 0;
+			case TYPE_WINDOW:
+				return Integer.BYTES;
+			case TYPE_KEY:
+			case TYPE_HELLO:
+				return MAX_CONTROL_PAYLOAD_LENGTH;
+			default:
+				throw new IOException("Unknown frame type " + type);
+		}
+	}
+	
+	/**
+	 * Writes a header into a buffer
+	 * @param header destination with at least HEADER_BYTES remaining
+	 * @param type frame type
+	 * @param mode encryption mode
+	 * @param flags option bits
+	 * @param channel logical channel the frame belongs to
+	 * @param sequence position of the frame in its direction of the session
+	 * @param length payload length
+	 */
+	static void writeHeader(ByteBuffer header, byte type, byte mode, byte flags, int channel, int sequence, int length)
+	{
+		header.put(VERSION).put(type).put(mode).put(flags).putInt(channel).putInt(sequence).putInt(length);
+	}
+	
+	/**
+	 * Encodes a public key as the payload of a HELLO frame: the byte count and
+	 * unsigned magnitude of n, then the same for e
+	 * @param n n value of the key
+	 * @param pubKey public key of the key
+	 * @return HELLO payload
+	 */
+	public static byte[] encodePublicKey(BigInteger n, BigInteger pubKey)
+	{
+		byte[] nBytes = n.toByteArray();
+		byte[] eBytes = pubKey.toByteArray();
+		
+		return ByteBuffer.allocate(2 * Integer.BYTES + nBytes.length + eBytes.length)
+				.putInt(nBytes.length).put(nBytes)
+				.putInt(eBytes.length).put(eBytes)
+				.array();
+	}
+	
+	/**
+	 * Decodes the payload of a HELLO frame
+	 * @param payload HELLO payload
+	 * @return n followed by the public key
+	 * @throws IOException if the payload is not a well formed public key
+	 */
+	public static BigInteger[] decodePublicKey(byte[] payload) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		BigInteger[] key = new BigInteger[2];
+		
+		for (int i = 0; i < key.length; i++)
+		{
+			int length = buffer.remaining() >= Integer.BYTES ? buffer.getInt() : -1;
+			if (length < 1 || length > buffer.remaining())
+			{
+				throw new IOException("Malformed public key in HELLO frame");
+			}
+			
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			key[i] = new BigInteger(1, bytes);
+		}
+		
+		if (buffer.hasRemaining())
+		{
+			throw new IOException("Malformed public key in HELLO frame");
+		}
+		return key;
+	}
+	
+	/**
+	 * Converts a menu selection into the mode byte of a header
+	 * @param selection letter chosen by the user
+	 * @return upper case selection letter
+	 */
+	public static byte modeOf(String selection)
+	{
+		return (byte) Character.toUpperCase(selection.charAt(0));
+	}
+	
+	/**
+	 * Converts the mode byte of a header back into a menu selection
+	 * @param mode mode byte of a header
+	 * @return selection letter
+	 */
+	public static String selectionOf(byte mode)
+	{
+		return String.valueOf((char) mode);
+	}
+	
+	/**
+	 * @return TYPE_DATA, TYPE_MODE, TYPE_KEY, TYPE_HELLO, TYPE_OPEN, TYPE_CLOSE, or TYPE_WINDOW
+	 */
+	public byte getType()
+	{
+		return type;
+	}
+	
+	/**
+	 * @return encryption mode byte
+	 */
+	public byte getMode()
+	{
+		return mode;
+	}
+	
+	/**
+	 * @return option bits
+	 */
+	public byte getFlags()
+	{
+		return flags;
+	}
+	
+	/**
+	 * @return logical channel the frame belongs to, 0 for the session's own
+	 */
+	public int getChannel()
+	{
+		return channel;
+	}
+	
+	/**
+	 * @return position of the frame in its direction of the session
+	 */
+	public int getSequence()
+	{
+		return sequence;
+	}
+	
+	/**
+	 * @return frame body as an array, copied out of the payload buffer when it is
+	 * pooled or direct
+	 */
+	public byte[] getPayload()
+	{
+		if (pool == null && payload.hasArray() && payload.arrayOffset() == 0
+				&& payload.array().length == payload.limit())
+		{
+			return payload.array();
+		}
+		
+		byte[] copy = new byte[payload.limit()];
+		payload.get(0, copy);
+		return copy;
+	}
+	
+	/**
+	 * Gives the frame body without copying it. The buffer belongs to the frame
+	 * and must not be used after release().
+	 * @return payload buffer, positioned at 0 with its limit at the payload length
+	 */
+	public ByteBuffer getPayloadBuffer()
+	{
+		payload.position(0);
+		return payload;
+	}
+	
+	/**
+	 * @return number of bytes in the frame body
+	 */
+	public int getPayloadLength()
+	{
+		return payload.limit();
+	}
+	
+	/**
+	 * Returns a pooled payload buffer to its pool. Does nothing for a frame that
+	 * is not pooled or was already released.
+	 */
+	public void release()
+	{
+		if (pool != null)
+		{
+			pool.release(payload);
+			pool = null;
+		}
+	}
+}
@@ -0,0 +1,442 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for an echoing PKIServer (started with --multi or
+ * --nio). Opens a number of concurrent client sessions, each exchanging public
+ * keys and then sending messages in turn in every selected encryption mode, at
+ * its share of a target rate. Every echo is decrypted and compared with the
+ * message sent. At the end it reports throughput and round trip latency
+ * percentiles per mode.
+ * <p>
+ * Latency is measured from the time each message was scheduled to be sent,
+ * not from when it actually went out, so a server that falls behind the target
+ * rate shows up in the percentiles instead of quietly lowering the rate.
+ * <p>
+ * Usage:
+ * <pre>
+ * java pki_environment.PKILoadGenerator [--host localhost] [--port 5000] [--sessions 8]
+ *      [--rate 0] [--duration 30] [--modes CABH] [--min-bytes 16] [--max-bytes 1024] [--script file]
+ * </pre>
+ * A rate of 0 sends as fast as the echoes come back. With --script, the lines
+ * of the file are sent as messages in order instead of random bytes.
+ * @author Colby Bratton
+ *
+ */
+public class PKILoadGenerator {
+	
+	// server to load
+	private final String host;
+	private final int port;
+	
+	// number of concurrent client sessions
+	private int sessions = 8;
+	
+	// messages per second across all sessions, 0 for as fast as possible
+	private double rate;
+	
+	// length of the measured run
+	private int durationSeconds = 30;
+	
+	// menu letters of the modes messages are sent in, in turn
+	private String modes = "CABH";
+	
+	// size range of random messages, inclusive
+	private int minBytes = 16;
+	private int maxBytes = 1024;
+	
+	// scripted messages sent in order, null for random messages
+	private List<byte[]> script;
+	
+	// round trip latency by mode, in the order of modes, and over every mode
+	private LatencyHistogram[] roundTrips;
+	private final LatencyHistogram allRoundTrips = new LatencyHistogram("roundTrip.all");
+	
+	// time each session takes to exchange public keys once connected
+	private final LatencyHistogram handshakes = new LatencyHistogram("handshake");
+	
+	// totals of the measured run
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder mismatches = new LongAdder();
+	private final LongAdder failedSessions = new LongAdder();
+	
+	// length of the last run in nanoseconds
+	private long elapsedNanos;
+	
+	/**
+	 * Constructor to build a load generator for a server
+	 * @param host address of PKIServer
+	 * @param port port utilized by PKIServer
+	 */
+	public PKILoadGenerator(String host, int port)
+	{
+		this.host = host;
+		this.port = port;
+	}
+	
+	/**
+	 * @param sessions number of concurrent client sessions
+	 */
+	public void setSessions(int sessions)
+	{
+		this.sessions = sessions;
+	}
+	
+	/**
+	 * @param rate messages per second across all sessions, 0 for as fast as possible
+	 */
+	public void setRate(double rate)
+	{
+		this.rate = rate;
+	}
+	
+	/**
+	 * @param durationSeconds length of the measured run
+	 */
+	public void setDuration(int durationSeconds)
+	{
+		this.durationSeconds = durationSeconds;
+	}
+	
+	/**
+	 * @param modes menu letters (C, A, B, H) of the modes messages are sent in, in turn
+	 */
+	public void setModes(String modes)
+	{
+		if (!modes.matches("[CcAaBbHh]+"))
+		{
+			throw new IllegalArgumentException("Modes must be letters of C, A, B, and H: " + modes);
+		}
+		this.modes = modes.toUpperCase();
+	}
+	
+	/**
+	 * @param minBytes smallest random message
+	 * @param maxBytes largest random message
+	 */
+	public void setMessageSizes(int minBytes, int maxBytes)
+	{
+		if (minBytes < 0 || maxBytes < minBytes)
+		{
+			throw new IllegalArgumentException("Message sizes out of range: " + minBytes + " to " + maxBytes);
+		}
+		this.minBytes = minBytes;
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * @param script messages sent in order by every session, instead of random messages
+	 */
+	public void setScript(List<byte[]> script)
+	{
+		if (script.isEmpty())
+		{
+			throw new IllegalArgumentException("Script has no messages");
+		}
+		this.script = script;
+	}
+	
+	/**
+	 * Connects every session, runs the load for the configured duration, and
+	 * waits for every session to finish
+	 * @param clientRSA RSA instance shared by every session as the local user
+	 * @throws InterruptedException if interrupted while waiting for the sessions
+	 */
+	public void run(RSA clientRSA) throws InterruptedException
+	{
+		roundTrips = new LatencyHistogram[modes.length()];
+		for (int i = 0; i < roundTrips.length; i++)
+		{
+			roundTrips[i] = new LatencyHistogram("roundTrip." + modes.charAt(i));
+		}
+		
+		// the clock starts once every session has exchanged keys
+		CountDownLatch connected = new CountDownLatch(sessions);
+		CountDownLatch start = new CountDownLatch(1);
+		long[] window = new long[2];
+		KnownPeers knownPeers;
+		try
+		{
+			// the server's key is checked once and pinned in memory for every session
+			knownPeers = new KnownPeers(null);
+		}
+		catch (IOException ioe) // never thrown without a file
+		{
+			throw new IllegalStateException(ioe);
+		}
+		
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < sessions; i++)
+		{
+			int index = i;
+			Thread thread = new Thread(() -> runSession(index, clientRSA, knownPeers, connected, start, window),
+					"pki-load-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		
+		connected.await();
+		window[0] = System.nanoTime();
+		window[1] = window[0] + durationSeconds * 1_000_000_000L;
+		start.countDown();
+		
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		elapsedNanos = System.nanoTime() - window[0];
+	}
+	
+	/**
+	 * Runs a single client session, sending its share of the target rate until
+	 * the end of the run
+	 */
+	private void runSession(int index, RSA clientRSA, KnownPeers knownPeers,
+			CountDownLatch connected, CountDownLatch start, long[] window)
+	{
+		SplittableRandom random = new SplittableRandom(index);
+		boolean ready = false;
+		
+		try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port)))
+		{
+			long handshakeStart = System.nanoTime();
+			channel.socket().setTcpNoDelay(true);
+			
+			HybridSession hybrid = new HybridSession(clientRSA);
+			MessageSender sender = new MessageSender(new FrameWriter(channel), clientRSA, hybrid);
+			MessageReceiver receiver = new MessageReceiver(new FrameReader(channel), clientRSA, hybrid,
+					knownPeers, host + ":" + port);
+			sender.sendHello();
+			receiver.awaitPeer();
+			handshakes.recordSince(handshakeStart);
+			
+			ready = true;
+			connected.countDown();
+			start.await();
+			
+			// sessions are spread evenly across each interval so sends do not bunch up
+			long interval = rate > 0 ? (long) (1e9 * sessions / rate) : 0;
+			long scheduled = window[0] + interval * index / sessions;
+			
+			for (long sent = 0; ; sent++)
+			{
+				if (interval == 0)
+				{
+					scheduled = System.nanoTime();
+				}
+				if (scheduled >= window[1])
+				{
+					break;
+				}
+				waitUntil(scheduled);
+				
+				int modeIndex = (int) ((index + sent) % modes.length());
+				byte[] message = nextMessage(random, sent);
+				
+				sender.send(modes.substring(modeIndex, modeIndex + 1), message);
+				ByteBuffer echo = receiver.receiveBuffer();
+				
+				// measured from the scheduled send, see the class comment
+				long latency = System.nanoTime() - scheduled;
+				roundTrips[modeIndex].record(latency);
+				allRoundTrips.record(latency);
+				
+				if (!echo.equals(ByteBuffer.wrap(message)))
+				{
+					mismatches.increment();
+				}
+				messages.increment();
+				bytes.add(message.length);
+				scheduled += interval;
+			}
+		}
+		catch (IOException | GeneralSecurityException | IllegalArgumentException e) // connection, key exchange, or echo failed
+		{
+			failedSessions.increment();
+			System.out.println("Session " + index + " failed: " + e);
+		}
+		catch (InterruptedException ie) // run abandoned
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			// a session that never connected must not hold up the others
+			if (!ready)
+			{
+				connected.countDown();
+			}
+		}
+	}
+	
+	/**
+	 * @param random source of the session's random messages
+	 * @param sent number of messages the session has sent so far
+	 * @return next message of the session
+	 */
+	private byte[] nextMessage(SplittableRandom random, long sent)
+	{
+		if (script != null)
+		{
+			return script.get((int) (sent % script.size()));
+		}
+		
+		byte[] message = new byte[random.nextInt(minBytes, maxBytes + 1)];
+		random.nextBytes(message);
+		return message;
+	}
+	
+	/**
+	 * Parks the calling thread until a point in time has been reached
+	 * @param deadline System.nanoTime() value to wait for
+	 */
+	private static void waitUntil(long deadline)
+	{
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0)
+		{
+			LockSupport.parkNanos(remaining);
+		}
+	}
+	
+	/**
+	 * @return throughput and latency percentiles of the last run
+	 */
+	public String report()
+	{
+		double seconds = elapsedNanos / 1e9;
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Load test: %d sessions for %.1f s against %s:%d, target %s%n",
+				sessions, seconds, host, port, rate > 0 ? rate + " msg/s" : "unthrottled"));
+		report.append(String.format("%d messages echoed (%.1f msg/s, %.3f MB/s each way), %d mismatched, %d sessions failed%n",
+				messages.sum(), messages.sum() / seconds, bytes.sum() / 1e6 / seconds,
+				mismatches.sum(), failedSessions.sum()));
+		
+		report.append(String.format("%-32s %10s %12s %12s %12s %12s %12s%n",
+				"operation", "count", "mean us", "p50 us", "p90 us", "p99 us", "max us"));
+		report.append(handshakes.snapshot()).append('\n');
+		for (LatencyHistogram roundTrip : roundTrips)
+		{
+			report.append(roundTrip.snapshot()).append('\n');
+		}
+		report.append(allRoundTrips.snapshot()).append('\n');
+		return report.toString();
+	}
+	
+	/**
+	 * @return true if every echo matched and no session failed
+	 */
+	public boolean passed()
+	{
+		return mismatches.sum() == 0 && failedSessions.sum() == 0;
+	}
+	
+	public static void main(String args[])
+	{
+		// options come in --name value pairs
+		if (args.length % 2 != 0)
+		{
+			System.out.println("Options are --name value pairs, see the PKILoadGenerator class comment");
+			System.exit(2);
+		}
+		
+		String host = "localhost";
+		String port = "5000";
+		List<String[]> options = new ArrayList<>();
+		for (int i = 0; i < args.length; i += 2)
+		{
+			if (args[i].equals("--host"))
+			{
+				host = args[i + 1];
+			}
+			else if (args[i].equals("--port"))
+			{
+				port = args[i + 1];
+			}
+			else
+			{
+				options.add(new String[] {args[i], args[i + 1]});
+			}
+		}
+		
+		PKILoadGenerator generator = null;
+		try
+		{
+			generator = new PKILoadGenerator(host, Integer.parseInt(port));
+			for (String[] option : options)
+			{
+				switch (option[0])
+				{
+					case "--sessions":
+						generator.setSessions(Integer.parseInt(option[1]));
+						break;
+					case "--rate":
+						generator.setRate(Double.parseDouble(option[1]));
+						break;
+					case "--duration":
+						generator.setDuration(Integer.parseInt(option[1]));
+						break;
+					case "--modes":
+						generator.setModes(option[1]);
+						break;
+					case "--min-bytes":
+						generator.setMessageSizes(Integer.parseInt(option[1]), generator.maxBytes);
+						break;
+					case "--max-bytes":
+						generator.setMessageSizes(generator.minBytes, Integer.parseInt(option[1]));
+						break;
+					case "--script":
+						List<byte[]> script = new ArrayList<>();
+						for (String line : Files.readAllLines(Paths.get(option[1])))
+						{
+							script.add(line.getBytes(StandardCharsets.UTF_8));
+						}
+						generator.setScript(script);
+						break;
+					default:
+						System.out.println("Unknown option " + option[0]);
+						System.exit(2);
+				}
+			}
+			
+			// the same local user as PKIClient, from the keystore or the key pool
+			generator.run(RSAKeyStore.openLocalUser());
+		}
+		catch (IllegalArgumentException iae) // option value out of range or not a number
+		{
+			System.out.println(iae.getMessage());
+			System.exit(2);
+		}
+		catch (IOException ioe) // script or keystore could not be read
+		{
+			System.out.println(ioe);
+			System.exit(1);
+		}
+		catch (InterruptedException ie) // run abandoned
+		{
+			System.exit(1);
+		}
+		
+		System.out.print(generator.report());
+		System.exit(generator.passed() ? 0 : 1);
+	}
+}
@@ -0,0 +1,291 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process wide metrics of the PKI environment: a latency histogram per RSA
+ * operation and mode, key generation, and socket reads and writes, along
+ * with connection counts and the traffic of every session. All counters are
+ * lock-free, so recording adds no contention to the code being measured.
+ * <p>
+ * The metrics are published through JMX as pki_environment:type=PKIMetrics,
+ * and are printed every N seconds when -Dpki.metrics.dumpSeconds=N is set.
+ * @author Colby Bratton
+ *
+ */
+public final class PKIMetrics implements PKIMetricsMXBean {
+	
+	// name the metrics are registered under with the platform MBean server
+	public static final String OBJECT_NAME = "pki_environment:type=PKIMetrics";
+	
+	// seconds between text dumps, 0 for none, set with -Dpki.metrics.dumpSeconds
+	public static final long DUMP_SECONDS = Long.getLong("pki.metrics.dumpSeconds", 0);
+	
+	// lazily created metrics shared by the whole process
+	private static PKIMetrics defaultMetrics;
+	
+	// histograms by operation name, sorted for the report
+	private final ConcurrentMap<String, LatencyHistogram> operations = new ConcurrentSkipListMap<>();
+	
+	// open sessions by id
+	private final ConcurrentMap<Long, SessionMetrics> sessions = new ConcurrentSkipListMap<>();
+	private final AtomicLong nextSessionId = new AtomicLong(1);
+	private final LongAdder connectionsOpened = new LongAdder();
+	
+	// traffic totals, added to by every SessionMetrics
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder bytesOut = new LongAdder();
+	final LongAdder messagesIn = new LongAdder();
+	final LongAdder messagesOut = new LongAdder();
+	
+	// private key operations running now and at most, shows when the private key path saturates
+	private final AtomicInteger privateKeyInFlight = new AtomicInteger();
+	private final AtomicInteger peakPrivateKeyInFlight = new AtomicInteger();
+	
+	/**
+	 * Returns the metrics shared by the whole process, registering them with
+	 * JMX and starting the text dump the first time
+	 * @return shared metrics
+	 */
+	public static synchronized PKIMetrics getDefault()
+	{
+		if (defaultMetrics == null)
+		{
+			defaultMetrics = new PKIMetrics();
+			defaultMetrics.register();
+			
+			if (DUMP_SECONDS > 0)
+			{
+				defaultMetrics.startDump(DUMP_SECONDS);
+			}
+		}
+		return defaultMetrics;
+	}
+	
+	/**
+	 * Returns the histogram of an operation, creating it the first time. Callers
+	 * on hot paths keep the histogram instead of looking it up every time.
+	 * @param name operation name, e.g. rsa.privateKey
+	 * @return histogram of the operation
+	 */
+	public LatencyHistogram histogram(String name)
+	{
+		return operations.computeIfAbsent(name, LatencyHistogram::new);
+	}
+	
+	/**
+	 * Returns one histogram per RSA mode, indexed by RSAMode.ordinal()
+	 * @param prefix operation name the mode name is appended to
+	 * @return histograms of the operation in each mode
+	 */
+	public LatencyHistogram[] histogramPerMode(String prefix)
+	{
+		RSAMode[] modes = RSAMode.values();
+		LatencyHistogram[] histograms = new LatencyHistogram[modes.length];
+		for (RSAMode mode : modes)
+		{
+			histograms[mode.ordinal()] = histogram(prefix + "." + mode.name().toLowerCase());
+		}
+		return histograms;
+	}
+	
+	/**
+	 * Counts a new session or connection and starts tracking its traffic
+	 * @param label remote address or other name of the remote user
+	 * @return traffic counters of the session, closed when the session ends
+	 */
+	public SessionMetrics openSession(String label)
+	{
+		SessionMetrics session = new SessionMetrics(this, nextSessionId.getAndIncrement(), label);
+		sessions.put(session.getId(), session);
+		connectionsOpened.increment();
+		return session;
+	}
+	
+	/**
+	 * Drops a closed session from the open sessions
+	 */
+	void sessionClosed(SessionMetrics session)
+	{
+		sessions.remove(session.getId());
+	}
+	
+	/**
+	 * Counts a private key operation as started
+	 */
+	void privateKeyOperationStarted()
+	{
+		int inFlight = privateKeyInFlight.incrementAndGet();
+		if (inFlight > peakPrivateKeyInFlight.get())
+		{
+			peakPrivateKeyInFlight.accumulateAndGet(inFlight, Math::max);
+		}
+	}
+	
+	/**
+	 * Counts a private key operation as finished
+	 */
+	void privateKeyOperationFinished()
+	{
+		privateKeyInFlight.decrementAndGet();
+	}
+	
+	@Override
+	public List<OperationStats> getOperations()
+	{
+		List<OperationStats> stats = new ArrayList<>(operations.size());
+		for (LatencyHistogram histogram : operations.values())
+		{
+			stats.add(histogram.snapshot());
+		}
+		return stats;
+	}
+	
+	@Override
+	public long getConnectionsOpened()
+	{
+		return connectionsOpened.sum();
+	}
+	
+	@Override
+	public int getConnectionsActive()
+	{
+		return sessions.size();
+	}
+	
+	@Override
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+	
+	@Override
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+	
+	@Override
+	public long getMessagesIn()
+	{
+		return messagesIn.sum();
+	}
+	
+	@Override
+	public long getMessagesOut()
+	{
+		return messagesOut.sum();
+	}
+	
+	@Override
+	public int getPrivateKeyOperationsInFlight()
+	{
+		return privateKeyInFlight.get();
+	}
+	
+	@Override
+	public int getPeakPrivateKeyOperationsInFlight()
+	{
+		return peakPrivateKeyInFlight.get();
+	}
+	
+	@Override
+	public List<String> getSessions()
+	{
+		List<String> summaries = new ArrayList<>(sessions.size());
+		for (SessionMetrics session : sessions.values())
+		{
+			summaries.add(session.toString());
+		}
+		return summaries;
+	}
+	
+	@Override
+	public String report()
+	{
+		StringBuilder report = new StringBuilder();
+		report.append("PKI metrics: ")
+				.append(getConnectionsOpened()).append(" connections opened, ")
+				.append(getConnectionsActive()).append(" active, ")
+				.append(getMessagesIn()).append(" messages / ").append(getBytesIn()).append(" bytes in, ")
+				.append(getMessagesOut()).append(" messages / ").append(getBytesOut()).append(" bytes out, ")
+				.append(getPrivateKeyOperationsInFlight()).append(" private key operations in flight (peak ")
+				.append(getPeakPrivateKeyOperationsInFlight()).append(")\n");
+		
+		report.append(String.format("%-32s %10s %12s %12s %12s %12s %12s%n",
+				"operation", "count", "mean us", "p50 us", "p90 us", "p99 us", "max us"));
+		for (OperationStats stats : getOperations())
+		{
+			if (stats.getCount() > 0)
+			{
+				report.append(stats).append('\n');
+			}
+		}
+		
+		for (String session : getSessions())
+		{
+			report.append(session).append('\n');
+		}
+		return report.toString();
+	}
+	
+	@Override
+	public void reset()
+	{
+		for (LatencyHistogram histogram : operations.values())
+		{
+			histogram.reset();
+		}
+		connectionsOpened.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+		messagesIn.reset();
+		messagesOut.reset();
+		peakPrivateKeyInFlight.set(privateKeyInFlight.get());
+	}
+	
+	/**
+	 * Prints the report on a daemon thread at a fixed period
+	 * @param periodSeconds seconds between reports
+	 */
+	public void startDump(long periodSeconds)
+	{
+		ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "pki-metrics-dump");
+			thread.setDaemon(true);
+			return thread;
+		});
+		dumper.scheduleAtFixedRate(() -> System.out.print(report()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Registers these metrics with the platform MBean server
+	 */
+	private void register()
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+		}
+		catch (JMException jme) // already registered, or JMX unavailable; metrics are still recorded
+		{
+			System.out.println("PKI metrics not published through JMX: " + jme.getMessage());
+		}
+	}
+}
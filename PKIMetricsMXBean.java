@@ -0,0 +1,75 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.util.List;
+
+/**
+ * Management interface of PKIMetrics, registered with the platform MBean
+ * server as pki_environment:type=PKIMetrics
+ * @author Colby Bratton
+ *
+ */
+public interface PKIMetricsMXBean {
+	
+	/**
+	 * @return latency statistics of every operation recorded so far, by name
+	 */
+	List<OperationStats> getOperations();
+	
+	/**
+	 * @return number of sessions and connections opened since start
+	 */
+	long getConnectionsOpened();
+	
+	/**
+	 * @return number of sessions and connections currently open
+	 */
+	int getConnectionsActive();
+	
+	/**
+	 * @return frame bytes received over every session
+	 */
+	long getBytesIn();
+	
+	/**
+	 * @return frame bytes sent over every session
+	 */
+	long getBytesOut();
+	
+	/**
+	 * @return messages received over every session
+	 */
+	long getMessagesIn();
+	
+	/**
+	 * @return messages sent over every session
+	 */
+	long getMessagesOut();
+	
+	/**
+	 * @return private key operations running right now
+	 */
+	int getPrivateKeyOperationsInFlight();
+	
+	/**
+	 * @return most private key operations that have run at once
+	 */
+	int getPeakPrivateKeyOperationsInFlight();
+	
+	/**
+	 * @return one line summary per open session
+	 */
+	List<String> getSessions();
+	
+	/**
+	 * @return every metric in the text dump format
+	 */
+	String report();
+	
+	/**
+	 * Forgets every latency and traffic total, open sessions stay listed
+	 */
+	void reset();
+}
@@ -0,0 +1,503 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non-blocking multi-client PKIServer built on NIO selectors. A few event loop
+ * threads read and write every connection, parsing session frames
+ * incrementally, and hand each complete frame to a pool of crypto workers. Connections cost no thread or stack of their own, so idle or slow
+ * clients are cheap. Like PKIServerConnection, every message is echoed back
+ * to its client, encrypted with the same mode it was sent in. Only channel 0
+ * is served; a client that opens logical channels is disconnected. A client
+ * that keeps sending without reading its replies is not read from again until
+ * it has taken most of them, so its replies never pile up in the server.
+ * @author Colby Bratton
+ *
+ */
+public class PKINioServer {
+	
+	// bytes read from a socket in a single read() call, shared per event loop
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	// reply bytes a connection may have waiting before it stops reading its client,
+	// set with -Dpki.nio.maxQueuedBytes; reading resumes once a quarter is left
+	private static final int OUTBOUND_HIGH_WATER = Integer.getInteger("pki.nio.maxQueuedBytes", 1024 * 1024);
+	private static final int OUTBOUND_LOW_WATER = OUTBOUND_HIGH_WATER / 4;
+	
+	// latency of non-blocking socket reads and writes, shared with the blocking servers
+	private static final LatencyHistogram READ_LATENCY = PKIMetrics.getDefault().histogram("socket.read");
+	private static final LatencyHistogram WRITE_LATENCY = PKIMetrics.getDefault().histogram("socket.write");
+	
+	// RSA context holding the key pair shared by every connection
+	private final RSA serverRSA;
+	
+	// checks and caches the public keys clients send in their HELLO frames
+	private final KnownPeers knownPeers;
+	
+	// event loops connections are spread across
+	private final EventLoop[] eventLoops;
+	
+	// pool running all encryption and decryption
+	private final ExecutorService cryptoWorkers;
+	
+	/**
+	 * Constructor to build a server with one event loop and one crypto worker per core
+	 * @param serverRSA RSA context shared by every connection
+	 */
+	public PKINioServer(RSA serverRSA)
+	{
+		this(serverRSA, KnownPeers.getServerDefault(), 1, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Constructor to build a server with a specific number of threads
+	 * @param serverRSA RSA context shared by every connection
+	 * @param knownPeers checks and caches the public keys of clients, see KnownPeers.forServer
+	 * @param eventLoopCount number of selector threads
+	 * @param workerCount number of crypto worker threads
+	 */
+	public PKINioServer(RSA serverRSA, KnownPeers knownPeers, int eventLoopCount, int workerCount)
+	{
+		this.serverRSA = serverRSA;
+		this.knownPeers = knownPeers;
+		this.eventLoops = new EventLoop[eventLoopCount];
+		this.cryptoWorkers = Executors.newFixedThreadPool(workerCount);
+	}
+	
+	/**
+	 * Accepts connections on the calling thread and spreads them across the
+	 * event loops. Does not return unless the server socket fails.
+	 * @param port port utilized by PKIServer
+	 * @throws IOException if the server socket or a selector cannot be opened
+	 */
+	public void serve(int port) throws IOException
+	{
+		for (int i = 0; i < eventLoops.length; i++)
+		{
+			eventLoops[i] = new EventLoop();
+			Thread thread = new Thread(eventLoops[i], "pki-event-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		try (ServerSocketChannel server = ServerSocketChannel.open())
+		{
+			server.bind(new InetSocketAddress(port));
+			System.out.println("NIO PKI Server started");
+			
+			// round robin new connections across the event loops
+			for (int next = 0; ; next = (next + 1) % eventLoops.length)
+			{
+				SocketChannel channel = server.accept();
+				channel.configureBlocking(false);
+				eventLoops[next].register(channel);
+			}
+		}
+		finally
+		{
+			cryptoWorkers.shutdown();
+		}
+	}
+	
+	/**
+	 * Selector thread that owns a set of connections. All reads, writes, and
+	 * connection state changes happen on this thread; other threads hand it
+	 * work through the task queue.
+	 */
+	private class EventLoop implements Runnable {
+		
+		private final Selector selector;
+		
+		// work submitted by other threads, run before each select
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		
+		// read buffer shared by every connection of this loop
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		
+		EventLoop() throws IOException
+		{
+			selector = Selector.open();
+		}
+		
+		/**
+		 * Hands a newly accepted channel to this loop
+		 * @param channel non-blocking channel to a PKIClient
+		 */
+		void register(SocketChannel channel)
+		{
+			execute(() -> {
+				try
+				{
+					SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+					key.attach(new Connection(this, channel, key));
+				}
+				catch (IOException ioe) // channel closed before registration
+				{
+					closeQuietly(channel);
+				}
+			});
+		}
+		
+		/**
+		 * Runs a task on this loop's thread
+		 * @param task work to be run
+		 */
+		void execute(Runnable task)
+		{
+			tasks.add(task);
+			selector.wakeup();
+		}
+		
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				try
+				{
+					selector.select();
+				}
+				catch (IOException ioe) // selector failed, nothing more can be served
+				{
+					System.out.println(ioe);
+					return;
+				}
+				
+				for (Runnable task; (task = tasks.poll()) != null; )
+				{
+					task.run();
+				}
+				
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext())
+				{
+					SelectionKey key = selected.next();
+					selected.remove();
+					
+					Connection connection = (Connection) key.attachment();
+					if (!key.isValid() || connection == null)
+					{
+						continue;
+					}
+					
+					try
+					{
+						if (key.isWritable())
+						{
+							connection.flush();
+						}
+						if (key.isValid() && key.isReadable())
+						{
+							readBuffer.clear();
+							long start = System.nanoTime();
+							int count = connection.channel.read(readBuffer);
+							READ_LATENCY.recordSince(start);
+							if (count < 0)
+							{
+								connection.close();
+								continue;
+							}
+							readBuffer.flip();
+							connection.receive(readBuffer);
+						}
+					}
+					catch (IOException ioe) // connection dropped or sent a malformed frame
+					{
+						connection.close();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * State of a single client connection. Only touched by its event loop,
+	 * except for the crypto job, which runs while reading is paused.
+	 */
+	private class Connection {
+		
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		
+		// rebuilds frames from the bytes received, with payloads from the shared buffer pool
+		private final FrameParser parser = new FrameParser(BufferPool.getDefault());
+		
+		// replies waiting to be written, and their bytes not yet written
+		private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+		private long outboundBytes;
+		
+		// true while the client is too far behind on its replies to be read from
+		private boolean writeBlocked;
+		
+		// bytes received while a crypto job was in progress
+		private ByteBuffer backlog;
+		
+		// receive and send sides of the session, created by the first crypto job.
+		// The sender writes its frames into replyBytes, which the loop then queues.
+		private MessageReceiver receiver;
+		private MessageSender sender;
+		private final ByteArrayOutputStream replyBytes = new ByteArrayOutputStream();
+		
+		// true while a crypto job for this connection is in progress
+		private boolean busy;
+		
+		// traffic counters of this connection, published by PKIMetrics
+		private final SessionMetrics metrics;
+		
+		Connection(EventLoop loop, SocketChannel channel, SelectionKey key)
+		{
+			this.loop = loop;
+			this.channel = channel;
+			this.key = key;
+			this.metrics = PKIMetrics.getDefault().openSession(String.valueOf(channel.socket().getRemoteSocketAddress()));
+		}
+		
+		/**
+		 * Parses received bytes and starts a crypto job for every complete frame
+		 * @param in bytes received from the client
+		 * @throws IOException if a frame is malformed
+		 */
+		void receive(ByteBuffer in) throws IOException
+		{
+			while (in.hasRemaining())
+			{
+				// keep bytes of following frames until the current one is handled
+				if (busy)
+				{
+					ByteBuffer kept = ByteBuffer.allocate((backlog == null ? 0 : backlog.remaining()) + in.remaining());
+					if (backlog != null)
+					{
+						kept.put(backlog);
+					}
+					backlog = kept.put(in).flip();
+					return;
+				}
+				
+				PKIFrame frame = parser.parse(in);
+				if (frame == null)
+				{
+					return;
+				}
+				startJob(frame);
+			}
+		}
+		
+		/**
+		 * Pauses reading and handles a frame on the crypto workers. Control frames
+		 * take the same path, so frames are always handled in arrival order.
+		 */
+		private void startJob(PKIFrame frame)
+		{
+			busy = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			
+			cryptoWorkers.execute(() -> {
+				byte[] reply;
+				try
+				{
+					reply = echo(frame);
+				}
+				catch (IOException | GeneralSecurityException | IllegalArgumentException e) // invalid frame or message
+				{
+					System.out.println("Closing " + channel.socket().getRemoteSocketAddress()
+							+ ", invalid message: " + e.getMessage());
+					loop.execute(this::close);
+					return;
+				}
+				
+				loop.execute(() -> finishJob(reply));
+			});
+		}
+		
+		/**
+		 * Handles a frame, and for a message decrypts it and encrypts it again for
+		 * the client with the same encryption type. A HELLO frame is answered with
+		 * the server's public key. Runs on a crypto worker.
+		 * @return encoded reply frames, or null if the frame needs no reply
+		 */
+		private byte[] echo(PKIFrame frame) throws IOException, GeneralSecurityException
+		{
+			if (receiver == null)
+			{
+				// the RSA context is shared, the client's key comes from its HELLO frame.
+				// The connection keeps the server key it announces even if it is rotated.
+				RSA connectionRSA = serverRSA.snapshot();
+				HybridSession connectionHybrid = new HybridSession(connectionRSA);
+				
+				receiver = new MessageReceiver(null, connectionRSA, connectionHybrid,
+						knownPeers, channel.socket().getInetAddress().getHostAddress());
+				// replies go to memory, the socket write is timed by flush() instead
+				sender = new MessageSender(new FrameWriter(replyBytes, null), connectionRSA, connectionHybrid);
+				receiver.setMetrics(metrics);
+				sender.setMetrics(metrics);
+			}
+			
+			ByteBuffer message = receiver.acceptBuffer(frame);
+			if (frame.getType() == PKIFrame.TYPE_HELLO)
+			{
+				// answer the client's public key with the server's
+				sender.sendHello();
+			}
+			else if (message == null)
+			{
+				return null;
+			}
+			else
+			{
+				sender.send(receiver.getMode(), message);
+			}
+			byte[] reply = replyBytes.toByteArray();
+			replyBytes.reset();
+			return reply;
+		}
+		
+		/**
+		 * Queues the reply of a finished job and resumes reading, unless the client
+		 * is too far behind on its replies. Runs on the event loop.
+		 */
+		private void finishJob(byte[] reply)
+		{
+			if (!channel.isOpen())
+			{
+				return;
+			}
+			
+			if (reply != null)
+			{
+				queue(ByteBuffer.wrap(reply));
+			}
+			
+			busy = false;
+			try
+			{
+				flush();
+				resume();
+			}
+			catch (IOException ioe) // malformed frame or write failed
+			{
+				close();
+			}
+		}
+		
+		/**
+		 * Goes on reading the client unless a job is in progress or the client is
+		 * too far behind on its replies. Bytes kept while the last job ran are
+		 * parsed first. Runs on the event loop.
+		 * @throws IOException if a kept frame is malformed
+		 */
+		private void resume() throws IOException
+		{
+			if (busy || writeBlocked)
+			{
+				return;
+			}
+			
+			// parse anything the client sent while the job was running
+			if (backlog != null)
+			{
+				ByteBuffer kept = backlog;
+				backlog = null;
+				receive(kept);
+				if (busy)
+				{
+					return;
+				}
+			}
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		}
+		
+		/**
+		 * Adds bytes to the write queue, they are sent once the socket is writable.
+		 * Past the high water mark the client is not read from until flush() drains
+		 * the queue below the low water mark.
+		 */
+		private void queue(ByteBuffer buffer)
+		{
+			outbound.add(buffer);
+			outboundBytes += buffer.remaining();
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			
+			if (outboundBytes > OUTBOUND_HIGH_WATER)
+			{
+				writeBlocked = true;
+			}
+		}
+		
+		/**
+		 * Writes as much of the write queue as the socket accepts. Write interest
+		 * stays on until the queue is empty, and reading resumes once the queue is
+		 * back under the low water mark.
+		 * @throws IOException if the write fails or a kept frame is malformed
+		 */
+		void flush() throws IOException
+		{
+			while (!outbound.isEmpty())
+			{
+				ByteBuffer head = outbound.peek();
+				int before = head.remaining();
+				long start = System.nanoTime();
+				channel.write(head);
+				WRITE_LATENCY.recordSince(start);
+				outboundBytes -= before - head.remaining();
+				if (head.hasRemaining())
+				{
+					break;
+				}
+				outbound.poll();
+			}
+			
+			if (outbound.isEmpty())
+			{
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+			if (writeBlocked && outboundBytes <= OUTBOUND_LOW_WATER)
+			{
+				writeBlocked = false;
+				resume();
+			}
+		}
+		
+		/**
+		 * Closes the connection and drops it from its selector
+		 */
+		void close()
+		{
+			key.cancel();
+			closeQuietly(channel);
+			metrics.close();
+		}
+	}
+	
+	/**
+	 * Closes a channel, ignoring any error
+	 * @param channel channel to be closed
+	 */
+	private static void closeQuietly(SocketChannel channel)
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException ioe) // already closed or reset
+		{
+		}
+	}
+}
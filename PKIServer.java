@@ -4,7 +4,16 @@
 package pki_environment;
 
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
 
 /**
@@ -20,16 +29,23 @@ public class PKIServer {
 	// socket for PKIServer
     private Socket socket = null; 
     // server socket for PKIServer, may be connected to by PKIClient
-    private ServerSocket server = null; 
+    private ServerSocketChannel server = null; 
     
-    private DataInputStream serverIn =  null; // server input from client
-    private DataOutputStream serverOut = null; // server output to client
+    // blocking channel to and from client, frames cross it through pooled direct buffers
+    private SocketChannel channel = null;
     private BufferedReader terminalInput = null; // local user input from terminal
     
     // RSA object instance to utilize RSA encryption, decryption,
     // and credential file commands
     private RSA serverRSA;
     
+    // Hybrid session built on serverRSA, holds the session keys for (H)ybrid messages
+    private HybridSession serverHybrid;
+    
+    // most platform threads serving connections and their channels at once when the
+    // JVM has no virtual threads, overridable with -Dpki.maxThreads
+    public static final int MAX_THREADS = Integer.getInteger("pki.maxThreads", 512);
+    
     /**
      * Constructor to establish a server that may be connected to by client
      * via server's IP address and designated port number. Instantiates
@@ -43,29 +59,26 @@ public class PKIServer {
         try
         { 
         	// open server socket to client
-            server = new ServerSocket(port); 
+            server = ServerSocketChannel.open().bind(new InetSocketAddress(port)); 
             System.out.println("PKI Server started"); 
   
             System.out.println("Waiting for a compatible client ..."); 
   
-            // accept compatible PKIClient connection
-            socket = server.accept(); 
+            // accept compatible PKIClient connection, the channel stays in blocking mode
+            // and carries both input from and output to PKIClient
+            channel = server.accept(); 
+            socket = channel.socket();
             System.out.println("PKI Client accepted"); 
-  
-            // takes input from PKIClient socket 
-            serverIn = new DataInputStream(
-            		new BufferedInputStream(socket.getInputStream()));  
-            
-            // sends output to PKIClient socket
-            serverOut = new DataOutputStream(socket.getOutputStream());
             
             // takes local user input from terminal
             terminalInput = new BufferedReader(new InputStreamReader(System.in));   
             
-            // new RSA instance for local user
+            // new RSA instance for local user, loaded from the keystore if one is
+            // configured, otherwise built from a pregenerated key pair
             // stores all necessary values and methods for encryption, decryption,
             // and cred file operation
-            serverRSA = new RSA();
+            serverRSA = RSAKeyStore.openLocalUser();
+            serverHybrid = new HybridSession(serverRSA);
         }
         catch (IOException ioe) // if input or output stream cannot be instantiated
         {
@@ -74,25 +87,18 @@ public class PKIServer {
     } 
 
     /**
-     * Provides environment for encrypted messaging. Allows user to utilize credential
-     * file operations, choose the type of encryption they would like to use, and to
+     * Provides environment for encrypted messaging. Exchanges public keys with the
+     * remote user, then allows user to choose the type of encryption they would like to use, and to
      * send messages over socket w/ encryption. Utilizes server socket for connection
      * with client.
      */
     public void PKISession()
-    {    	 
-    	// handle file operations separately
-    	 credentialSelection();
-    	 
-    	 String message = ""; // message to be encrypted and sent over socket
-         byte [] encryptedMessage; // message received from socket for decryption
+    {
+         String message = ""; // message to be encrypted and sent over socket
          
          // contains string of encryption type user wants to utilize on message
          String encryptSelect; 
          
-         // contains string of decryption type to be used on encryptedMessage
-         String decryptSelect; 
-         
          // keeps track of current state of messaging
          // terminates connection when false
          Boolean continueMessaging = true;
@@ -100,16 +106,39 @@ public class PKIServer {
          // receives basic local user input from terminal
          // used for operation selection, not message input from terminal
          Scanner encTypeInput = new Scanner(System.in);
-    	  
+         
+         // frames to client, with the mode announced only when it changes
+         MessageSender sender = new MessageSender(new FrameWriter(channel), serverRSA, serverHybrid);
+         
+         // frames from client, starting with the HELLO frame holding its public key
+         MessageReceiver receiver = new MessageReceiver(new FrameReader(channel), serverRSA, serverHybrid,
+         		KnownPeers.getServerDefault(), socket.getInetAddress().getHostAddress());
+         
+         // traffic counters of this session, published by PKIMetrics
+         SessionMetrics sessionMetrics = PKIMetrics.getDefault().openSession(socket.getInetAddress().getHostAddress());
+         sender.setMetrics(sessionMetrics);
+         receiver.setMetrics(sessionMetrics);
+         
+         // exchange public keys before any message is sent
+         continueMessaging = exchangePublicKeys(sender, receiver);
+         
+         // receive and print messages from client on a separate thread,
+         // so either user may send at any time
+         if (continueMessaging)
+         {
+         	Thread receiverThread = new Thread(receiver, "pki-receiver");
+         	receiverThread.setDaemon(true);
+         	receiverThread.start();
+         }
+         
          // while true, continue messaging environment
-    	 while (continueMessaging) 
+         while (continueMessaging) 
          { 
          	System.out.printf("\nHow would you like to encrypt your message?\n"
-         			+ "(C)onfidentiality, (A)uthentication, (B)oth, or (Q)uit?: ");
+         			+ "(C)onfidentiality, (A)uthentication, (B)oth, (H)ybrid, or (Q)uit?: ");
          	
          	// get desired encryption type from user
          	encryptSelect = encTypeInput.next();
-         	//System.out.println(); // newline to make terminal easier to read
          	
          	if (encryptSelect.contentEquals("q")
          			|| encryptSelect.contentEquals("Q"))
@@ -120,87 +149,35 @@ public class PKIServer {
          	else // keep messaging
          	{	
          		try
-         		{ 	
-         			// send encryption type to client
-         			serverOut.writeUTF(encryptSelect);
-         			// receiver decryption type from client
-         			decryptSelect = serverIn.readUTF();
-         			
-// RECEIVE MESSAGE------------------------------------------------------------------------------------
-         			// PKIServer receives message first
-         			
-         			// receive length of encrypted message from client
-         			int messageLen = serverIn.readInt();
-         			// receive encrypted message from client
-         			encryptedMessage = new byte[messageLen];
-         			serverIn.readFully(encryptedMessage, 0, encryptedMessage.length);
-         			
-         			// Confidential decryption
-         			if (decryptSelect.contentEquals("c")
-         					|| decryptSelect.contentEquals("C"))
-         			{
-         				message = new String(serverRSA.decryptConfidentiality(encryptedMessage));
-         			}
-         			// Authentication decryption
-         			else if (decryptSelect.contentEquals("a")
-         					|| decryptSelect.contentEquals("A"))
-         			{
-         				System.out.printf("Authentication Message!: ");
-         				message = new String(serverRSA.decryptAuthentication(encryptedMessage));
-         			}
-         			// Confidential and Authentication decryption
-         			else
-         			{
-         				System.out.printf("Authentication Message!: ");
-         				message = new String(serverRSA.decryptBoth(encryptedMessage));
-         			}
-         			
-         			// print decrypted message to terminal
-         			System.out.println(message);
-         			
-// SEND MESSAGE---------------------------------------------------------------------------------------
+         		{ 
          			// get message from terminal
          			message = terminalInput.readLine();
          			
-         			// Confidential encryption
-         			if (encryptSelect.contentEquals("c")
-         					|| encryptSelect.contentEquals("C"))
-         			{
-         				encryptedMessage = serverRSA.encryptConfidentiality(message.getBytes());
-         			}
-         			// Authentication encryption
-         			else if (encryptSelect.contentEquals("a")
-         					|| encryptSelect.contentEquals("A"))
-         			{
-         				encryptedMessage = serverRSA.encryptAuthentication(message.getBytes());
-         			}
-         			// Confidential and Authentication encryption
-         			else
-         			{
-         				encryptedMessage = serverRSA.encryptBoth(message.getBytes());
-         			}
-         			
-         			// send message byte length to client
-         			serverOut.writeInt(encryptedMessage.length);
-         			// send encryptedMessage to client
-         			serverOut.write(encryptedMessage); 
-         		} 
+         			// encrypt and send message, with any MODE or KEY frame
+         			// it needs, in a single write
+         			sender.send(encryptSelect, message.getBytes());
+         		}
          		catch(IOException i) 
          		{ 
-         			System.out.println("Error sending or receiving message. Try again!"); 
+         			System.out.println("Error sending message. Try again!"); 
+         		}
+         		catch (GeneralSecurityException gse) // Hybrid message could not be encrypted
+         		{
+         			System.out.println("Hybrid message could not be encrypted: " + gse.getMessage());
          		}
          	}
-         } 
+         }
          System.out.println("Closing connection"); 
+         sessionMetrics.close();
+         System.out.println("Session totals: " + sessionMetrics);
 
          // close socket connection and all input/output streams
          try
          {
         	 encTypeInput.close(); // close operation input from terminal
-        	 serverIn.close(); // close input from server
-        	 serverOut.close(); // close output to server
+        	 channel.close(); // close input from and output to client
         	 terminalInput.close(); // close message input from terminal
-        	 socket.close(); // terminate PKIServer
+        	 server.close(); // terminate PKIServer
          }
          catch (IOException ioe) // error closing socket or input/output stream(s)
          {
@@ -208,11 +185,39 @@ public class PKIServer {
          }
     }
     
+    /**
+     * Exchanges public keys with the client over the socket, replacing the out of
+     * band credential file exchange. Both HELLO frames cross in a single round trip.
+     * @param sender send side of the session
+     * @param receiver receive side of the session
+     * @return true if the client's public key was received and accepted
+     */
+    private boolean exchangePublicKeys(MessageSender sender, MessageReceiver receiver)
+    {
+    	try
+    	{
+    		sender.sendHello();
+    		RSAPeerKey clientKey = receiver.awaitPeer();
+    		
+    		System.out.println("Public keys exchanged. Client key fingerprint: " + clientKey.getFingerprint());
+    		System.out.println("Starting encrypted messaging. "
+    				+ "Either user may send messages at any time.");
+    		return true;
+    	}
+    	catch (IOException | GeneralSecurityException e) // connection failed or key rejected
+    	{
+    		System.out.println("Key exchange failed: " + e.getMessage());
+    		return false;
+    	}
+    }
+    
     /**
      * Environment for user to create or import credential files
      * for use with encrypted messaging. Provides framework for 
      * generation a file with particular name, and importing a 
-     * file with a particular name.
+     * file with a particular name, and exporting a public-only file
+     * for remote users. Not needed by PKISession, which exchanges public
+     * keys over the socket; started before it with --credentials.
      */
     public void credentialSelection()
     {
@@ -236,8 +241,9 @@ public class PKIServer {
         {
         	System.out.println("\nWhat would you like to do?");
         	System.out.println("(A) Create a personal credential file\n"
-        			+ "(B) Input a remote user credential file\n"
-        			+ "(C) Start sending and receiving messages");
+        			+ "(B) Export a public-only credential file for remote users\n"
+        			+ "(C) Input a remote user credential file\n"
+        			+ "(D) Start sending and receiving messages");
         	
         	// get cred file operation from local user
         	optionSelect = optionInput.next();
@@ -252,9 +258,19 @@ public class PKIServer {
         		credFileName = optionInput.next(); 
         		serverRSA.createCredentialsFile(credFileName);
         	}
-        	// Import a remote user cred file
+        	// Export a public-only cred file
         	else if (optionSelect.contentEquals("b")
         			|| optionSelect.contentEquals("B"))
+        	{
+        		System.out.printf("Input the name for the public credential file: ");
+        		
+        		// get file name from local user
+        		credFileName = optionInput.next();
+        		serverRSA.exportPublicKey(credFileName);
+        	}
+        	// Import a remote user cred file
+        	else if (optionSelect.contentEquals("c")
+        			|| optionSelect.contentEquals("C"))
         	{
         		System.out.println("Input the name of the credential file: ");
         		
@@ -263,12 +279,12 @@ public class PKIServer {
         		serverRSA.inputNewCredentialsFile(credFileName);
         	}
         	// End cred file manipulation
-        	else if (optionSelect.contentEquals("c")
-        			|| optionSelect.contentEquals("C"))
+        	else if (optionSelect.contentEquals("d")
+        			|| optionSelect.contentEquals("D"))
         	{
         		credSelect = false;
         		System.out.println("Starting encrypted messaging. "
-        				+ "Client may send a message first.");
+        				+ "Either user may send messages at any time.");
         	}
         	else
         	{
@@ -277,10 +293,135 @@ public class PKIServer {
         }
     }
     
+    /**
+     * Runs a multi-client PKIServer. Connections are accepted in a loop and each
+     * one is served by its own PKIServerConnection on its own thread: a virtual
+     * thread on Java 21+, a platform thread on Java 17, where at most MAX_THREADS
+     * connections and channels are served at once. Every connection shares the server's RSA context,
+     * learns its client's public key from the client's HELLO frame, and echoes
+     * each message back to its client. The logical channels a client opens run
+     * on the same executor as the connections.
+     * @param port port utilized by PKIServer
+     */
+    public static void serveMultiClient(int port)
+    {
+    	// single RSA context shared by all connections
+    	RSA serverRSA;
+    	try
+    	{
+    		serverRSA = RSAKeyStore.openLocalUser();
+    	}
+    	catch (IOException ioe) // keystore could not be read or written
+    	{
+    		System.out.println(ioe);
+    		return;
+    	}
+    	
+    	// replace the key in the background when -Dpki.keyRotationMinutes is set
+    	RSAKeyRotator.startConfigured(serverRSA);
+    	
+    	ExecutorService connections = newConnectionExecutor();
+    	
+    	try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(port)))
+    	{
+    		System.out.println("Multi-client PKI Server started");
+    		if (connections instanceof ThreadPoolExecutor)
+    		{
+    			System.out.println("No virtual threads before Java 21: each connection and channel gets a platform thread, at most "
+    					+ MAX_THREADS + " (-Dpki.maxThreads)");
+    		}
+    		
+    		// accept PKIClients until the process is stopped, as blocking channels
+    		// so each connection reads and writes through pooled direct buffers
+    		while (true)
+    		{
+    			Socket socket = server.accept().socket();
+    			System.out.println("PKI Client accepted from " + socket.getRemoteSocketAddress());
+    			
+    			try
+    			{
+    				connections.execute(new PKIServerConnection(socket, serverRSA, KnownPeers.getServerDefault(), connections));
+    			}
+    			catch (RejectedExecutionException ree) // every thread is busy
+    			{
+    				System.out.println("Refusing " + socket.getRemoteSocketAddress() + ", all " + MAX_THREADS + " threads are busy");
+    				socket.close();
+    			}
+    		}
+    	}
+    	catch (IOException ioe) // server socket could not be opened or accept failed
+    	{
+    		System.out.println(ioe);
+    	}
+    	finally
+    	{
+    		// let connections in progress finish
+    		connections.shutdown();
+    	}
+    }
+    
+    /**
+     * Creates the executor connections are served on. Uses one virtual thread per
+     * connection when the JVM provides them (Java 21+), otherwise a pool of at
+     * most MAX_THREADS platform threads that refuses tasks past the limit instead
+     * of queueing them, since queued channels would wait on connections that
+     * never finish.
+     * @return executor running one thread per connection
+     */
+    private static ExecutorService newConnectionExecutor()
+    {
+    	try
+    	{
+    		return (ExecutorService) Executors.class
+    				.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    	}
+    	catch (ReflectiveOperationException roe) // virtual threads not available, as on Java 17
+    	{
+    		return new ThreadPoolExecutor(0, MAX_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
+    	}
+    }
+    
     public static void main(String args[]) 
     { 
+    	// start generating key pairs while waiting for a client,
+    	// unless the key is already in a keystore
+    	if (RSAKeyStore.needsKeyPool())
+    	{
+    		RSAKeyPool.getDefault();
+    	}
+    	
+    	// --multi serves many clients at once
+    	if (args.length >= 1 && args[0].equals("--multi"))
+    	{
+    		serveMultiClient(5000);
+    		return;
+    	}
+    	
+    	// --nio serves many clients from a few selector threads
+    	if (args.length >= 1 && args[0].equals("--nio"))
+    	{
+    		try
+    		{
+    			RSA serverRSA = RSAKeyStore.openLocalUser();
+    			RSAKeyRotator.startConfigured(serverRSA);
+    			new PKINioServer(serverRSA).serve(5000);
+    		}
+    		catch (IOException ioe) // keystore, server socket, or selector could not be opened
+    		{
+    			System.out.println(ioe);
+    		}
+    		return;
+    	}
+    	
     	// open PKIServer on port 5000
         PKIServer server = new PKIServer(5000);
+        
+        // --credentials creates, exports, or imports credential files first
+        if (args.length >= 1 && args[0].equals("--credentials"))
+        {
+        	server.credentialSelection();
+        }
+        
         // start a secure and encrypted messaging session (PKI Environment)
         server.PKISession();
     } 
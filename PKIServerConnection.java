@@ -0,0 +1,160 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves a single client of a multi-client PKIServer. Holds all per-connection
+ * state (socket, streams, remote user, and Hybrid session keys), so any number
+ * of connections may run side by side on one shared RSA context. The client's
+ * public key is learned from its HELLO frame when the connection opens. Every message received is decrypted and
+ * echoed back to the client, encrypted with the same mode it was sent in.
+ * Messages are handled in arrival order, so a client may send several
+ * back to back without waiting for each reply.
+ * <p>
+ * The connection is read through a ChannelMultiplexer, so a client may also
+ * open logical channels over it. Each channel, and channel 0 for a client
+ * that opens none, is echoed on its own task, and the server closes its side
+ * of a channel once the client has closed its own.
+ * @author Colby Bratton
+ *
+ */
+public class PKIServerConnection implements Runnable {
+	
+	// socket connected to a single PKIClient
+	private final Socket socket;
+	
+	// RSA context holding the server's key pair, shared by every connection
+	private final RSA serverRSA;
+	
+	// checks and caches the public keys clients send in their HELLO frames
+	private final KnownPeers knownPeers;
+	
+	// runs the echo task of every channel
+	private final Executor channelTasks;
+	
+	/**
+	 * Constructor to serve a client on an accepted socket with a shared RSA context
+	 * @param socket socket accepted by PKIServer
+	 * @param serverRSA RSA context holding the server key pair
+	 * @param knownPeers checks and caches the public keys of clients, see KnownPeers.forServer
+	 * @param channelTasks runs the echo task of every channel
+	 */
+	public PKIServerConnection(Socket socket, RSA serverRSA, KnownPeers knownPeers, Executor channelTasks)
+	{
+		this.socket = socket;
+		this.serverRSA = serverRSA;
+		this.knownPeers = knownPeers;
+		this.channelTasks = channelTasks;
+	}
+	
+	/**
+	 * Echoes messages back to the client on every channel until it disconnects
+	 */
+	@Override
+	public void run()
+	{
+		// traffic counters of this connection, published by PKIMetrics
+		SessionMetrics connectionMetrics = PKIMetrics.getDefault().openSession(
+				socket.getRemoteSocketAddress().toString());
+		
+		try (Socket s = socket)
+		{
+			// a socket accepted from a channel is read and written through pooled direct buffers
+			SocketChannel channel = s.getChannel();
+			FrameReader reader = channel != null ? new FrameReader(channel)
+					: new FrameReader(new BufferedInputStream(s.getInputStream()));
+			FrameWriter writer = channel != null ? new FrameWriter(channel)
+					: new FrameWriter(s.getOutputStream());
+			
+			ChannelMultiplexer multiplexer = new ChannelMultiplexer(reader, writer, serverRSA,
+					knownPeers, s.getInetAddress().getHostAddress(), false);
+			multiplexer.setMetrics(connectionMetrics);
+			multiplexer.setChannelListener(opened -> channelTasks.execute(() -> echo(opened)));
+			
+			// exchange public keys, both HELLO frames cross in a single round trip
+			multiplexer.exchangeKeys();
+			
+			// channel 0 carries the conversation of a client that opens no channels
+			PKIChannel sessionChannel = multiplexer.getChannel(0);
+			channelTasks.execute(() -> echo(sessionChannel));
+			
+			// route the client's frames until it quits
+			multiplexer.demultiplex();
+		}
+		catch (IOException ioe) // connection dropped or stream error
+		{
+			System.out.println("Connection to " + socket.getRemoteSocketAddress() + " lost: " + ioe);
+		}
+		catch (GeneralSecurityException | IllegalArgumentException e) // key rejected or message could not be decrypted
+		{
+			System.out.println("Closing " + socket.getRemoteSocketAddress() + ", invalid message: " + e.getMessage());
+		}
+		catch (RejectedExecutionException ree) // no thread left for a channel
+		{
+			System.out.println("Closing " + socket.getRemoteSocketAddress() + ", no thread free for its channel");
+		}
+		finally
+		{
+			connectionMetrics.close();
+		}
+	}
+	
+	/**
+	 * Echoes the messages of one channel until the client closes it or the
+	 * connection ends
+	 * @param channel channel to be served
+	 */
+	private void echo(PKIChannel channel)
+	{
+		try
+		{
+			while (true)
+			{
+				// decrypted into the channel's reused buffer, so echoing allocates no message arrays
+				ByteBuffer message;
+				
+				// wait for the client's next message, EOF means the client closed the channel
+				try
+				{
+					message = channel.receiveBuffer();
+				}
+				catch (EOFException eof)
+				{
+					break;
+				}
+				
+				// send echoed message back to client, with the same encryption type
+				channel.send(channel.getMode(), message);
+			}
+			
+			if (channel.getId() != 0)
+			{
+				channel.close();
+			}
+		}
+		catch (IOException ioe) // connection ended, reported by run()
+		{
+		}
+		catch (GeneralSecurityException | IllegalArgumentException e) // message could not be decrypted
+		{
+			System.out.println("Closing " + socket.getRemoteSocketAddress() + ", invalid message on channel "
+					+ channel.getId() + ": " + e.getMessage());
+			try
+			{
+				socket.close();
+			}
+			catch (IOException ioe) // already closed
+			{
+			}
+		}
+	}
+}
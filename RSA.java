@@ -5,13 +5,30 @@ package pki_environment;
 
 import java.io.*;
 import java.math.BigInteger;
-import java.util.Random;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
 
 /**
  * Class to store and utilize RSA client/server's keys and
  * other data to perform encryption and decryption in a 
  * PKI environment. Offers encryption/decryption for confidentiality,
  * authentication, and both combined.
+ * <p>
+ * One instance may be shared by any number of threads. The local user's key is
+ * an immutable RSAKeyContext that setKeyContext replaces in a single write, and
+ * every operation finishes on the key it started with.
  * @author Colby Bratton
  *
  */
@@ -21,47 +38,74 @@ public class RSA {
 	// and priKey. Change be changed on the fly for testing purposes.
 	private static final int BITLENGTH = 2048;
 	
-	// values p, q, n, and phi(n) to be used generate pubKey and to 
-	// be used for encryption/decryption
-	private BigInteger myP;
-	private BigInteger myQ;
-	private BigInteger myN;
-	private BigInteger phiOfN;
-		
-	// public and private keys of local RSA user
-	private BigInteger myPubKey; // e_A
-	private BigInteger myPriKey; // d_A
-		
-	// p, q, and n of remote RSA user, used in encryption/decryption
-	// p * q = n
-	private BigInteger theirP;
-	private BigInteger theirQ;
-	private BigInteger theirN;
+	// latency of every RSA operation, published by PKIMetrics
+	private static final PKIMetrics METRICS = PKIMetrics.getDefault();
+	private static final LatencyHistogram ENCRYPT_CONFIDENTIALITY_LATENCY = METRICS.histogram("rsa.encryptConfidentiality");
+	private static final LatencyHistogram ENCRYPT_AUTHENTICATION_LATENCY = METRICS.histogram("rsa.encryptAuthentication");
+	private static final LatencyHistogram ENCRYPT_BOTH_LATENCY = METRICS.histogram("rsa.encryptBoth");
+	private static final LatencyHistogram DECRYPT_CONFIDENTIALITY_LATENCY = METRICS.histogram("rsa.decryptConfidentiality");
+	private static final LatencyHistogram DECRYPT_AUTHENTICATION_LATENCY = METRICS.histogram("rsa.decryptAuthentication");
+	private static final LatencyHistogram DECRYPT_BOTH_LATENCY = METRICS.histogram("rsa.decryptBoth");
+	
+	// block mode latency, indexed by RSAMode.ordinal()
+	private static final LatencyHistogram[] ENCRYPT_BLOCKS_LATENCY = METRICS.histogramPerMode("rsa.encryptBlocks");
+	private static final LatencyHistogram[] DECRYPT_BLOCKS_LATENCY = METRICS.histogramPerMode("rsa.decryptBlocks");
+	private static final LatencyHistogram SIGN_LATENCY = METRICS.histogram("rsa.sign");
+	private static final LatencyHistogram VERIFY_LATENCY = METRICS.histogram("rsa.verify");
+	
+	// DER encoded DigestInfo header naming SHA-256, placed in front of the digest
+	// by the EMSA-PKCS1-v1_5 signature encoding (RFC 8017, section 9.2)
+	private static final byte[] SHA256_DIGEST_INFO = {
+			0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01,
+			0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20 };
+	
+	// size of a SHA-256 digest in bytes
+	private static final int DIGEST_BYTES = 32;
+	
+	// smallest encoding: 0x00 0x01, at least 8 bytes of 0xFF padding, 0x00, then the DigestInfo
+	private static final int MIN_SIGNATURE_BYTES = 11 + SHA256_DIGEST_INFO.length + DIGEST_BYTES;
+	
+	// per thread array partial and direct buffer blocks are copied through
+	private static final ThreadLocal<byte[]> BLOCK_SCRATCH = ThreadLocal.withInitial(() -> new byte[0]);
+	
+	// key of the local RSA user, replaced as a whole when the key is rotated.
+	// Every operation reads it once and finishes on the context it read.
+	private volatile RSAKeyContext keys;
 		
-	// public key of remote RSA user
-	private BigInteger theirPubKey; // e_B
+	// n and public key of the default remote RSA user, used in encryption/decryption
+	// when no peer is given. Other peers may be passed to each operation.
+	private volatile RSAPeerKey theirKey; // n_B, e_B
+	
+	// executor batch operations are spread across
+	private volatile Executor batchExecutor = ForkJoinPool.commonPool();
  
 	/**
 	 * Default constructor to generate all key values for local RSA user
+	 * using the default public exponent (65537)
 	 */
     public RSA()
     {
-    	// random number used for generation of different key values
-        Random r = new Random();
-        
-        // generation of local users different key values
-        myP = BigInteger.probablePrime(BITLENGTH, r);
-        myQ = BigInteger.probablePrime(BITLENGTH, r);
-        myN = myP.multiply(myQ);
-        phiOfN = myP.subtract(BigInteger.ONE).multiply(myQ.subtract(BigInteger.ONE));
-        
-        // generate public and private key for local user
-        myPubKey = BigInteger.probablePrime(BITLENGTH / 2, r);
-        while (phiOfN.gcd(myPubKey).compareTo(BigInteger.ONE) > 0 && myPubKey.compareTo(phiOfN) < 0)
-        {
-            myPubKey.add(BigInteger.ONE);
-        }
-        myPriKey = myPubKey.modInverse(phiOfN);
+    	this(new RSAKeyGenerator(RSAKeyGenerator.DEFAULT_PUBLIC_EXPONENT, BITLENGTH).generateKeyPair());
+    }
+    
+    /**
+     * Constructor to generate a multi-prime key for local RSA user. n keeps the
+     * default size, but is split between more primes so private key operations
+     * use more, smaller exponentiations.
+     * @param primeCount number of primes in n, from 2 to RSAKeyGenerator.MAX_PRIME_COUNT
+     */
+    public RSA(int primeCount)
+    {
+    	this(new RSAKeyGenerator(RSAKeyGenerator.DEFAULT_PUBLIC_EXPONENT, 2 * BITLENGTH, primeCount).generateKeyPair());
+    }
+    
+    /**
+     * Constructor used to initialize local user from a generated key pair
+     * @param keyPair key pair holding p, q, any further primes, n, public key, and private key
+     */
+    public RSA(RSAKeyPair keyPair)
+    {
+    	this(new RSAKeyContext(keyPair));
     }
  
     /**
@@ -72,13 +116,121 @@ public class RSA {
      */
     public RSA(BigInteger pubKey, BigInteger priKey, BigInteger n)
     {
-        this.myPubKey = pubKey;
-        this.myPriKey = priKey;
-        this.myN = n;
+    	this(new RSAKeyContext(pubKey, priKey, n));
+    }
+    
+    /**
+     * Constructor used to initialize local user from stored key values, including
+     * the precomputed CRT values, so no key math is repeated. Used by RSAKeyStore.
+     * @param n value of n for local user
+     * @param pubKey public key of local user
+     * @param priKey private key of local user
+     * @param primes primes of n, p and q first, or an empty array if they are unknown
+     * @param exponents CRT exponent of each prime, in the same order
+     * @param coefficients CRT coefficient of each prime after the first
+     */
+    RSA(BigInteger n, BigInteger pubKey, BigInteger priKey,
+    		BigInteger[] primes, BigInteger[] exponents, BigInteger[] coefficients)
+    {
+    	this(new RSAKeyContext(n, pubKey, priKey, primes, exponents, coefficients));
+    }
+    
+    /**
+     * Constructor used to initialize local user from a prebuilt key context
+     * @param keys key of the local user
+     */
+    public RSA(RSAKeyContext keys)
+    {
+    	this.keys = keys;
+    }
+    
+    /**
+     * @return key of the local user that operations started now run on
+     */
+    public RSAKeyContext getKeyContext()
+    {
+    	return keys;
+    }
+    
+    /**
+     * Replaces the local user's key with a new one in a single write, so the
+     * instance can be shared by many threads while its key is rotated. Operations
+     * already running finish on the key they started with, and every operation
+     * started afterwards uses the new key.
+     * @param keys key of the local user from now on
+     */
+    public void setKeyContext(RSAKeyContext keys)
+    {
+    	this.keys = keys;
+    }
+    
+    /**
+     * Copies this instance onto its current key. The copy shares the key context,
+     * remote user, and batch executor, but is not affected by setKeyContext calls
+     * on this instance, so a session that announced the current key in its HELLO
+     * frame keeps decrypting with it however often the shared key is rotated.
+     * @return RSA instance on the current local key
+     */
+    public RSA snapshot()
+    {
+    	RSA snapshot = new RSA(keys);
+    	snapshot.theirKey = theirKey;
+    	snapshot.batchExecutor = batchExecutor;
+    	return snapshot;
+    }
+    
+    /**
+     * @return n value of the local user
+     */
+    public BigInteger getN()
+    {
+    	return keys.getN();
     }
     
     /**
-     * Creates a .key file containing the local users p value, q value, and public key
+     * @return public key of the local user
+     */
+    public BigInteger getPubKey()
+    {
+    	return keys.getPubKey();
+    }
+    
+    /**
+     * @return private key of the local user
+     */
+    BigInteger getPriKey()
+    {
+    	return keys.getPriKey();
+    }
+    
+    /**
+     * @return primes of the local user, p and q first, or an empty array if they are unknown
+     */
+    BigInteger[] getPrimes()
+    {
+    	return keys.getPrimes();
+    }
+    
+    /**
+     * @return CRT exponent d mod (r - 1) of every prime, in the order of getPrimes()
+     */
+    BigInteger[] getCRTExponents()
+    {
+    	return keys.getCRTExponents();
+    }
+    
+    /**
+     * @return CRT coefficient of every prime after the first: q^-1 mod p, then
+     *         (p * q * ... * r_(i-1))^-1 mod r_i for each further prime
+     */
+    BigInteger[] getCRTCoefficients()
+    {
+    	return keys.getCRTCoefficients();
+    }
+    
+    /**
+     * Creates a .key file containing the local users p value, q value, and public key.
+     * Multi-prime keys write their further primes after q, before the public key.
      * @param credFileName name of the credential file to be created
      */
     public void createCredentialsFile(String credFileName)
@@ -103,10 +255,14 @@ public class RSA {
     		// open a file output stream
     		try (BufferedWriter userCredsOutput = new BufferedWriter(new FileWriter((credFile))))
     		{
-    			// write local user's p, q, and public key to file as strings
-    			userCredsOutput.write(myP.toString() + "\n");
-    			userCredsOutput.write(myQ.toString() + "\n");
-    			userCredsOutput.write(myPubKey.toString());
+    			// write local user's p, q, further primes, and public key to file as strings,
+    			// all from the same key even if it is rotated meanwhile
+    			RSAKeyContext keys = this.keys;
+    			for (BigInteger prime : keys.getPrimes())
+    			{
+    				userCredsOutput.write(prime.toString() + "\n");
+    			}
+    			userCredsOutput.write(keys.getPubKey().toString());
     			
     			userCredsOutput.close();
     		}
@@ -121,6 +277,36 @@ public class RSA {
     	}
     }
     
+    /**
+     * Creates a public-only .key file containing the local users n value and public key.
+     * Unlike createCredentialsFile, the primes of n are not written, so the file may be
+     * handed to any remote user.
+     * @param credFileName name of the credential file to be created
+     */
+    public void exportPublicKey(String credFileName)
+    {
+    	File credFile = new File(credFileName.contains(".key") ? credFileName : credFileName + ".key");
+    	
+    	if (!credFile.exists()) // if file doesn't exist, create it
+    	{
+    		try (BufferedWriter userCredsOutput = new BufferedWriter(new FileWriter(credFile)))
+    		{
+    			// write local user's n and public key to file as strings
+    			RSAKeyContext keys = this.keys;
+    			userCredsOutput.write(keys.getN().toString() + "\n");
+    			userCredsOutput.write(keys.getPubKey().toString());
+    		}
+    		catch (IOException ioe) // if file output stream can't be created or opened, print warning message
+    		{
+    			System.out.println("There was an issue creating the file! Check file and try again!\n");
+    		}
+    	}
+    	else // if file exists, print notice to user
+    	{
+    		System.out.println("Credentials file " + credFileName + " already exists.\n");
+    	}
+    }
+    
     /**
      * Inputs a remote user credential file specified by the user. 
      * @param credFileName name of the remote user credential file to be input
@@ -147,33 +333,42 @@ public class RSA {
     	}
     	else // if file does exist, open it
     	{
-    		// open a file input stream
-    		try (BufferedReader userCredsInput = new BufferedReader(new FileReader(credFile)))
+    		try
     		{
-    			// input remote users p, q, and public key and store in this instance
-    			theirP = new BigInteger(userCredsInput.readLine());
-    			theirQ = new BigInteger(userCredsInput.readLine());
-    			theirPubKey = new BigInteger(userCredsInput.readLine());
-    			
-    			userCredsInput.close();
-    			
-    			// generate remote users n value
-    			theirN = theirP.multiply(theirQ);
+    			// input remote users primes and public key, n is generated from the primes
+    			theirKey = RSAPeerKey.fromCredentialsFile(credFile);
     			
     			/*
-    			 * Note: p, q, and public key must be written to file and read from file in that
-    			 *       specific order to work with this program.
+    			 * Note: p, q, any further primes, and public key must be written to file and
+    			 *       read from file in that specific order to work with this program.
     			 *       Additionally, n is generated instead of read from file as a precaution
     			 *       in case portions of the file are read from an outside user.
     			 */
     		}
-    		catch (IOException ioe) // if file can't be opened, print warning message
+    		catch (IOException ioe) // if file can't be opened or read, print warning message
     		{
     			System.out.println("There was an issue reading the file. Check file and try again!\n");
     		}
     	}
     }
     
+    /**
+     * Sets the default remote user, used by every operation that is not given a peer
+     * @param theirKey key of the remote user
+     */
+    public void setRemoteKey(RSAPeerKey theirKey)
+    {
+    	this.theirKey = theirKey;
+    }
+    
+    /**
+     * @return key of the default remote user, or null if none has been input
+     */
+    public RSAPeerKey getRemoteKey()
+    {
+    	return theirKey;
+    }
+    
     /**
      * Encrypts a user provided message using a remote user's public key and n value
      * This is used for Confidentiality purposes
@@ -182,7 +377,21 @@ public class RSA {
      */
     public byte[] encryptConfidentiality(byte[] message)
     {
-        return (new BigInteger(message)).modPow(theirPubKey, theirN).toByteArray();
+    	return encryptConfidentiality(message, theirKey);
+    }
+    
+    /**
+     * Encrypts a user provided message for Confidentiality to a specific remote user
+     * @param message message, in bytes, to be encrypted
+     * @param peer key of the remote user the message is for
+     * @return byte form of encrypted message
+     */
+    public byte[] encryptConfidentiality(byte[] message, RSAPeerKey peer)
+    {
+    	long start = System.nanoTime();
+        byte[] encrypted = peer.publicKeyOperation(new BigInteger(message)).toByteArray();
+        ENCRYPT_CONFIDENTIALITY_LATENCY.recordSince(start);
+        return encrypted;
     }
     
     /**
@@ -193,7 +402,10 @@ public class RSA {
      */
     public byte[] encryptAuthentication(byte[] message)
     {
-    	return (new BigInteger(message)).modPow(myPriKey, myN).toByteArray();
+    	long start = System.nanoTime();
+    	byte[] encrypted = keys.privateKeyOperation(new BigInteger(message)).toByteArray();
+    	ENCRYPT_AUTHENTICATION_LATENCY.recordSince(start);
+    	return encrypted;
     }
     
     /**
@@ -205,18 +417,37 @@ public class RSA {
      */
     public byte[] encryptBoth(byte[] message)
     {
+    	return encryptBoth(message, theirKey);
+    }
+    
+    /**
+     * Encrypts a user provided message for both Confidentiality and Authentication
+     * to a specific remote user
+     * @param message message, in bytes, to be encrypted
+     * @param peer key of the remote user the message is for
+     * @return byte form of encrypted message
+     */
+    public byte[] encryptBoth(byte[] message, RSAPeerKey peer)
+    {
+    	long start = System.nanoTime();
+    	RSAKeyContext keys = this.keys;
+    	byte[] encrypted;
+    	
     	// if local user's n value is smaller than remote user's, use remote user's 
     	// private key and n first
-    	if ((myN.compareTo(theirN)) == -1)
+    	if ((keys.getN().compareTo(peer.getN())) == -1)
     	{
-    		return ( (new BigInteger(message)).modPow(myPriKey, myN) ).modPow(theirPubKey, theirN).toByteArray();
+    		encrypted = peer.publicKeyOperation(keys.privateKeyOperation(new BigInteger(message))).toByteArray();
     	}
     	
     	// if local user's n value is larger, use local user's public key and n first
     	else
     	{
-    		return ( (new BigInteger(message)).modPow(theirPubKey, theirN) ).modPow(myPriKey, myN).toByteArray();
+    		encrypted = keys.privateKeyOperation(peer.publicKeyOperation(new BigInteger(message))).toByteArray();
     	}
+    	
+    	ENCRYPT_BOTH_LATENCY.recordSince(start);
+    	return encrypted;
     }
  
     /**
@@ -228,7 +459,10 @@ public class RSA {
      */
     public byte[] decryptConfidentiality(byte[] message)
     {
-    	return (new BigInteger(message)).modPow(myPriKey, myN).toByteArray();
+    	long start = System.nanoTime();
+    	byte[] decrypted = keys.privateKeyOperation(new BigInteger(message)).toByteArray();
+    	DECRYPT_CONFIDENTIALITY_LATENCY.recordSince(start);
+    	return decrypted;
     }
     
     /**
@@ -241,7 +475,21 @@ public class RSA {
      */
     public byte[] decryptAuthentication(byte[] message)
     {
-    	return (new BigInteger(message)).modPow(theirPubKey, theirN).toByteArray();
+    	return decryptAuthentication(message, theirKey);
+    }
+    
+    /**
+     * Decrypts an Authentication message from a specific remote user
+     * @param message message, in bytes, to be decrypted
+     * @param peer key of the remote user the message is from
+     * @return byte form of the decrypted message
+     */
+    public byte[] decryptAuthentication(byte[] message, RSAPeerKey peer)
+    {
+    	long start = System.nanoTime();
+    	byte[] decrypted = peer.publicKeyOperation(new BigInteger(message)).toByteArray();
+    	DECRYPT_AUTHENTICATION_LATENCY.recordSince(start);
+    	return decrypted;
     }
     
     /**
@@ -254,17 +502,760 @@ public class RSA {
      */
     public byte[] decryptBoth(byte[] message)
     {
+    	return decryptBoth(message, theirKey);
+    }
+    
+    /**
+     * Decrypts a Confidential and Authentication message from a specific remote user
+     * @param message message, in bytes, to be decrypted
+     * @param peer key of the remote user the message is from
+     * @return byte form of the decrypted message
+     */
+    public byte[] decryptBoth(byte[] message, RSAPeerKey peer)
+    {
+    	long start = System.nanoTime();
+    	RSAKeyContext keys = this.keys;
+    	byte[] decrypted;
+    	
     	// if local user's n value is smaller than remote user's, use remote user's
     	// public key and n value first
-    	if ((myN.compareTo(theirN)) == -1)
+    	if ((keys.getN().compareTo(peer.getN())) == -1)
     	{
-    		return ( (new BigInteger(message)).modPow(theirPubKey, theirN) ).modPow(myPriKey, myN).toByteArray();
+    		decrypted = keys.privateKeyOperation(peer.publicKeyOperation(new BigInteger(message))).toByteArray();
     	}
     	// if local user's n value is larger, user local user's private key and
     	// n value first
     	else
     	{
-    		return ( (new BigInteger(message)).modPow(myPriKey, myN) ).modPow(theirPubKey, theirN).toByteArray();
+    		decrypted = peer.publicKeyOperation(keys.privateKeyOperation(new BigInteger(message))).toByteArray();
     	}
+    	
+    	DECRYPT_BOTH_LATENCY.recordSince(start);
+    	return decrypted;
+    }
+    
+    /**
+     * Signs a message with the local user's private key. The message is hashed
+     * with SHA-256 and the padded digest is raised to the private key, so signing
+     * costs one private key operation whatever the length of the message.
+     * @param message message, in bytes, to be signed
+     * @return signature, always the byte width of the local user's n value
+     */
+    public byte[] sign(byte[] message)
+    {
+    	long start = System.nanoTime();
+    	RSAKeyContext keys = this.keys;
+    	int width = byteWidth(keys.getN());
+    	
+    	byte[] signature = new byte[width];
+    	writeFixedWidth(keys.privateKeyOperation(new BigInteger(1, encodeDigest(message, width))), signature, 0, width);
+    	
+    	SIGN_LATENCY.recordSince(start);
+    	return signature;
+    }
+    
+    /**
+     * Checks a signature made by sign() with a remote user's private key. Only
+     * the remote user's public key is used, so verifying is cheap.
+     * @param message message, in bytes, the signature should cover
+     * @param signature signature received with the message
+     * @param peer key of the remote user who signed the message
+     * @return true if the signature is valid for the message and the remote user
+     */
+    public boolean verify(byte[] message, byte[] signature, RSAPeerKey peer)
+    {
+    	long start = System.nanoTime();
+    	int width = byteWidth(peer.getN());
+    	boolean valid = false;
+    	
+    	BigInteger value = new BigInteger(1, signature);
+    	if (signature.length == width && value.compareTo(peer.getN()) < 0)
+    	{
+    		byte[] recovered = new byte[width];
+    		writeFixedWidth(peer.publicKeyOperation(value), recovered, 0, width);
+    		
+    		// constant time comparison against the encoding we expect
+    		valid = MessageDigest.isEqual(recovered, encodeDigest(message, width));
+    	}
+    	
+    	VERIFY_LATENCY.recordSince(start);
+    	return valid;
+    }
+    
+    /**
+     * Builds a signed message for Authentication or Both. Authentication sends
+     * the signature followed by the plaintext. Both encrypts that same signed
+     * message for Confidentiality in block mode, so the signature is hidden as
+     * well and cannot be used to test guesses of the plaintext.
+     * @param message message, in bytes, to be signed
+     * @param mode Authentication or Both
+     * @param peer key of the remote user the message is for
+     * @return signature and plaintext, encrypted for the remote user for Both
+     */
+    public byte[] encryptSigned(byte[] message, RSAMode mode, RSAPeerKey peer)
+    {
+    	if (mode == RSAMode.CONFIDENTIALITY)
+    	{
+    		throw new IllegalArgumentException("Confidentiality messages are not signed");
+    	}
+    	
+    	byte[] signature = sign(message);
+    	byte[] signed = new byte[signature.length + message.length];
+    	System.arraycopy(signature, 0, signed, 0, signature.length);
+    	System.arraycopy(message, 0, signed, signature.length, message.length);
+    	
+    	if (mode == RSAMode.BOTH)
+    	{
+    		return encryptBlocks(signed, RSAMode.CONFIDENTIALITY, peer);
+    	}
+    	return signed;
+    }
+    
+    /**
+     * Opens a signed message built by encryptSigned and checks its signature
+     * @param message signed message, in bytes
+     * @param mode Authentication or Both
+     * @param peer key of the remote user the message is from
+     * @return plaintext of the message
+     * @throws SignatureException if the signature is missing or not valid
+     */
+    public byte[] decryptSigned(byte[] message, RSAMode mode, RSAPeerKey peer) throws SignatureException
+    {
+    	if (mode == RSAMode.CONFIDENTIALITY)
+    	{
+    		throw new IllegalArgumentException("Confidentiality messages are not signed");
+    	}
+    	
+    	byte[] signed = mode == RSAMode.BOTH ? decryptBlocks(message, RSAMode.CONFIDENTIALITY, peer) : message;
+    	
+    	// the signature is as wide as the sender's n value
+    	int width = byteWidth(peer.getN());
+    	if (signed.length < width)
+    	{
+    		throw new SignatureException("Signed message is shorter than its signature");
+    	}
+    	byte[] signature = Arrays.copyOfRange(signed, 0, width);
+    	byte[] plaintext = Arrays.copyOfRange(signed, width, signed.length);
+    	
+    	if (!verify(plaintext, signature, peer))
+    	{
+    		throw new SignatureException("Message signature is not valid");
+    	}
+    	return plaintext;
+    }
+    
+    /**
+     * Encodes the SHA-256 digest of a message as EMSA-PKCS1-v1_5 (RFC 8017):
+     * 0x00 0x01, 0xFF padding, 0x00, the DigestInfo header, then the digest
+     * @param message message, in bytes, to be hashed
+     * @param width byte width of the signing n value
+     * @return encoded digest, width bytes long
+     */
+    private static byte[] encodeDigest(byte[] message, int width)
+    {
+    	if (width < MIN_SIGNATURE_BYTES)
+    	{
+    		throw new IllegalArgumentException("n is too small to sign a SHA-256 digest");
+    	}
+    	
+    	byte[] digest;
+    	try
+    	{
+    		digest = MessageDigest.getInstance("SHA-256").digest(message);
+    	}
+    	catch (NoSuchAlgorithmException nsae) // every Java platform must provide SHA-256
+    	{
+    		throw new IllegalStateException(nsae);
+    	}
+    	
+    	byte[] encoded = new byte[width];
+    	int digestInfoStart = width - DIGEST_BYTES - SHA256_DIGEST_INFO.length;
+    	encoded[1] = 0x01;
+    	Arrays.fill(encoded, 2, digestInfoStart - 1, (byte) 0xFF);
+    	System.arraycopy(SHA256_DIGEST_INFO, 0, encoded, digestInfoStart, SHA256_DIGEST_INFO.length);
+    	System.arraycopy(digest, 0, encoded, width - DIGEST_BYTES, DIGEST_BYTES);
+    	return encoded;
+    }
+    
+    /**
+     * Encrypts a message of any length in block mode. The message is split into
+     * blocks that are each smaller than the n value they are encrypted under,
+     * and every block is written at the fixed byte width of the ciphertext n value.
+     * Blocks are encrypted in parallel and kept in order.
+     * Output layout: 4 byte message length, followed by the encrypted blocks.
+     * @param message message, in bytes, to be encrypted
+     * @param mode Confidentiality, Authentication, or Both
+     * @return byte form of encrypted message
+     */
+    public byte[] encryptBlocks(byte[] message, RSAMode mode)
+    {
+    	return encryptBlocks(message, mode, theirKey);
+    }
+    
+    /**
+     * Encrypts a message of any length in block mode to a specific remote user
+     * @param message message, in bytes, to be encrypted
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is for
+     * @return byte form of encrypted message
+     */
+    public byte[] encryptBlocks(byte[] message, RSAMode mode, RSAPeerKey peer)
+    {
+    	// the output is sized and filled under the same key
+    	RSAKeyContext keys = this.keys;
+    	byte[] encrypted = new byte[blockLayoutLength(message.length, mode, keys.getN(), peer.getN())];
+    	encryptBlocks(ByteBuffer.wrap(message), ByteBuffer.wrap(encrypted), mode, peer, keys);
+    	return encrypted;
+    }
+    
+    /**
+     * Size of a message once encrypted in block mode to a specific remote user,
+     * so callers can size the output buffer of encryptBlocks ahead of time
+     * @param messageLength message length in bytes
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is for
+     * @return encrypted length in bytes, length prefix included
+     */
+    public int encryptedLength(int messageLength, RSAMode mode, RSAPeerKey peer)
+    {
+    	return blockLayoutLength(messageLength, mode, keys.getN(), peer.getN());
+    }
+    
+    /**
+     * Size of a message encrypted in block mode by a specific remote user for the
+     * local user, the receiving counterpart of encryptedLength, so a reader can
+     * tell where one of several messages stored back to back ends
+     * @param messageLength message length in bytes
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is from
+     * @return encrypted length in bytes, length prefix included
+     */
+    public int encryptedLengthFrom(int messageLength, RSAMode mode, RSAPeerKey peer)
+    {
+    	// remote user sent, local user receives
+    	return blockLayoutLength(messageLength, mode, peer.getN(), keys.getN());
+    }
+    
+    /**
+     * Encrypts a message in block mode from one buffer straight into another.
+     * Blocks are read from and written to the buffers in place, and every block
+     * is written at the fixed byte width of the ciphertext n value, so no array
+     * the size of the message is allocated.
+     * @param message buffer whose remaining bytes are encrypted, left at its limit
+     * @param out buffer the encrypted message is written to at its position,
+     *        which is moved past it
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is for
+     * @return number of bytes written to out, see encryptedLength
+     * @throws java.nio.BufferOverflowException if out has too little room left
+     */
+    public int encryptBlocks(ByteBuffer message, ByteBuffer out, RSAMode mode, RSAPeerKey peer)
+    {
+    	return encryptBlocks(message, out, mode, peer, keys);
+    }
+    
+    /**
+     * Encrypts a message in block mode with every block under the same local key
+     * @param message buffer whose remaining bytes are encrypted, left at its limit
+     * @param out buffer the encrypted message is written to at its position
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is for
+     * @param keys key of the local user
+     * @return number of bytes written to out
+     */
+    private int encryptBlocks(ByteBuffer message, ByteBuffer out, RSAMode mode, RSAPeerKey peer, RSAKeyContext keys)
+    {
+    	long startNanos = System.nanoTime();
+    	
+    	// local user sends, remote user receives
+    	int plainWidth = plainBlockWidth(mode, keys.getN(), peer.getN());
+    	int cipherWidth = byteWidth(cipherModulus(mode, keys.getN(), peer.getN()));
+    	int messageLen = message.remaining();
+    	int blockCount = (messageLen + plainWidth - 1) / plainWidth;
+    	int encryptedLen = Integer.BYTES + blockCount * cipherWidth;
+    	if (out.remaining() < encryptedLen)
+    	{
+    		throw new BufferOverflowException();
+    	}
+    	
+    	int messageStart = message.position();
+    	int outStart = out.position();
+    	putLength(out, outStart, messageLen);
+    	
+    	// every block's exponentiation is independent, so spread them across cores
+    	IntStream.range(0, blockCount).parallel().forEach(i -> {
+    		// the last block is zero padded on the right to the full block width
+    		int offset = i * plainWidth;
+    		BigInteger value = readBlock(message, messageStart + offset, Math.min(plainWidth, messageLen - offset), plainWidth);
+    		
+    		putFixedWidth(encryptValue(value, mode, peer, keys), out, outStart + Integer.BYTES + i * cipherWidth,
+    				cipherWidth, cipherWidth);
+    	});
+    	
+    	message.position(message.limit());
+    	out.position(outStart + encryptedLen);
+    	ENCRYPT_BLOCKS_LATENCY[mode.ordinal()].recordSince(startNanos);
+    	return encryptedLen;
+    }
+    
+    /**
+     * Decrypts a message produced by encryptBlocks. Blocks are decrypted in
+     * parallel and reassembled in order, and the padding of the last block
+     * is removed using the message length stored at the front.
+     * @param message message, in bytes, to be decrypted
+     * @param mode Confidentiality, Authentication, or Both
+     * @return byte form of the decrypted message
+     */
+    public byte[] decryptBlocks(byte[] message, RSAMode mode)
+    {
+    	return decryptBlocks(message, mode, theirKey);
+    }
+    
+    /**
+     * Decrypts a message produced by encryptBlocks from a specific remote user
+     * @param message message, in bytes, to be decrypted
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is from
+     * @return byte form of the decrypted message
+     */
+    public byte[] decryptBlocks(byte[] message, RSAMode mode, RSAPeerKey peer)
+    {
+    	// the output is sized and filled under the same key
+    	RSAKeyContext keys = this.keys;
+    	ByteBuffer encrypted = ByteBuffer.wrap(message);
+    	byte[] decrypted = new byte[decryptedLength(encrypted, mode, peer, keys.getN())];
+    	decryptBlocks(encrypted, ByteBuffer.wrap(decrypted), mode, peer, keys);
+    	return decrypted;
+    }
+    
+    /**
+     * Checks the layout of a block mode message from a specific remote user and
+     * reads its plaintext length, so callers can size the output buffer of
+     * decryptBlocks ahead of time. The buffer's position is not moved.
+     * @param message buffer whose remaining bytes are an encrypted message
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is from
+     * @return decrypted length in bytes
+     * @throws IllegalArgumentException if the message is not a whole number of blocks
+     */
+    public int decryptedLength(ByteBuffer message, RSAMode mode, RSAPeerKey peer)
+    {
+    	return decryptedLength(message, mode, peer, keys.getN());
+    }
+    
+    /**
+     * Checks the layout of a block mode message and reads its plaintext length
+     * @param message buffer whose remaining bytes are an encrypted message
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is from
+     * @param localN n value of the local key the message is decrypted with
+     * @return decrypted length in bytes
+     * @throws IllegalArgumentException if the message is not a whole number of blocks
+     */
+    private static int decryptedLength(ByteBuffer message, RSAMode mode, RSAPeerKey peer, BigInteger localN)
+    {
+    	// remote user sent, local user receives
+    	int plainWidth = plainBlockWidth(mode, peer.getN(), localN);
+    	int cipherWidth = byteWidth(cipherModulus(mode, peer.getN(), localN));
+    	
+    	// check the layout before trusting the stored length
+    	if (message.remaining() < Integer.BYTES || (message.remaining() - Integer.BYTES) % cipherWidth != 0)
+    	{
+    		throw new IllegalArgumentException("Message is not a whole number of blocks");
+    	}
+    	int messageLen = getLength(message, message.position());
+    	int blockCount = (message.remaining() - Integer.BYTES) / cipherWidth;
+    	if (messageLen < 0 || (messageLen + plainWidth - 1) / plainWidth != blockCount)
+    	{
+    		throw new IllegalArgumentException("Message length does not match the number of blocks");
+    	}
+    	return messageLen;
+    }
+    
+    /**
+     * Decrypts a block mode message from one buffer straight into another. Blocks
+     * are read and the plaintext is written in place, with the padding of the last
+     * block never written, so no array the size of the message is allocated.
+     * @param message buffer whose remaining bytes are an encrypted message, left at its limit
+     * @param out buffer the plaintext is written to at its position, which is moved past it
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is from
+     * @return number of bytes written to out, see decryptedLength
+     * @throws IllegalArgumentException if the message is not a valid block mode message
+     * @throws java.nio.BufferOverflowException if out has too little room left
+     */
+    public int decryptBlocks(ByteBuffer message, ByteBuffer out, RSAMode mode, RSAPeerKey peer)
+    {
+    	return decryptBlocks(message, out, mode, peer, keys);
+    }
+    
+    /**
+     * Decrypts a block mode message with every block under the same local key
+     * @param message buffer whose remaining bytes are an encrypted message, left at its limit
+     * @param out buffer the plaintext is written to at its position
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user the message is from
+     * @param keys key of the local user
+     * @return number of bytes written to out
+     */
+    private int decryptBlocks(ByteBuffer message, ByteBuffer out, RSAMode mode, RSAPeerKey peer, RSAKeyContext keys)
+    {
+    	long startNanos = System.nanoTime();
+    	
+    	// remote user sent, local user receives
+    	int plainWidth = plainBlockWidth(mode, peer.getN(), keys.getN());
+    	BigInteger cipherModulus = cipherModulus(mode, peer.getN(), keys.getN());
+    	int cipherWidth = byteWidth(cipherModulus);
+    	int messageLen = decryptedLength(message, mode, peer, keys.getN());
+    	int blockCount = (message.remaining() - Integer.BYTES) / cipherWidth;
+    	if (out.remaining() < messageLen)
+    	{
+    		throw new BufferOverflowException();
+    	}
+    	
+    	int messageStart = message.position() + Integer.BYTES;
+    	int outStart = out.position();
+    	
+    	IntStream.range(0, blockCount).parallel().forEach(i -> {
+    		BigInteger value = readBlock(message, messageStart + i * cipherWidth, cipherWidth, cipherWidth);
+    		if (value.compareTo(cipherModulus) >= 0)
+    		{
+    			throw new IllegalArgumentException("Block " + i + " is not smaller than n");
+    		}
+    		
+    		// only the part of the last block inside the message is written
+    		int offset = i * plainWidth;
+    		putFixedWidth(decryptValue(value, mode, peer, keys), out, outStart + offset,
+    				plainWidth, Math.min(plainWidth, messageLen - offset));
+    	});
+    	
+    	message.position(message.limit());
+    	out.position(outStart + messageLen);
+    	DECRYPT_BLOCKS_LATENCY[mode.ordinal()].recordSince(startNanos);
+    	return messageLen;
+    }
+    
+    /**
+     * Applies the encryption of a mode to a single block value
+     * @param value block value, smaller than the plaintext n value of the mode
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user
+     * @param keys key of the local user
+     * @return encrypted block value
+     */
+    private static BigInteger encryptValue(BigInteger value, RSAMode mode, RSAPeerKey peer, RSAKeyContext keys)
+    {
+    	switch (mode)
+    	{
+    		case CONFIDENTIALITY:
+    			return peer.publicKeyOperation(value);
+    		case AUTHENTICATION:
+    			return keys.privateKeyOperation(value);
+    		default:
+    			// smaller n value is always applied first
+    			if ((keys.getN().compareTo(peer.getN())) == -1)
+    			{
+    				return peer.publicKeyOperation(keys.privateKeyOperation(value));
+    			}
+    			return keys.privateKeyOperation(peer.publicKeyOperation(value));
+    	}
+    }
+    
+    /**
+     * Applies the decryption of a mode to a single block value
+     * @param value encrypted block value
+     * @param mode Confidentiality, Authentication, or Both
+     * @param peer key of the remote user
+     * @param keys key of the local user
+     * @return decrypted block value
+     */
+    private static BigInteger decryptValue(BigInteger value, RSAMode mode, RSAPeerKey peer, RSAKeyContext keys)
+    {
+    	switch (mode)
+    	{
+    		case CONFIDENTIALITY:
+    			return keys.privateKeyOperation(value);
+    		case AUTHENTICATION:
+    			return peer.publicKeyOperation(value);
+    		default:
+    			// larger n value is always removed first
+    			if ((keys.getN().compareTo(peer.getN())) == -1)
+    			{
+    				return keys.privateKeyOperation(peer.publicKeyOperation(value));
+    			}
+    			return peer.publicKeyOperation(keys.privateKeyOperation(value));
+    	}
+    }
+    
+    /**
+     * Size of a message once encrypted in block mode, length prefix included
+     * @param messageLength message length in bytes
+     * @param mode Confidentiality, Authentication, or Both
+     * @param senderN n value of the user encrypting the message
+     * @param recipientN n value of the user decrypting the message
+     * @return encrypted length in bytes
+     */
+    private static int blockLayoutLength(int messageLength, RSAMode mode, BigInteger senderN, BigInteger recipientN)
+    {
+    	int plainWidth = plainBlockWidth(mode, senderN, recipientN);
+    	int cipherWidth = byteWidth(cipherModulus(mode, senderN, recipientN));
+    	return Integer.BYTES + (messageLength + plainWidth - 1) / plainWidth * cipherWidth;
+    }
+    
+    /**
+     * Number of message bytes carried by each block of a mode. Blocks are one
+     * byte narrower than the smallest n value used, so every block is below it.
+     * @param mode Confidentiality, Authentication, or Both
+     * @param senderN n value of the user encrypting the message
+     * @param recipientN n value of the user decrypting the message
+     * @return plaintext bytes per block
+     */
+    private static int plainBlockWidth(RSAMode mode, BigInteger senderN, BigInteger recipientN)
+    {
+    	BigInteger plainModulus;
+    	switch (mode)
+    	{
+    		case CONFIDENTIALITY:
+    			plainModulus = recipientN;
+    			break;
+    		case AUTHENTICATION:
+    			plainModulus = senderN;
+    			break;
+    		default:
+    			plainModulus = senderN.min(recipientN);
+    	}
+    	return (plainModulus.bitLength() - 1) / 8;
+    }
+    
+    /**
+     * n value that encrypted blocks of a mode are reduced by last
+     * @param mode Confidentiality, Authentication, or Both
+     * @param senderN n value of the user encrypting the message
+     * @param recipientN n value of the user decrypting the message
+     * @return n value bounding every encrypted block
+     */
+    private static BigInteger cipherModulus(RSAMode mode, BigInteger senderN, BigInteger recipientN)
+    {
+    	switch (mode)
+    	{
+    		case CONFIDENTIALITY:
+    			return recipientN;
+    		case AUTHENTICATION:
+    			return senderN;
+    		default:
+    			return senderN.max(recipientN);
+    	}
+    }
+    
+    /**
+     * @param n modulus
+     * @return number of bytes needed to hold any value below n
+     */
+    private static int byteWidth(BigInteger n)
+    {
+    	return (n.bitLength() + 7) / 8;
+    }
+    
+    /**
+     * Writes a non-negative value big-endian at a fixed width, left padded with
+     * zeros, unlike toByteArray() which drops leading zeros and adds a sign byte
+     * @param value value to be written, must fit in width bytes
+     * @param out destination array
+     * @param offset position of the first byte in out
+     * @param width number of bytes to write
+     */
+    private static void writeFixedWidth(BigInteger value, byte[] out, int offset, int width)
+    {
+    	byte[] bytes = value.toByteArray();
+    	
+    	// skip the sign byte toByteArray() adds when the top bit is set
+    	int skip = bytes.length > width ? bytes.length - width : 0;
+    	int length = bytes.length - skip;
+    	
+    	Arrays.fill(out, offset, offset + width - length, (byte) 0);
+    	System.arraycopy(bytes, skip, out, offset + width - length, length);
+    }
+    
+    /**
+     * Reads a block as an unsigned value, zero padded on the right to a full
+     * block. A full block of a heap buffer is read from its array without a copy,
+     * anything else goes through a scratch array kept per thread.
+     * @param in buffer holding the block
+     * @param index position of the block's first byte in the buffer
+     * @param length number of bytes of the block present in the buffer
+     * @param width full width of the block in bytes
+     * @return block value
+     */
+    private static BigInteger readBlock(ByteBuffer in, int index, int length, int width)
+    {
+    	if (length == width && in.hasArray())
+    	{
+    		return new BigInteger(1, in.array(), in.arrayOffset() + index, width);
+    	}
+    	
+    	byte[] scratch = BLOCK_SCRATCH.get();
+    	if (scratch.length < width)
+    	{
+    		scratch = new byte[width];
+    		BLOCK_SCRATCH.set(scratch);
+    	}
+    	in.get(index, scratch, 0, length);
+    	Arrays.fill(scratch, length, width, (byte) 0);
+    	return new BigInteger(1, scratch, 0, width);
+    }
+    
+    /**
+     * Writes the first bytes of a value's fixed width big-endian form into a
+     * buffer, without moving the buffer's position
+     * @param value value to be written, must fit in width bytes
+     * @param out destination buffer
+     * @param index position of the first byte in out
+     * @param width fixed width of the value in bytes
+     * @param length number of leading bytes of the fixed width form to write
+     */
+    private static void putFixedWidth(BigInteger value, ByteBuffer out, int index, int width, int length)
+    {
+    	byte[] bytes = value.toByteArray();
+    	
+    	// skip the sign byte toByteArray() adds when the top bit is set
+    	int skip = bytes.length > width ? bytes.length - width : 0;
+    	int zeros = width - (bytes.length - skip);
+    	
+    	for (int j = 0; j < Math.min(zeros, length); j++)
+    	{
+    		out.put(index + j, (byte) 0);
+    	}
+    	if (length > zeros)
+    	{
+    		out.put(index + zeros, bytes, skip, length - zeros);
+    	}
+    }
+    
+    /**
+     * Writes the 4 byte message length of the block mode layout, big-endian
+     * whatever the byte order of the buffer
+     */
+    private static void putLength(ByteBuffer out, int index, int length)
+    {
+    	for (int j = 0; j < Integer.BYTES; j++)
+    	{
+    		out.put(index + j, (byte) (length >>> (8 * (Integer.BYTES - 1 - j))));
+    	}
+    }
+    
+    /**
+     * Reads the 4 byte message length of the block mode layout
+     */
+    private static int getLength(ByteBuffer in, int index)
+    {
+    	int length = 0;
+    	for (int j = 0; j < Integer.BYTES; j++)
+    	{
+    		length = (length << 8) | (in.get(index + j) & 0xFF);
+    	}
+    	return length;
+    }
+    
+    /**
+     * Sets the executor that batch operations run their messages on
+     * @param batchExecutor executor for batch operations
+     */
+    public void setBatchExecutor(Executor batchExecutor)
+    {
+    	this.batchExecutor = batchExecutor;
+    }
+    
+    /**
+     * Encrypts a batch of messages for Confidentiality in parallel
+     * @param messages messages, in bytes, to be encrypted
+     * @return one result per message, in the same order
+     */
+    public List<RSABatchResult> encryptConfidentialityBatch(List<byte[]> messages)
+    {
+    	return runBatch(messages, this::encryptConfidentiality);
+    }
+    
+    /**
+     * Encrypts a batch of messages for Authentication in parallel
+     * @param messages messages, in bytes, to be encrypted
+     * @return one result per message, in the same order
+     */
+    public List<RSABatchResult> encryptAuthenticationBatch(List<byte[]> messages)
+    {
+    	return runBatch(messages, this::encryptAuthentication);
+    }
+    
+    /**
+     * Encrypts a batch of messages for both Confidentiality and Authentication in parallel
+     * @param messages messages, in bytes, to be encrypted
+     * @return one result per message, in the same order
+     */
+    public List<RSABatchResult> encryptBothBatch(List<byte[]> messages)
+    {
+    	return runBatch(messages, this::encryptBoth);
+    }
+    
+    /**
+     * Decrypts a batch of Confidential messages in parallel
+     * @param messages messages, in bytes, to be decrypted
+     * @return one result per message, in the same order
+     */
+    public List<RSABatchResult> decryptConfidentialityBatch(List<byte[]> messages)
+    {
+    	return runBatch(messages, this::decryptConfidentiality);
+    }
+    
+    /**
+     * Decrypts a batch of Authentication messages in parallel
+     * @param messages messages, in bytes, to be decrypted
+     * @return one result per message, in the same order
+     */
+    public List<RSABatchResult> decryptAuthenticationBatch(List<byte[]> messages)
+    {
+    	return runBatch(messages, this::decryptAuthentication);
+    }
+    
+    /**
+     * Decrypts a batch of Confidential and Authentication messages in parallel
+     * @param messages messages, in bytes, to be decrypted
+     * @return one result per message, in the same order
+     */
+    public List<RSABatchResult> decryptBothBatch(List<byte[]> messages)
+    {
+    	return runBatch(messages, this::decryptBoth);
+    }
+    
+    /**
+     * Runs an operation on every message of a batch on the batch executor.
+     * A message that fails is recorded in its result instead of failing the batch.
+     * @param messages messages, in bytes, to be processed
+     * @param operation single message operation
+     * @return one result per message, in the same order
+     */
+    private List<RSABatchResult> runBatch(List<byte[]> messages, UnaryOperator<byte[]> operation)
+    {
+    	List<CompletableFuture<byte[]>> pending = new ArrayList<>(messages.size());
+    	for (byte[] message : messages)
+    	{
+    		pending.add(CompletableFuture.supplyAsync(() -> operation.apply(message), batchExecutor));
+    	}
+    	
+    	// collect in submission order, so results line up with messages
+    	List<RSABatchResult> results = new ArrayList<>(messages.size());
+    	for (CompletableFuture<byte[]> result : pending)
+    	{
+    		try
+    		{
+    			results.add(new RSABatchResult(result.join(), null));
+    		}
+    		catch (CompletionException ce) // operation threw, keep its exception
+    		{
+    			RuntimeException failure = ce.getCause() instanceof RuntimeException
+    					? (RuntimeException) ce.getCause() : ce;
+    			results.add(new RSABatchResult(null, failure));
+    		}
+    	}
+    	
+    	return results;
     }
-}
\ No newline at end of file
+}
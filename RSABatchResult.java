@@ -0,0 +1,55 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+/**
+ * Result of a single message of an RSA batch operation. Holds either the
+ * output bytes or the exception that message failed with, so one bad
+ * message does not fail the rest of the batch.
+ * @author Colby Bratton
+ *
+ */
+public final class RSABatchResult {
+	
+	// output of the operation, null if it failed
+	private final byte[] output;
+	
+	// exception the operation failed with, null if it succeeded
+	private final RuntimeException failure;
+	
+	/**
+	 * Constructor used by RSA to record the outcome of one message
+	 * @param output output of the operation, or null
+	 * @param failure exception the operation failed with, or null
+	 */
+	RSABatchResult(byte[] output, RuntimeException failure)
+	{
+		this.output = output;
+		this.failure = failure;
+	}
+	
+	/**
+	 * @return true if the message was processed without error
+	 */
+	public boolean isSuccess()
+	{
+		return failure == null;
+	}
+	
+	/**
+	 * @return encrypted or decrypted bytes, null if the message failed
+	 */
+	public byte[] getOutput()
+	{
+		return output;
+	}
+	
+	/**
+	 * @return exception the message failed with, null if it succeeded
+	 */
+	public RuntimeException getFailure()
+	{
+		return failure;
+	}
+}
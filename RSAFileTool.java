@@ -0,0 +1,362 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Command line tool that encrypts and decrypts whole files with the same keys
+ * used for messaging: the local user's key from the keystore named by
+ * -Dpki.keystore, and a remote user's imported credential file. The input is
+ * read through memory-mapped windows and handled one chunk at a time, each
+ * chunk's blocks encrypted or decrypted in parallel by RSA's block mode, and
+ * the output is written chunk by chunk, so files of any size run in constant
+ * memory. Like block mode messages, chunks carry no integrity check: a file cut
+ * short or padded out is rejected, but changed blocks decrypt to changed data.
+ * <p>
+ * Layout of an encrypted file, all integers big-endian:
+ * <pre>
+ * int   magic ("PKIE")
+ * byte  format version (1)
+ * byte  mode (C, A, or B)
+ * int   plaintext bytes per chunk
+ * long  plaintext length, -1 until the last chunk has been written
+ * ...   one block mode message (see RSA.encryptBlocks) per chunk, every chunk
+ *       full except the last
+ * </pre>
+ * Usage:
+ * <pre>
+ * java -Dpki.keystore=me.pks pki_environment.RSAFileTool encrypt C|A|B &lt;credential file&gt; &lt;input&gt; &lt;output&gt;
+ * java -Dpki.keystore=me.pks pki_environment.RSAFileTool decrypt &lt;credential file&gt; &lt;input&gt; &lt;output&gt;
+ * java -Dpki.keystore=me.pks pki_environment.RSAFileTool export &lt;credential file&gt;
+ * </pre>
+ * export writes a public-only credential file of the local user's key, the file
+ * remote users encrypt to and check signatures with. When -Dpki.keyring names a
+ * directory of credential files (see RSAKeyring), a credential file that does
+ * not exist is looked up there by peer ID or by key fingerprint.
+ * @author Colby Bratton
+ *
+ */
+public final class RSAFileTool {
+	
+	// first four bytes of every encrypted file, "PKIE"
+	private static final int MAGIC = 0x504B4945;
+	
+	// format version written by this class
+	private static final byte VERSION = 1;
+	
+	// size of the file header, and where its plaintext length is
+	private static final int HEADER_BYTES = 18;
+	private static final int LENGTH_OFFSET = 10;
+	
+	// plaintext bytes encrypted per chunk, set with -Dpki.file.chunkBytes=<bytes>
+	public static final int CHUNK_BYTES = Integer.getInteger("pki.file.chunkBytes", 1024 * 1024);
+	
+	// largest chunk written by encrypt or accepted from the header of a file being decrypted
+	private static final int MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+	
+	// bytes of the input mapped at once
+	private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+	
+	private RSAFileTool()
+	{
+	}
+	
+	/**
+	 * Encrypts a file for a remote user
+	 * @param rsa RSA instance of the local user
+	 * @param peer key of the remote user the file is for
+	 * @param mode Confidentiality, Authentication, or Both
+	 * @param input file to be encrypted
+	 * @param output encrypted file, replaced if it exists
+	 * @return number of plaintext bytes encrypted
+	 * @throws IOException if a file cannot be read or written, or CHUNK_BYTES is out of range
+	 */
+	public static long encrypt(RSA rsa, RSAPeerKey peer, RSAMode mode, Path input, Path output) throws IOException
+	{
+		// a chunk of 0 bytes would never advance, a larger one could not be decrypted
+		if (CHUNK_BYTES < 1 || CHUNK_BYTES > MAX_CHUNK_BYTES)
+		{
+			throw new IOException("Chunk size " + CHUNK_BYTES + " out of range");
+		}
+		
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			long size = in.size();
+			
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+					.putInt(MAGIC).put(VERSION).put((byte) mode.name().charAt(0))
+					.putInt(CHUNK_BYTES).putLong(-1);
+			writeFully(out, header.flip());
+			
+			// one encrypted chunk, reused for every chunk
+			ByteBuffer record = ByteBuffer.allocateDirect(rsa.encryptedLength(CHUNK_BYTES, mode, peer));
+			MappedWindow window = new MappedWindow(in, size);
+			
+			for (long position = 0; position < size; position += CHUNK_BYTES)
+			{
+				int length = (int) Math.min(CHUNK_BYTES, size - position);
+				
+				// the chunk's blocks are encrypted in parallel, straight out of the mapping
+				record.clear();
+				rsa.encryptBlocks(window.region(position, length), record, mode, peer);
+				writeFully(out, record.flip());
+			}
+			
+			// the length is filled in last, so an interrupted file is never taken as whole
+			out.write(ByteBuffer.allocate(Long.BYTES).putLong(0, size), LENGTH_OFFSET);
+			return size;
+		}
+	}
+	
+	/**
+	 * Decrypts a file written by encrypt. The mode is read from the file.
+	 * @param rsa RSA instance of the local user
+	 * @param peer key of the remote user the file is from
+	 * @param input encrypted file
+	 * @param output decrypted file, replaced if it exists
+	 * @return number of plaintext bytes decrypted
+	 * @throws IOException if a file cannot be read or written, or the input is not a whole encrypted file
+	 */
+	public static long decrypt(RSA rsa, RSAPeerKey peer, Path input, Path output) throws IOException
+	{
+		try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			long size = in.size();
+			MappedWindow window = new MappedWindow(in, size);
+			
+			ByteBuffer header = size < HEADER_BYTES ? null : window.region(0, HEADER_BYTES);
+			if (header == null || header.getInt() != MAGIC)
+			{
+				throw new IOException(input + " is not an encrypted file");
+			}
+			byte version = header.get();
+			if (version != VERSION)
+			{
+				throw new IOException("Unsupported encrypted file version " + version);
+			}
+			char modeLetter = (char) header.get();
+			int chunkBytes = header.getInt();
+			long plaintextLength = header.getLong();
+			
+			if ("CAB".indexOf(modeLetter) < 0)
+			{
+				throw new IOException("Unknown encryption mode " + modeLetter);
+			}
+			if (chunkBytes < 1 || chunkBytes > MAX_CHUNK_BYTES)
+			{
+				throw new IOException("Chunk size " + chunkBytes + " out of range");
+			}
+			if (plaintextLength < 0)
+			{
+				throw new IOException(input + " is incomplete, its encryption never finished");
+			}
+			RSAMode mode = RSAMode.fromSelection(String.valueOf(modeLetter));
+			
+			// one decrypted chunk, reused for every chunk
+			ByteBuffer plain = ByteBuffer.allocateDirect(chunkBytes);
+			
+			long position = HEADER_BYTES;
+			long written = 0;
+			while (written < plaintextLength)
+			{
+				// every chunk is full but the last, so each record's size is known up front
+				int length = (int) Math.min(chunkBytes, plaintextLength - written);
+				int recordBytes = rsa.encryptedLengthFrom(length, mode, peer);
+				if (position + recordBytes > size)
+				{
+					throw new IOException(input + " is truncated");
+				}
+				
+				plain.clear();
+				try
+				{
+					if (rsa.decryptBlocks(window.region(position, recordBytes), plain, mode, peer) != length)
+					{
+						throw new IOException("Chunk at " + position + " has the wrong length");
+					}
+				}
+				catch (IllegalArgumentException iae) // blocks do not match the keys
+				{
+					throw new IOException("Chunk at " + position + " cannot be decrypted: " + iae.getMessage(), iae);
+				}
+				writeFully(out, plain.flip());
+				
+				position += recordBytes;
+				written += length;
+			}
+			
+			if (position != size)
+			{
+				throw new IOException(input + " has trailing bytes");
+			}
+			return written;
+		}
+	}
+	
+	public static void main(String[] args)
+	{
+		boolean encrypt = args.length == 5 && args[0].equals("encrypt");
+		boolean decrypt = args.length == 4 && args[0].equals("decrypt");
+		boolean export = args.length == 2 && args[0].equals("export");
+		boolean chunkInRange = CHUNK_BYTES >= 1 && CHUNK_BYTES <= MAX_CHUNK_BYTES;
+		if ((!encrypt && !decrypt && !export) || (encrypt && (!args[1].matches("[CcAaBb]") || !chunkInRange)))
+		{
+			System.out.println("Usage: RSAFileTool encrypt C|A|B <credential file> <input> <output>");
+			System.out.println("       RSAFileTool decrypt <credential file> <input> <output>");
+			System.out.println("       RSAFileTool export <credential file>");
+			System.out.println("The local user's key is read from the keystore named by -Dpki.keystore");
+			System.out.println("-Dpki.keyring=<directory> finds a credential file by peer ID or fingerprint");
+			System.out.println("-Dpki.file.chunkBytes must be between 1 and " + MAX_CHUNK_BYTES);
+			System.exit(2);
+		}
+		if (RSAKeyStore.DEFAULT_PATH == null)
+		{
+			System.out.println("Set -Dpki.keystore=<file> to the local user's keystore");
+			System.exit(2);
+		}
+		
+		if (export)
+		{
+			try
+			{
+				// exporting may create the keystore, like encrypting
+				RSAKeyStore.openLocalUser().exportPublicKey(args[1]);
+			}
+			catch (IOException ioe) // keystore could not be read or written
+			{
+				System.out.println(ioe.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+		
+		int first = encrypt ? 2 : 1;
+		Path input = Paths.get(args[first + 1]);
+		Path output = Paths.get(args[first + 2]);
+		try
+		{
+			// encrypting may create the keystore, decrypting needs the key the file was encrypted for
+			RSA rsa = encrypt ? RSAKeyStore.openLocalUser() : RSAKeyStore.load(new File(RSAKeyStore.DEFAULT_PATH));
+			RSAPeerKey peer = peerKey(args[first]);
+			
+			long start = System.nanoTime();
+			long bytes = encrypt
+					? encrypt(rsa, peer, RSAMode.fromSelection(args[1]), input, output)
+					: decrypt(rsa, peer, input, output);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			
+			System.out.printf("%s %d bytes in %.3f s (%.2f MB/s)%n", encrypt ? "Encrypted" : "Decrypted",
+					bytes, seconds, bytes / 1e6 / Math.max(seconds, 1e-9));
+		}
+		catch (IOException ioe) // key, credential, or data file could not be used
+		{
+			System.out.println(ioe.getMessage());
+			
+			// never leave a partial output behind
+			try
+			{
+				Files.deleteIfExists(output);
+			}
+			catch (IOException cleanup) // output could not be removed
+			{
+				System.out.println(cleanup);
+			}
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Reads a remote user's key from a credential file, or from the keyring named
+	 * by -Dpki.keyring when there is no such file
+	 * @param credential credential file, or a peer ID or fingerprint in the keyring
+	 * @return key of the remote user
+	 * @throws IOException if the key cannot be found or read
+	 */
+	private static RSAPeerKey peerKey(String credential) throws IOException
+	{
+		File credFile = new File(credential);
+		if (credFile.isFile() || RSAKeyring.DEFAULT_PATH == null)
+		{
+			return RSAPeerKey.fromCredentialsFile(credFile);
+		}
+		
+		RSAKeyring keyring = new RSAKeyring(new File(RSAKeyring.DEFAULT_PATH));
+		
+		// a fingerprint is 64 hex digits, anything else names a credential file in the keyring
+		if (credential.matches("[0-9a-f]{64}"))
+		{
+			RSAPeerKey key = keyring.getPeerByFingerprint(credential);
+			if (key == null)
+			{
+				throw new IOException("No key with fingerprint " + credential + " in " + keyring.getDirectory());
+			}
+			return key;
+		}
+		return keyring.getPeer(RSAPeerKey.peerIdOf(credFile));
+	}
+	
+	/**
+	 * Writes a buffer to a channel until all of it has been written
+	 */
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			out.write(buffer);
+		}
+	}
+	
+	/**
+	 * Maps a file a window at a time and hands out regions of the current
+	 * window, remapping only when a region runs past it
+	 */
+	private static final class MappedWindow {
+		
+		private final FileChannel channel;
+		private final long size;
+		
+		// mapped part of the file, and where it starts
+		private MappedByteBuffer window;
+		private long windowStart;
+		
+		MappedWindow(FileChannel channel, long size)
+		{
+			this.channel = channel;
+			this.size = size;
+		}
+		
+		/**
+		 * @param position file offset of the region
+		 * @param length region length in bytes
+		 * @return mapping positioned at the region, with its limit at the region's end
+		 * @throws IOException if the file cannot be mapped
+		 */
+		ByteBuffer region(long position, int length) throws IOException
+		{
+			if (window == null || position < windowStart || position + length > windowStart + window.capacity())
+			{
+				long mapLength = Math.min(Math.max(WINDOW_BYTES, length), size - position);
+				window = channel.map(FileChannel.MapMode.READ_ONLY, position, mapLength);
+				windowStart = position;
+			}
+			
+			int offset = (int) (position - windowStart);
+			window.limit(offset + length).position(offset);
+			return window;
+		}
+	}
+}
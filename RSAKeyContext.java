@@ -0,0 +1,325 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Immutable key of the local RSA user: n, the public and private keys, the
+ * primes of n, and every value precomputed from them for private key
+ * operations. Nothing in a context changes once it is built, so any number of
+ * threads may run private key operations on it at once. RSA keeps its current
+ * context in a single reference, and a key rotation replaces the whole context
+ * in one write instead of updating key values one at a time.
+ * @author Colby Bratton
+ *
+ */
+public final class RSAKeyContext {
+	
+	// latency of every private key operation, published by PKIMetrics
+	private static final PKIMetrics METRICS = PKIMetrics.getDefault();
+	private static final LatencyHistogram PRIVATE_KEY_LATENCY = METRICS.histogram("rsa.privateKey");
+	
+	// n and public key of local RSA user
+	private final BigInteger n; // n_A
+	private final BigInteger pubKey; // e_A
+	
+	// private key of local RSA user
+	private final BigInteger priKey; // d_A
+	
+	// p and q, null when the primes of n are unknown
+	private final BigInteger p;
+	private final BigInteger q;
+	
+	// Chinese Remainder Theorem values, precomputed from p and q so private key
+	// operations can be split into two half size exponentiations. Null when p
+	// and q are unknown.
+	private final BigInteger dP; // d_A mod (p - 1)
+	private final BigInteger dQ; // d_A mod (q - 1)
+	private final BigInteger qInv; // q^-1 mod p
+	
+	// multi-prime CRT values, one entry per prime after p and q (r_3, r_4, ...).
+	// Empty for two prime keys.
+	private final BigInteger[] extraPrimes; // r_i
+	private final BigInteger[] extraExponents; // d_A mod (r_i - 1)
+	private final BigInteger[] extraCoefficients; // (p * q * ... * r_(i-1))^-1 mod r_i
+	
+	// SHA-256 of n and e, the fingerprint remote users pin the key under
+	private final String fingerprint;
+	
+	/**
+	 * Constructor to build a context from a generated key pair, precomputing its CRT values
+	 * @param keyPair key pair holding p, q, any further primes, n, public key, and private key
+	 */
+	public RSAKeyContext(RSAKeyPair keyPair)
+	{
+		this(keyPair.getN(), keyPair.getPubKey(), keyPair.getPriKey(), keyPair.getPrimes());
+	}
+	
+	/**
+	 * Constructor to build a context from premade key values whose primes are unknown
+	 * @param pubKey public key of local user
+	 * @param priKey private key of local user
+	 * @param n value of n for local user
+	 */
+	public RSAKeyContext(BigInteger pubKey, BigInteger priKey, BigInteger n)
+	{
+		this(n, pubKey, priKey, new BigInteger[0]);
+	}
+	
+	/**
+	 * Constructor to build a context from key values, precomputing the CRT values of the primes
+	 * @param n value of n for local user
+	 * @param pubKey public key of local user
+	 * @param priKey private key of local user
+	 * @param primes primes of n, p and q first, or an empty array if they are unknown
+	 */
+	private RSAKeyContext(BigInteger n, BigInteger pubKey, BigInteger priKey, BigInteger[] primes)
+	{
+		this(n, pubKey, priKey, primes, crtExponents(priKey, primes), crtCoefficients(primes));
+	}
+	
+	/**
+	 * Constructor to build a context from stored key values, including the
+	 * precomputed CRT values, so no key math is repeated. Used by RSAKeyStore.
+	 * @param n value of n for local user
+	 * @param pubKey public key of local user
+	 * @param priKey private key of local user
+	 * @param primes primes of n, p and q first, or an empty array if they are unknown
+	 * @param exponents CRT exponent of each prime, in the same order
+	 * @param coefficients CRT coefficient of each prime after the first
+	 */
+	RSAKeyContext(BigInteger n, BigInteger pubKey, BigInteger priKey,
+			BigInteger[] primes, BigInteger[] exponents, BigInteger[] coefficients)
+	{
+		this.n = n;
+		this.pubKey = pubKey;
+		this.priKey = priKey;
+		this.fingerprint = RSAPeerKey.fingerprint(n, pubKey);
+		
+		// without p and q, private key operations use the full modulus
+		if (primes.length < 2)
+		{
+			p = null;
+			q = null;
+			dP = null;
+			dQ = null;
+			qInv = null;
+			extraPrimes = new BigInteger[0];
+			extraExponents = new BigInteger[0];
+			extraCoefficients = new BigInteger[0];
+			return;
+		}
+		
+		p = primes[0];
+		q = primes[1];
+		dP = exponents[0];
+		dQ = exponents[1];
+		qInv = coefficients[0];
+		extraPrimes = Arrays.copyOfRange(primes, 2, primes.length);
+		extraExponents = Arrays.copyOfRange(exponents, 2, exponents.length);
+		extraCoefficients = Arrays.copyOfRange(coefficients, 1, coefficients.length);
+	}
+	
+	/**
+	 * Computes the CRT exponent d mod (r - 1) of every prime
+	 * @param priKey private key of local user
+	 * @param primes primes of n, or an empty array if they are unknown
+	 * @return one exponent per prime, empty without p and q
+	 */
+	private static BigInteger[] crtExponents(BigInteger priKey, BigInteger[] primes)
+	{
+		if (primes.length < 2)
+		{
+			return new BigInteger[0];
+		}
+		
+		BigInteger[] exponents = new BigInteger[primes.length];
+		for (int i = 0; i < primes.length; i++)
+		{
+			exponents[i] = priKey.mod(primes[i].subtract(BigInteger.ONE));
+		}
+		return exponents;
+	}
+	
+	/**
+	 * Computes the CRT coefficients of the recombination: q^-1 mod p, then for
+	 * each further prime r_i the inverse of the product of the primes before it
+	 * @param primes primes of n, p and q first, or an empty array if they are unknown
+	 * @return one coefficient per prime after the first, empty without p and q
+	 */
+	private static BigInteger[] crtCoefficients(BigInteger[] primes)
+	{
+		if (primes.length < 2)
+		{
+			return new BigInteger[0];
+		}
+		
+		BigInteger[] coefficients = new BigInteger[primes.length - 1];
+		coefficients[0] = primes[1].modInverse(primes[0]);
+		
+		BigInteger product = primes[0].multiply(primes[1]);
+		for (int i = 2; i < primes.length; i++)
+		{
+			coefficients[i - 1] = product.modInverse(primes[i]);
+			product = product.multiply(primes[i]);
+		}
+		return coefficients;
+	}
+	
+	/**
+	 * @return n value of the local user
+	 */
+	public BigInteger getN()
+	{
+		return n;
+	}
+	
+	/**
+	 * @return public key of the local user
+	 */
+	public BigInteger getPubKey()
+	{
+		return pubKey;
+	}
+	
+	/**
+	 * @return fingerprint of the public key, as remote users pin it
+	 */
+	public String getFingerprint()
+	{
+		return fingerprint;
+	}
+	
+	/**
+	 * @return private key of the local user
+	 */
+	BigInteger getPriKey()
+	{
+		return priKey;
+	}
+	
+	/**
+	 * @return primes of the local user, p and q first, or an empty array if they are unknown
+	 */
+	BigInteger[] getPrimes()
+	{
+		if (qInv == null)
+		{
+			return new BigInteger[0];
+		}
+		
+		BigInteger[] primes = new BigInteger[2 + extraPrimes.length];
+		primes[0] = p;
+		primes[1] = q;
+		System.arraycopy(extraPrimes, 0, primes, 2, extraPrimes.length);
+		return primes;
+	}
+	
+	/**
+	 * @return CRT exponent d mod (r - 1) of every prime, in the order of getPrimes()
+	 */
+	BigInteger[] getCRTExponents()
+	{
+		if (qInv == null)
+		{
+			return new BigInteger[0];
+		}
+		
+		BigInteger[] exponents = new BigInteger[2 + extraExponents.length];
+		exponents[0] = dP;
+		exponents[1] = dQ;
+		System.arraycopy(extraExponents, 0, exponents, 2, extraExponents.length);
+		return exponents;
+	}
+	
+	/**
+	 * @return CRT coefficient of every prime after the first: q^-1 mod p, then
+	 *         (p * q * ... * r_(i-1))^-1 mod r_i for each further prime
+	 */
+	BigInteger[] getCRTCoefficients()
+	{
+		if (qInv == null)
+		{
+			return new BigInteger[0];
+		}
+		
+		BigInteger[] coefficients = new BigInteger[1 + extraCoefficients.length];
+		coefficients[0] = qInv;
+		System.arraycopy(extraCoefficients, 0, coefficients, 1, extraCoefficients.length);
+		return coefficients;
+	}
+	
+	/**
+	 * Raises a value to the local user's private key modulo the local user's
+	 * n value. When p and q are known, the exponentiation is split into two
+	 * half size exponentiations mod p and mod q, run one after the other on the
+	 * calling thread, and the results are recombined with Garner's formula. Multi-prime keys add
+	 * one smaller exponentiation per further prime, folded in the same way.
+	 * @param value value to be raised to the private key
+	 * @return value^d_A mod n_A
+	 */
+	BigInteger privateKeyOperation(BigInteger value)
+	{
+		// time every private key operation and count how many run at once
+		long start = System.nanoTime();
+		METRICS.privateKeyOperationStarted();
+		try
+		{
+			return privateKeyExponentiation(value);
+		}
+		finally
+		{
+			METRICS.privateKeyOperationFinished();
+			PRIVATE_KEY_LATENCY.recordSince(start);
+		}
+	}
+	
+	/**
+	 * Performs the exponentiation of privateKeyOperation, using CRT when the primes are known
+	 * @param value value to be raised to the private key
+	 * @return value^d_A mod n_A
+	 */
+	private BigInteger privateKeyExponentiation(BigInteger value)
+	{
+		// keys without p and q fall back to the full exponentiation
+		if (qInv == null)
+		{
+			return value.modPow(priKey, n);
+		}
+		
+		// m_p = c^dP mod p and m_q = c^dQ mod q, both on this thread: the halves
+		// are short, and batch and block operations already keep every core busy
+		BigInteger mP = value.mod(p).modPow(dP, p);
+		BigInteger mQ = value.mod(q).modPow(dQ, q);
+		
+		// m = m_q + q * (qInv * (m_p - m_q) mod p)
+		BigInteger h = qInv.multiply(mP.subtract(mQ)).mod(p);
+		BigInteger m = mQ.add(h.multiply(q));
+		
+		// m is now correct mod R = p * q * ... * r_(i-1), fold in r_i with
+		// m = m + R * (t_i * (m_i - m) mod r_i), where m_i = c^d_i mod r_i
+		BigInteger product = p.multiply(q);
+		for (int i = 0; i < extraPrimes.length; i++)
+		{
+			h = extraCoefficients[i].multiply(extraPrimeOperation(value, i).subtract(m)).mod(extraPrimes[i]);
+			m = m.add(h.multiply(product));
+			product = product.multiply(extraPrimes[i]);
+		}
+		
+		return m;
+	}
+	
+	/**
+	 * Raises a value to the local user's private key modulo one of the primes after p and q
+	 * @param value value to be raised to the private key
+	 * @param index position of the prime in extraPrimes
+	 * @return value^d_i mod r_i
+	 */
+	private BigInteger extraPrimeOperation(BigInteger value, int index)
+	{
+		return value.mod(extraPrimes[index]).modPow(extraExponents[index], extraPrimes[index]);
+	}
+}
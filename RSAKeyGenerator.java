@@ -0,0 +1,349 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates RSA key pairs using a fixed small public exponent and an
+ * incremental prime search. Candidate ranges are sieved against a table
+ * of small primes so that Miller-Rabin is only run on values that have
+ * no small factors. Moduli may be built from two primes, or from up to
+ * MAX_PRIME_COUNT primes for cheaper multi-prime CRT private key operations.
+ * @author Colby Bratton
+ *
+ */
+public class RSAKeyGenerator {
+	
+	// default public exponent, F4 = 2^16 + 1
+	public static final BigInteger DEFAULT_PUBLIC_EXPONENT = BigInteger.valueOf(65537);
+	
+	// default number of bits in each of p and q
+	public static final int DEFAULT_PRIME_BITLENGTH = 2048;
+	
+	// largest number of primes allowed in one modulus. Each extra prime
+	// makes private key operations cheaper but n easier to factor, and
+	// four primes is the limit usually given for 4096 bit moduli and up.
+	public static final int MAX_PRIME_COUNT = 4;
+	
+	// default number of primes in each modulus, overridable with -Dpki.keygen.primes
+	public static final int DEFAULT_PRIME_COUNT = Integer.getInteger("pki.keygen.primes", 2);
+	
+	// upper bound of the small prime table used by the sieve
+	private static final int SMALL_PRIME_LIMIT = 8192;
+	
+	// number of odd candidates examined by a single sieve window
+	private static final int SIEVE_WINDOW = 4096;
+	
+	// certainty handed to BigInteger.isProbablePrime for survivors of the sieve
+	private static final int PRIME_CERTAINTY = 100;
+	
+	// sets of primes drawn for one key pair before generation gives up
+	static final int MAX_ATTEMPTS = 16;
+	
+	// odd primes below SMALL_PRIME_LIMIT, shared by all generators
+	private static final int[] SMALL_PRIMES = smallPrimes(SMALL_PRIME_LIMIT);
+	
+	// product of SMALL_PRIMES, used to check remote moduli for small factors
+	static final BigInteger SMALL_PRIME_PRODUCT = product(SMALL_PRIMES);
+	
+	// latency of whole key pair generations, shared with RSAKeyPool
+	static final LatencyHistogram KEY_GENERATION_LATENCY = PKIMetrics.getDefault().histogram("rsa.keyGeneration");
+	
+	// public exponent used for every generated key pair
+	private final BigInteger pubKey;
+	
+	// number of bits in the modulus n of each generated key pair
+	private final int modulusBitLength;
+	
+	// number of bits in each generated prime, one entry per prime
+	private final int[] primeBitLengths;
+	
+	// number of top bits set in every prime, enough for n to reach its full size
+	private final int leadingBits;
+	
+	// source of randomness for candidate starting points
+	private final Random random;
+	
+	/**
+	 * Default constructor, generates 4096 bit moduli with e = 65537 from
+	 * DEFAULT_PRIME_COUNT primes
+	 */
+	public RSAKeyGenerator()
+	{
+		this(DEFAULT_PUBLIC_EXPONENT, 2 * DEFAULT_PRIME_BITLENGTH, DEFAULT_PRIME_COUNT);
+	}
+	
+	/**
+	 * Constructor used to generate key pairs with a specific public exponent
+	 * and prime size
+	 * @param pubKey odd public exponent greater than 1
+	 * @param primeBitLength number of bits in each of p and q
+	 */
+	public RSAKeyGenerator(BigInteger pubKey, int primeBitLength)
+	{
+		this(pubKey, 2 * primeBitLength, 2);
+	}
+	
+	/**
+	 * Constructor used to generate multi-prime key pairs. The modulus is split
+	 * as evenly as possible between the primes, so a 4096 bit modulus with
+	 * three primes uses primes of 1365, 1365, and 1366 bits.
+	 * @param pubKey odd public exponent greater than 1
+	 * @param modulusBitLength number of bits in n
+	 * @param primeCount number of primes in n, from 2 to MAX_PRIME_COUNT
+	 */
+	public RSAKeyGenerator(BigInteger pubKey, int modulusBitLength, int primeCount)
+	{
+		if (pubKey.compareTo(BigInteger.TWO) <= 0 || !pubKey.testBit(0))
+		{
+			throw new IllegalArgumentException("Public exponent must be odd and greater than 2");
+		}
+		if (primeCount < 2 || primeCount > MAX_PRIME_COUNT)
+		{
+			throw new IllegalArgumentException("Prime count must be between 2 and " + MAX_PRIME_COUNT);
+		}
+		if (modulusBitLength / primeCount < 16)
+		{
+			throw new IllegalArgumentException("Prime bit length must be at least 16");
+		}
+		
+		this.pubKey = pubKey;
+		this.modulusBitLength = modulusBitLength;
+		
+		// the last prime takes whatever bits do not divide evenly
+		this.primeBitLengths = new int[primeCount];
+		Arrays.fill(primeBitLengths, modulusBitLength / primeCount);
+		primeBitLengths[primeCount - 1] += modulusBitLength % primeCount;
+		
+		// every prime is at least (1 - 2^-leadingBits) of its top bit, and the
+		// product of those fractions must stay above 1/2: 0.75^2 for two primes,
+		// 0.875^4 for up to four
+		this.leadingBits = primeCount == 2 ? 2 : 3;
+		
+		this.random = new SecureRandom();
+	}
+	
+	/**
+	 * Generates a new key pair made of distinct primes of the configured sizes
+	 * @return newly generated key pair
+	 * @throws IllegalStateException if MAX_ATTEMPTS sets of primes were all rejected
+	 */
+	public RSAKeyPair generateKeyPair()
+	{
+		long start = System.nanoTime();
+		BigInteger[] primes = new BigInteger[primeBitLengths.length];
+		
+		// draw every prime again until the primes are distinct and n has the right size
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++)
+		{
+			for (int i = 0; i < primes.length; i++)
+			{
+				primes[i] = generatePrime(primeBitLengths[i]);
+			}
+			
+			RSAKeyPair keyPair = assemble(primes);
+			if (keyPair != null)
+			{
+				KEY_GENERATION_LATENCY.recordSince(start);
+				return keyPair;
+			}
+		}
+		
+		throw new IllegalStateException("No valid " + modulusBitLength + " bit modulus after "
+				+ MAX_ATTEMPTS + " attempts");
+	}
+	
+	/**
+	 * Builds a key pair from generated primes if they form a valid modulus
+	 * @param primes one generated prime per configured prime size
+	 * @return key pair, or null if two primes are equal or n has the wrong size
+	 */
+	RSAKeyPair assemble(BigInteger[] primes)
+	{
+		BigInteger n = BigInteger.ONE;
+		for (int i = 0; i < primes.length; i++)
+		{
+			// equal primes would make n divisible by a square
+			for (int j = 0; j < i; j++)
+			{
+				if (primes[i].equals(primes[j]))
+				{
+					return null;
+				}
+			}
+			n = n.multiply(primes[i]);
+		}
+		
+		// the leading bits of every prime give the full size, checked all the same
+		if (n.bitLength() != modulusBitLength)
+		{
+			return null;
+		}
+		
+		return new RSAKeyPair(primes, pubKey);
+	}
+	
+	/**
+	 * Generates a single prime of a given size whose p - 1 is
+	 * coprime to the public exponent
+	 * @param bitLength number of bits in the prime
+	 * @return newly generated prime
+	 */
+	public BigInteger generatePrime(int bitLength)
+	{
+		BigInteger prime = null;
+		
+		// keep sieving fresh windows until one yields a prime
+		while (prime == null)
+		{
+			prime = searchWindow(randomStart(bitLength));
+		}
+		
+		return prime;
+	}
+	
+	/**
+	 * Picks a random odd starting point for a sieve window. The top two bits,
+	 * or three for moduli of three or more primes, are set so the product of
+	 * the primes always has exactly the bits of the modulus.
+	 * @param bitLength number of bits in the starting point
+	 * @return odd starting candidate of the given size
+	 */
+	BigInteger randomStart(int bitLength)
+	{
+		BigInteger start = new BigInteger(bitLength, random);
+		for (int bit = 1; bit <= leadingBits; bit++)
+		{
+			start = start.setBit(bitLength - bit);
+		}
+		return start.setBit(0);
+	}
+	
+	/**
+	 * Sieves the odd candidates start, start + 2, ..., start + 2 * (SIEVE_WINDOW - 1)
+	 * against the small prime table, then runs Miller-Rabin on the survivors in order.
+	 * @param start odd first candidate of the window
+	 * @return first prime found in the window, or null if there is none
+	 */
+	BigInteger searchWindow(BigInteger start)
+	{
+		// composite[i] is true when start + 2i has a small factor
+		boolean[] composite = new boolean[SIEVE_WINDOW];
+		
+		for (int smallPrime : SMALL_PRIMES)
+		{
+			int r = start.mod(BigInteger.valueOf(smallPrime)).intValue();
+			
+			// first index i with start + 2i = 0 (mod smallPrime),
+			// (smallPrime + 1) / 2 is the inverse of 2
+			int i = (int) ((long) (smallPrime - r) % smallPrime * ((smallPrime + 1) / 2) % smallPrime);
+			for (; i < SIEVE_WINDOW; i += smallPrime)
+			{
+				composite[i] = true;
+			}
+		}
+		
+		for (int i = 0; i < SIEVE_WINDOW; i++)
+		{
+			if (composite[i])
+			{
+				continue;
+			}
+			
+			BigInteger candidate = start.add(BigInteger.valueOf(2L * i));
+			
+			// a carry out of the window would change the prime's size
+			if (candidate.bitLength() != start.bitLength())
+			{
+				return null;
+			}
+			
+			// gcd(p - 1, e) must be 1 for e to be invertible mod phi(n)
+			if (candidate.subtract(BigInteger.ONE).gcd(pubKey).equals(BigInteger.ONE)
+					&& candidate.isProbablePrime(PRIME_CERTAINTY))
+			{
+				return candidate;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @return public exponent used for generated key pairs
+	 */
+	public BigInteger getPubKey()
+	{
+		return pubKey;
+	}
+	
+	/**
+	 * @return number of bits in the modulus of generated key pairs
+	 */
+	public int getModulusBitLength()
+	{
+		return modulusBitLength;
+	}
+	
+	/**
+	 * @return number of bits in each generated prime, one entry per prime
+	 */
+	public int[] getPrimeBitLengths()
+	{
+		return primeBitLengths.clone();
+	}
+	
+	/**
+	 * @param values values to be multiplied
+	 * @return product of every value
+	 */
+	private static BigInteger product(int[] values)
+	{
+		BigInteger product = BigInteger.ONE;
+		for (int value : values)
+		{
+			product = product.multiply(BigInteger.valueOf(value));
+		}
+		return product;
+	}
+	
+	/**
+	 * Sieve of Eratosthenes for the odd primes below a limit
+	 * @param limit exclusive upper bound of the table
+	 * @return odd primes below limit in increasing order
+	 */
+	private static int[] smallPrimes(int limit)
+	{
+		boolean[] composite = new boolean[limit];
+		int count = 0;
+		
+		for (int i = 3; i < limit; i += 2)
+		{
+			if (!composite[i])
+			{
+				count++;
+				for (long j = (long) i * i; j < limit; j += 2L * i)
+				{
+					composite[(int) j] = true;
+				}
+			}
+		}
+		
+		int[] primes = new int[count];
+		count = 0;
+		for (int i = 3; i < limit; i += 2)
+		{
+			if (!composite[i])
+			{
+				primes[count++] = i;
+			}
+		}
+		
+		return primes;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.math.BigInteger;
+
+/**
+ * Immutable holder for a freshly generated RSA key pair. Stores the
+ * primes of n along with the values derived from them so that an
+ * RSA instance may be built without repeating any of the key math.
+ * Two prime key pairs use p and q, multi-prime key pairs add further
+ * primes after them.
+ * @author Colby Bratton
+ *
+ */
+public final class RSAKeyPair {
+	
+	// primes used to build the key pair, their product is n
+	private final BigInteger[] primes;
+	private final BigInteger n;
+	
+	// public and private keys of the key pair
+	private final BigInteger pubKey; // e
+	private final BigInteger priKey; // d
+	
+	/**
+	 * Constructor to build a key pair from its primes and public exponent.
+	 * The modulus and private key are derived from the provided values.
+	 * @param p first prime of the key pair
+	 * @param q second prime of the key pair
+	 * @param pubKey public exponent, must be invertible mod phi(n)
+	 */
+	public RSAKeyPair(BigInteger p, BigInteger q, BigInteger pubKey)
+	{
+		this(new BigInteger[] {p, q}, pubKey);
+	}
+	
+	/**
+	 * Constructor to build a key pair from any number of distinct primes
+	 * and a public exponent
+	 * @param primes two or more distinct primes, p and q first
+	 * @param pubKey public exponent, must be invertible mod phi(n)
+	 */
+	public RSAKeyPair(BigInteger[] primes, BigInteger pubKey)
+	{
+		if (primes.length < 2)
+		{
+			throw new IllegalArgumentException("A key pair needs at least two primes");
+		}
+		
+		this.primes = primes.clone();
+		this.pubKey = pubKey;
+		
+		// n = r_1 * r_2 * ... and phi(n) = (r_1 - 1) * (r_2 - 1) * ...
+		BigInteger product = BigInteger.ONE;
+		BigInteger phiOfN = BigInteger.ONE;
+		for (BigInteger prime : primes)
+		{
+			product = product.multiply(prime);
+			phiOfN = phiOfN.multiply(prime.subtract(BigInteger.ONE));
+		}
+		this.n = product;
+		
+		// d = e^-1 mod phi(n)
+		this.priKey = pubKey.modInverse(phiOfN);
+	}
+	
+	/**
+	 * @return first prime of the key pair
+	 */
+	public BigInteger getP()
+	{
+		return primes[0];
+	}
+	
+	/**
+	 * @return second prime of the key pair
+	 */
+	public BigInteger getQ()
+	{
+		return primes[1];
+	}
+	
+	/**
+	 * @return all primes of the key pair, p and q first
+	 */
+	public BigInteger[] getPrimes()
+	{
+		return primes.clone();
+	}
+	
+	/**
+	 * @return number of primes in n
+	 */
+	public int getPrimeCount()
+	{
+		return primes.length;
+	}
+	
+	/**
+	 * @return modulus n of the key pair
+	 */
+	public BigInteger getN()
+	{
+		return n;
+	}
+	
+	/**
+	 * @return public key (e) of the key pair
+	 */
+	public BigInteger getPubKey()
+	{
+		return pubKey;
+	}
+	
+	/**
+	 * @return private key (d) of the key pair
+	 */
+	public BigInteger getPriKey()
+	{
+		return priKey;
+	}
+}
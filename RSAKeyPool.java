@@ -0,0 +1,276 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a bounded pool of ready RSA key pairs that is refilled in the
+ * background, so sessions never wait on prime generation. Primes are
+ * searched for on all cores: all primes of a key pair are found
+ * concurrently, and each search splits its sieve windows across a
+ * ForkJoinPool.
+ * @author Colby Bratton
+ *
+ */
+public class RSAKeyPool {
+	
+	// default number of ready key pairs, overridable with -Dpki.keypool.size
+	public static final int DEFAULT_CAPACITY = Integer.getInteger("pki.keypool.size", 4);
+	
+	// default delay between refills in milliseconds, overridable with -Dpki.keypool.refillMillis
+	public static final long DEFAULT_REFILL_MILLIS = Long.getLong("pki.keypool.refillMillis", 100L);
+	
+	// lazily created pool shared by PKIServer and PKIClient
+	private static RSAKeyPool defaultPool;
+	
+	// generator providing the exponent, prime size, and sieve windows
+	private final RSAKeyGenerator generator;
+	
+	// pool the prime searches run on
+	private final ForkJoinPool searchPool;
+	
+	// key pairs that are ready to be handed out
+	private final BlockingQueue<RSAKeyPair> readyKeyPairs;
+	
+	// background thread that tops up readyKeyPairs
+	private final ScheduledExecutorService refiller;
+	
+	// delay between refills in milliseconds
+	private final long refillMillis;
+	
+	// take() calls served from the pool, and ones that had to generate
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	
+	// time callers wait in take(), long waits mean the pool is running dry
+	private static final LatencyHistogram TAKE_LATENCY = PKIMetrics.getDefault().histogram("rsa.keyPool.take");
+	
+	/**
+	 * Constructor to build a key pool with the default generator and settings
+	 */
+	public RSAKeyPool()
+	{
+		this(new RSAKeyGenerator(), DEFAULT_CAPACITY, DEFAULT_REFILL_MILLIS);
+	}
+	
+	/**
+	 * Constructor to build a key pool searching on a pool sized to the number of cores
+	 * @param generator generator providing the exponent and prime size
+	 * @param capacity maximum number of ready key pairs held
+	 * @param refillMillis delay in milliseconds between background refills,
+	 *        each refill adds at most one key pair
+	 */
+	public RSAKeyPool(RSAKeyGenerator generator, int capacity, long refillMillis)
+	{
+		this(generator, capacity, refillMillis, new ForkJoinPool());
+	}
+	
+	/**
+	 * Constructor to build a key pool on a specific search pool
+	 * @param generator generator providing the exponent and prime size
+	 * @param capacity maximum number of ready key pairs held
+	 * @param refillMillis delay in milliseconds between background refills
+	 * @param searchPool pool the prime searches are run on
+	 */
+	public RSAKeyPool(RSAKeyGenerator generator, int capacity, long refillMillis, ForkJoinPool searchPool)
+	{
+		if (capacity < 1 || refillMillis < 1)
+		{
+			throw new IllegalArgumentException("Capacity and refill delay must be positive");
+		}
+		
+		this.generator = generator;
+		this.searchPool = searchPool;
+		this.readyKeyPairs = new ArrayBlockingQueue<>(capacity);
+		this.refillMillis = refillMillis;
+		
+		// daemon thread, so an idle refiller never keeps the JVM alive
+		this.refiller = new ScheduledThreadPoolExecutor(1, task -> {
+			Thread thread = new Thread(task, "rsa-key-pool-refill");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Returns the shared key pool, creating and starting it on first use.
+	 * Calling this early lets the pool fill while the program does other work.
+	 * @return shared key pool
+	 */
+	public static synchronized RSAKeyPool getDefault()
+	{
+		if (defaultPool == null)
+		{
+			defaultPool = new RSAKeyPool();
+			defaultPool.start();
+		}
+		return defaultPool;
+	}
+	
+	/**
+	 * Starts refilling the pool in the background
+	 */
+	public void start()
+	{
+		refiller.scheduleWithFixedDelay(this::refill, 0, refillMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stops the background refill and the prime search pool
+	 */
+	public void shutdown()
+	{
+		refiller.shutdownNow();
+		searchPool.shutdownNow();
+	}
+	
+	/**
+	 * Takes a ready key pair from the pool. If the pool is empty, a key pair
+	 * is generated on the calling thread instead.
+	 * @return key pair that has not been handed out before
+	 */
+	public RSAKeyPair take()
+	{
+		long start = System.nanoTime();
+		RSAKeyPair keyPair = readyKeyPairs.poll();
+		
+		if (keyPair != null)
+		{
+			hits.incrementAndGet();
+		}
+		else
+		{
+			misses.incrementAndGet();
+			keyPair = generateKeyPair();
+		}
+		
+		TAKE_LATENCY.recordSince(start);
+		return keyPair;
+	}
+	
+	/**
+	 * Generates a key pair, searching for all of its primes concurrently
+	 * @return newly generated key pair
+	 * @throws IllegalStateException if RSAKeyGenerator.MAX_ATTEMPTS sets of primes were all rejected
+	 */
+	public RSAKeyPair generateKeyPair()
+	{
+		long start = System.nanoTime();
+		int[] primeBitLengths = generator.getPrimeBitLengths();
+		BigInteger[] primes = new BigInteger[primeBitLengths.length];
+		
+		// search for every prime again until the primes are distinct and n has the right size
+		for (int attempt = 0; attempt < RSAKeyGenerator.MAX_ATTEMPTS; attempt++)
+		{
+			List<ForkJoinTask<BigInteger>> searches = new ArrayList<>(primeBitLengths.length);
+			for (int bitLength : primeBitLengths)
+			{
+				searches.add(searchPool.submit(() -> searchPrime(bitLength)));
+			}
+			
+			for (int i = 0; i < primes.length; i++)
+			{
+				primes[i] = searches.get(i).join();
+			}
+			
+			RSAKeyPair keyPair = generator.assemble(primes);
+			if (keyPair != null)
+			{
+				RSAKeyGenerator.KEY_GENERATION_LATENCY.recordSince(start);
+				return keyPair;
+			}
+		}
+		
+		throw new IllegalStateException("No valid " + generator.getModulusBitLength()
+				+ " bit modulus after " + RSAKeyGenerator.MAX_ATTEMPTS + " attempts");
+	}
+	
+	/**
+	 * Adds one key pair to the pool if there is room for it. A failure is logged
+	 * and left to the next scheduled refill, since a task that throws is never
+	 * run again by its executor.
+	 */
+	private void refill()
+	{
+		try
+		{
+			if (readyKeyPairs.remainingCapacity() > 0)
+			{
+				readyKeyPairs.offer(generateKeyPair());
+			}
+		}
+		catch (RuntimeException re) // no key pair this time, the next refill tries again
+		{
+			if (!refiller.isShutdown())
+			{
+				System.out.println("Key pool refill failed: " + re);
+			}
+		}
+	}
+	
+	/**
+	 * Searches for a prime by sieving batches of random windows in parallel,
+	 * one window per worker of the search pool
+	 * @param bitLength number of bits in the prime
+	 * @return first prime found
+	 */
+	private BigInteger searchPrime(int bitLength)
+	{
+		int batchSize = searchPool.getParallelism();
+		
+		while (true)
+		{
+			List<ForkJoinTask<BigInteger>> batch = new ArrayList<>(batchSize);
+			for (int i = 0; i < batchSize; i++)
+			{
+				batch.add(ForkJoinTask.adapt(() -> generator.searchWindow(generator.randomStart(bitLength))));
+			}
+			
+			// run the batch on the search pool and take the first prime found
+			for (ForkJoinTask<BigInteger> window : ForkJoinTask.invokeAll(batch))
+			{
+				BigInteger prime = window.join();
+				if (prime != null)
+				{
+					return prime;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return number of take() calls served from the pool
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+	
+	/**
+	 * @return number of take() calls that had to generate a key pair
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+	
+	/**
+	 * @return number of key pairs currently ready in the pool
+	 */
+	public int getAvailable()
+	{
+		return readyKeyPairs.size();
+	}
+}
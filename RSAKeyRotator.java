@@ -0,0 +1,162 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rotates the local user's key of a shared RSA instance in the background.
+ * Each rotation takes a fresh key pair from an RSAKeyPool, builds its key
+ * context on the rotation thread, and publishes it with setKeyContext, so
+ * traffic never pauses: operations already running finish on the old key,
+ * every session keeps the key it announced in its HELLO frame through its own
+ * snapshot(), and sessions opened afterwards announce the new key. Remote users
+ * that pinned the old key refuse the new one unless they accept changed keys
+ * (see KnownPeers).
+ * @author Colby Bratton
+ *
+ */
+public class RSAKeyRotator {
+	
+	// minutes between rotations, set with -Dpki.keyRotationMinutes; 0 never rotates
+	public static final long DEFAULT_PERIOD_MINUTES = Long.getLong("pki.keyRotationMinutes", 0L);
+	
+	// time from taking a key pair to the new key being published and stored
+	private static final LatencyHistogram ROTATION_LATENCY = PKIMetrics.getDefault().histogram("rsa.keyRotation");
+	
+	// RSA instance whose key is rotated
+	private final RSA rsa;
+	
+	// source of the new key pairs
+	private final RSAKeyPool keyPool;
+	
+	// keystore every new key is saved to, null to keep new keys in memory only
+	private final File keyStoreFile;
+	
+	// background thread running the scheduled rotations
+	private final ScheduledExecutorService rotator;
+	
+	// number of rotations published so far
+	private final AtomicLong rotations = new AtomicLong();
+	
+	/**
+	 * Constructor to build a rotator for a shared RSA instance
+	 * @param rsa RSA instance whose local key is rotated
+	 * @param keyPool pool the new key pairs are taken from
+	 * @param keyStoreFile keystore each new key is saved to, or null for none
+	 */
+	public RSAKeyRotator(RSA rsa, RSAKeyPool keyPool, File keyStoreFile)
+	{
+		this.rsa = rsa;
+		this.keyPool = keyPool;
+		this.keyStoreFile = keyStoreFile;
+		
+		// daemon thread, so a pending rotation never keeps the JVM alive
+		this.rotator = new ScheduledThreadPoolExecutor(1, task -> {
+			Thread thread = new Thread(task, "rsa-key-rotation");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+	
+	/**
+	 * Starts rotating a server's key every -Dpki.keyRotationMinutes minutes, saving
+	 * each new key to the keystore named by -Dpki.keystore, if one is set
+	 * @param rsa RSA instance shared by the server's connections
+	 * @return running rotator, or null if rotation is not configured
+	 */
+	public static RSAKeyRotator startConfigured(RSA rsa)
+	{
+		if (DEFAULT_PERIOD_MINUTES <= 0)
+		{
+			return null;
+		}
+		
+		File keyStoreFile = RSAKeyStore.DEFAULT_PATH != null ? new File(RSAKeyStore.DEFAULT_PATH) : null;
+		RSAKeyRotator rotator = new RSAKeyRotator(rsa, RSAKeyPool.getDefault(), keyStoreFile);
+		rotator.start(DEFAULT_PERIOD_MINUTES, TimeUnit.MINUTES);
+		return rotator;
+	}
+	
+	/**
+	 * Starts rotating the key in the background, the first rotation one period from now
+	 * @param period time between rotations
+	 * @param unit unit of period
+	 */
+	public void start(long period, TimeUnit unit)
+	{
+		if (period < 1)
+		{
+			throw new IllegalArgumentException("Rotation period must be positive");
+		}
+		rotator.scheduleAtFixedRate(this::scheduledRotate, period, period, unit);
+	}
+	
+	/**
+	 * Stops the scheduled rotations, the current key stays in use
+	 */
+	public void shutdown()
+	{
+		rotator.shutdownNow();
+	}
+	
+	/**
+	 * Replaces the local key with a new one now. The new key is published before
+	 * it is saved, so a keystore that cannot be written never holds up traffic.
+	 * @return key of the local user from now on
+	 */
+	public synchronized RSAKeyContext rotate()
+	{
+		long start = System.nanoTime();
+		
+		// CRT values are precomputed here, never by an operation in flight
+		RSAKeyContext keys = new RSAKeyContext(keyPool.take());
+		rsa.setKeyContext(keys);
+		rotations.incrementAndGet();
+		
+		if (keyStoreFile != null)
+		{
+			try
+			{
+				RSAKeyStore.save(keys, keyStoreFile);
+			}
+			catch (IOException ioe) // new key stays in use, the keystore keeps the old one
+			{
+				System.out.println("Rotated key could not be saved to " + keyStoreFile + ": " + ioe);
+			}
+		}
+		
+		ROTATION_LATENCY.recordSince(start);
+		return keys;
+	}
+	
+	/**
+	 * @return number of rotations published so far
+	 */
+	public long getRotations()
+	{
+		return rotations.get();
+	}
+	
+	/**
+	 * Runs a scheduled rotation. A failure is reported and the schedule goes on,
+	 * since an exception would cancel every later rotation.
+	 */
+	private void scheduledRotate()
+	{
+		try
+		{
+			System.out.println("Rotated local key, new fingerprint " + rotate().getFingerprint());
+		}
+		catch (RuntimeException re) // key generation failed, try again next period
+		{
+			System.out.println("Key rotation failed: " + re);
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Binary keystore for the local user's key, so a key pair generated once can be
+ * reloaded on every start instead of being generated again. The file holds the
+ * full private key along with its precomputed CRT values, and is memory-mapped
+ * and decoded straight into an RSA instance.
+ * <p>
+ * Layout, all integers big-endian:
+ * <pre>
+ * int   magic ("PKIK")
+ * byte  format version (1)
+ * byte  number of primes k (0 when the primes are unknown)
+ * value n, e, d
+ * value r_1 ... r_k                   primes, p and q first
+ * value d mod (r_1 - 1) ... d mod (r_k - 1)
+ * value q^-1 mod p, then (r_1 * ... * r_(i-1))^-1 mod r_i for i = 3 ... k
+ * </pre>
+ * where each value is an int byte count followed by the unsigned magnitude.
+ * @author Colby Bratton
+ *
+ */
+public final class RSAKeyStore {
+	
+	// first four bytes of every keystore, "PKIK"
+	private static final int MAGIC = 0x504B494B;
+	
+	// format version written by this class
+	private static final byte VERSION = 1;
+	
+	// keystore the PKI sessions keep their key in, set with -Dpki.keystore=<file>
+	public static final String DEFAULT_PATH = System.getProperty("pki.keystore");
+	
+	private RSAKeyStore()
+	{
+	}
+	
+	/**
+	 * Writes the local user's key to a keystore. The file is written next to its
+	 * final name and moved into place, so a crash never leaves a partial keystore,
+	 * and is made readable by its owner only where the file system allows it.
+	 * @param rsa RSA instance holding the local user's key
+	 * @param keyStoreFile keystore to be written
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void save(RSA rsa, File keyStoreFile) throws IOException
+	{
+		save(rsa.getKeyContext(), keyStoreFile);
+	}
+	
+	/**
+	 * Writes a key of the local user to a keystore, as save(RSA, File) does
+	 * @param keys key of the local user
+	 * @param keyStoreFile keystore to be written
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void save(RSAKeyContext keys, File keyStoreFile) throws IOException
+	{
+		BigInteger[] primes = keys.getPrimes();
+		Path target = keyStoreFile.toPath().toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), keyStoreFile.getName(), ".tmp");
+		
+		try
+		{
+			// owner only, the file holds the private key
+			try
+			{
+				Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-------"));
+			}
+			catch (UnsupportedOperationException uoe) // not a POSIX file system
+			{
+			}
+			
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp))))
+			{
+				out.writeInt(MAGIC);
+				out.writeByte(VERSION);
+				out.writeByte(primes.length);
+				
+				writeValue(out, keys.getN());
+				writeValue(out, keys.getPubKey());
+				writeValue(out, keys.getPriKey());
+				for (BigInteger value : primes)
+				{
+					writeValue(out, value);
+				}
+				for (BigInteger value : keys.getCRTExponents())
+				{
+					writeValue(out, value);
+				}
+				for (BigInteger value : keys.getCRTCoefficients())
+				{
+					writeValue(out, value);
+				}
+			}
+			
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	/**
+	 * Loads the local user's key from a keystore. The file is memory-mapped and
+	 * every value is decoded in place, with no key math repeated.
+	 * @param keyStoreFile keystore written by save
+	 * @return RSA instance holding the stored key
+	 * @throws IOException if the file cannot be read or is not a keystore
+	 */
+	public static RSA load(File keyStoreFile) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(keyStoreFile.toPath(), StandardOpenOption.READ))
+		{
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			
+			if (buffer.remaining() < Integer.BYTES + 2 || buffer.getInt() != MAGIC)
+			{
+				throw new IOException(keyStoreFile + " is not a keystore");
+			}
+			byte version = buffer.get();
+			if (version != VERSION)
+			{
+				throw new IOException("Unsupported keystore version " + version);
+			}
+			int primeCount = buffer.get();
+			if (primeCount != 0 && (primeCount < 2 || primeCount > RSAKeyGenerator.MAX_PRIME_COUNT))
+			{
+				throw new IOException("Keystore has an invalid number of primes: " + primeCount);
+			}
+			
+			BigInteger n = readValue(buffer);
+			BigInteger pubKey = readValue(buffer);
+			BigInteger priKey = readValue(buffer);
+			
+			BigInteger[] primes = new BigInteger[primeCount];
+			BigInteger[] exponents = new BigInteger[primeCount];
+			BigInteger[] coefficients = new BigInteger[Math.max(primeCount - 1, 0)];
+			for (int i = 0; i < primes.length; i++)
+			{
+				primes[i] = readValue(buffer);
+			}
+			for (int i = 0; i < exponents.length; i++)
+			{
+				exponents[i] = readValue(buffer);
+			}
+			for (int i = 0; i < coefficients.length; i++)
+			{
+				coefficients[i] = readValue(buffer);
+			}
+			
+			if (buffer.hasRemaining())
+			{
+				throw new IOException(keyStoreFile + " has trailing bytes");
+			}
+			
+			return new RSA(n, pubKey, priKey, primes, exponents, coefficients);
+		}
+		catch (BufferUnderflowException bue) // file ends inside a value
+		{
+			throw new IOException(keyStoreFile + " is truncated", bue);
+		}
+	}
+	
+	/**
+	 * Loads the local user's key from a keystore, or takes a key pair from the
+	 * shared key pool and saves it there if the keystore does not exist yet
+	 * @param keyStoreFile keystore of the local user
+	 * @return RSA instance of the local user
+	 * @throws IOException if the keystore cannot be read or written
+	 */
+	public static RSA loadOrCreate(File keyStoreFile) throws IOException
+	{
+		if (keyStoreFile.isFile())
+		{
+			return load(keyStoreFile);
+		}
+		
+		RSA rsa = new RSA(RSAKeyPool.getDefault().take());
+		save(rsa, keyStoreFile);
+		return rsa;
+	}
+	
+	/**
+	 * Builds the local user of a PKI session, from the keystore named by
+	 * -Dpki.keystore when it is set, otherwise from the shared key pool
+	 * @return RSA instance of the local user
+	 * @throws IOException if the keystore cannot be read or written
+	 */
+	public static RSA openLocalUser() throws IOException
+	{
+		if (DEFAULT_PATH == null)
+		{
+			return new RSA(RSAKeyPool.getDefault().take());
+		}
+		return loadOrCreate(new File(DEFAULT_PATH));
+	}
+	
+	/**
+	 * @return true if openLocalUser will need the key pool, so it is worth warming early
+	 */
+	public static boolean needsKeyPool()
+	{
+		return DEFAULT_PATH == null || !new File(DEFAULT_PATH).isFile();
+	}
+	
+	/**
+	 * Writes a non-negative value as its byte count and unsigned magnitude
+	 */
+	private static void writeValue(DataOutputStream out, BigInteger value) throws IOException
+	{
+		byte[] bytes = value.toByteArray();
+		
+		// drop the sign byte toByteArray() adds when the top bit is set
+		int skip = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+		out.writeInt(bytes.length - skip);
+		out.write(bytes, skip, bytes.length - skip);
+	}
+	
+	/**
+	 * Reads a value written by writeValue, checking its length against the buffer
+	 */
+	private static BigInteger readValue(ByteBuffer buffer) throws IOException
+	{
+		int length = buffer.getInt();
+		if (length < 1 || length > buffer.remaining())
+		{
+			throw new IOException("Keystore value has an invalid length: " + length);
+		}
+		
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new BigInteger(1, bytes);
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the public keys of many remote users, loaded lazily from a directory
+ * of credential files. A peer's key is named by its credential file (alice.key
+ * is peer "alice") and may also be looked up by fingerprint. Parsed keys are
+ * kept in a bounded least recently used cache, and a cached key is re-read
+ * only when its file has changed since it was loaded.
+ * @author Colby Bratton
+ *
+ */
+public class RSAKeyring {
+	
+	// default keyring directory, set with -Dpki.keyring=<directory>, null for none
+	public static final String DEFAULT_PATH = System.getProperty("pki.keyring");
+	
+	// default number of parsed keys kept, overridable with -Dpki.keyring.size
+	public static final int DEFAULT_CAPACITY = Integer.getInteger("pki.keyring.size", 256);
+	
+	// directory holding the credential files
+	private final File directory;
+	
+	// parsed keys by peer ID, in least to most recently used order
+	private final LinkedHashMap<String, CachedKey> cache;
+	
+	// peer ID of every fingerprint seen so far, survives cache eviction
+	private final Map<String, String> peerIdsByFingerprint = new HashMap<>();
+	
+	/**
+	 * Parsed key along with the state of the file it was read from
+	 */
+	private static final class CachedKey {
+		
+		private final RSAPeerKey key;
+		private final long lastModified;
+		private final long length;
+		
+		private CachedKey(RSAPeerKey key, long lastModified, long length)
+		{
+			this.key = key;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+	
+	/**
+	 * Constructor to build a keyring over a directory with the default cache size
+	 * @param directory directory holding the remote users' credential files
+	 */
+	public RSAKeyring(File directory)
+	{
+		this(directory, DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * Constructor to build a keyring over a directory
+	 * @param directory directory holding the remote users' credential files
+	 * @param capacity maximum number of parsed keys kept in memory
+	 */
+	public RSAKeyring(File directory, int capacity)
+	{
+		if (capacity < 1)
+		{
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		
+		this.directory = directory;
+		
+		// access ordered, so the eldest entry is the least recently used
+		this.cache = new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest)
+			{
+				return size() > capacity;
+			}
+		};
+	}
+	
+	/**
+	 * Returns the key of a remote user, reading its credential file only if it
+	 * is not cached or has changed since it was read
+	 * @param peerId name of the remote user, the credential file name without .key
+	 * @return key of the remote user
+	 * @throws IOException if there is no such credential file or it cannot be read
+	 */
+	public synchronized RSAPeerKey getPeer(String peerId) throws IOException
+	{
+		if (peerId.isEmpty() || peerId.contains("/") || peerId.contains(File.separator))
+		{
+			throw new IOException("Invalid peer ID: " + peerId);
+		}
+		
+		File credFile = new File(directory, peerId + ".key");
+		long lastModified = credFile.lastModified();
+		long length = credFile.length();
+		
+		CachedKey cached = cache.get(peerId);
+		if (cached != null && cached.lastModified == lastModified && cached.length == length)
+		{
+			return cached.key;
+		}
+		
+		// missing, deleted, or changed on disk
+		cache.remove(peerId);
+		if (!credFile.isFile())
+		{
+			throw new FileNotFoundException("No credential file for peer " + peerId);
+		}
+		
+		RSAPeerKey key = RSAPeerKey.fromCredentialsFile(credFile);
+		cache.put(peerId, new CachedKey(key, lastModified, length));
+		peerIdsByFingerprint.put(key.getFingerprint(), peerId);
+		
+		return key;
+	}
+	
+	/**
+	 * Returns the key of a remote user by fingerprint. Fingerprints seen before
+	 * are found directly, otherwise credential files are read until one matches.
+	 * @param fingerprint SHA-256 fingerprint of the remote user's key, as lowercase hex
+	 * @return key with the fingerprint, or null if no credential file holds it
+	 * @throws IOException if the directory cannot be listed
+	 */
+	public synchronized RSAPeerKey getPeerByFingerprint(String fingerprint) throws IOException
+	{
+		String peerId = peerIdsByFingerprint.get(fingerprint);
+		if (peerId != null)
+		{
+			RSAPeerKey key = getPeerIfPresent(peerId);
+			if (key != null && key.getFingerprint().equals(fingerprint))
+			{
+				return key;
+			}
+			
+			// the file has since changed or gone away
+			peerIdsByFingerprint.remove(fingerprint);
+		}
+		
+		File[] credFiles = directory.listFiles((dir, name) -> name.endsWith(".key"));
+		if (credFiles == null)
+		{
+			throw new IOException("Cannot list keyring directory " + directory);
+		}
+		
+		for (File credFile : credFiles)
+		{
+			String name = credFile.getName();
+			RSAPeerKey key = getPeerIfPresent(name.substring(0, name.length() - ".key".length()));
+			if (key != null && key.getFingerprint().equals(fingerprint))
+			{
+				return key;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Like getPeer, but skips credential files that are missing or unreadable
+	 * @param peerId name of the remote user
+	 * @return key of the remote user, or null if it cannot be read
+	 */
+	private RSAPeerKey getPeerIfPresent(String peerId)
+	{
+		try
+		{
+			return getPeer(peerId);
+		}
+		catch (IOException ioe) // not a usable credential file
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * Drops every parsed key, so each is read again on its next use
+	 */
+	public synchronized void clear()
+	{
+		cache.clear();
+		peerIdsByFingerprint.clear();
+	}
+	
+	/**
+	 * @return number of parsed keys currently cached
+	 */
+	public synchronized int size()
+	{
+		return cache.size();
+	}
+	
+	/**
+	 * @return directory holding the credential files
+	 */
+	public File getDirectory()
+	{
+		return directory;
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+/**
+ * Encryption modes offered by RSA, matching the (C)onfidentiality,
+ * (A)uthentication, and (B)oth selections of the messaging menus.
+ * @author Colby Bratton
+ *
+ */
+public enum RSAMode {
+	
+	// encrypted with the remote user's public key
+	CONFIDENTIALITY,
+	
+	// encrypted with the local user's private key
+	AUTHENTICATION,
+	
+	// encrypted with both keys, smaller n value first
+	BOTH;
+	
+	/**
+	 * Converts a menu selection letter into a mode. Any selection other
+	 * than C or A is treated as Both, as the messaging menus always have.
+	 * @param selection letter chosen by the user
+	 * @return mode matching the selection
+	 */
+	public static RSAMode fromSelection(String selection)
+	{
+		if (selection.contentEquals("c") || selection.contentEquals("C"))
+		{
+			return CONFIDENTIALITY;
+		}
+		else if (selection.contentEquals("a") || selection.contentEquals("A"))
+		{
+			return AUTHENTICATION;
+		}
+		else
+		{
+			return BOTH;
+		}
+	}
+}
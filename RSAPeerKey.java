@@ -0,0 +1,185 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable public key (n, e) of a remote RSA user. Parsed once from a
+ * credential file, identified by a peer ID and a fingerprint, and safe to
+ * share between any number of sessions and threads.
+ * @author Colby Bratton
+ *
+ */
+public final class RSAPeerKey {
+	
+	// latency of public key operations under every remote key
+	private static final LatencyHistogram PUBLIC_KEY_LATENCY = PKIMetrics.getDefault().histogram("rsa.publicKey");
+	
+	// name the remote user is known by, the credential file name without .key
+	private final String peerId;
+	
+	// n and public key of the remote user
+	private final BigInteger n; // n_B
+	private final BigInteger pubKey; // e_B
+	
+	// SHA-256 of n and e, as lowercase hex
+	private final String fingerprint;
+	
+	/**
+	 * Constructor to build a peer key from its public values
+	 * @param peerId name the remote user is known by
+	 * @param n n value of the remote user
+	 * @param pubKey public key of the remote user
+	 */
+	public RSAPeerKey(String peerId, BigInteger n, BigInteger pubKey)
+	{
+		this.peerId = peerId;
+		this.n = n;
+		this.pubKey = pubKey;
+		this.fingerprint = fingerprint(n, pubKey);
+	}
+	
+	/**
+	 * Reads a peer key from a credential file. The file holds p, q, any further
+	 * primes, and the public key, one decimal value per line; n is generated from
+	 * the primes instead of being read, in case the file came from an outside user.
+	 * A public-only file holds just n and the public key.
+	 * @param credFile credential file of the remote user
+	 * @return peer key named after the file
+	 * @throws IOException if the file cannot be read or is not a credential file
+	 */
+	public static RSAPeerKey fromCredentialsFile(File credFile) throws IOException
+	{
+		// input every value of the file, the last one is the public key
+		List<BigInteger> values = new ArrayList<>();
+		try (BufferedReader userCredsInput = new BufferedReader(new FileReader(credFile)))
+		{
+			String line;
+			while ((line = userCredsInput.readLine()) != null)
+			{
+				if (!line.isBlank())
+				{
+					values.add(new BigInteger(line.trim()));
+				}
+			}
+		}
+		catch (NumberFormatException nfe) // a line is not a decimal value
+		{
+			throw new IOException(credFile + " is not a credential file", nfe);
+		}
+		
+		if (values.size() < 2)
+		{
+			throw new IOException(credFile + " must hold n or its primes, and a public key");
+		}
+		
+		// generate remote users n value from all of its primes, a
+		// public-only file has n itself as its single value
+		BigInteger n = BigInteger.ONE;
+		for (BigInteger prime : values.subList(0, values.size() - 1))
+		{
+			n = n.multiply(prime);
+		}
+		
+		return new RSAPeerKey(peerIdOf(credFile), n, values.get(values.size() - 1));
+	}
+	
+	/**
+	 * @param credFile credential file of a remote user
+	 * @return peer ID the file is loaded under, its name without .key
+	 */
+	public static String peerIdOf(File credFile)
+	{
+		String peerId = credFile.getName();
+		if (peerId.endsWith(".key"))
+		{
+			peerId = peerId.substring(0, peerId.length() - ".key".length());
+		}
+		return peerId;
+	}
+	
+	/**
+	 * Computes the fingerprint of a public key, the SHA-256 of the length
+	 * prefixed bytes of n followed by the length prefixed bytes of e
+	 * @param n n value of the key
+	 * @param pubKey public key of the key
+	 * @return fingerprint as lowercase hex
+	 */
+	public static String fingerprint(BigInteger n, BigInteger pubKey)
+	{
+		try
+		{
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			for (BigInteger value : new BigInteger[] {n, pubKey})
+			{
+				byte[] bytes = value.toByteArray();
+				sha256.update(new byte[] {(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16),
+						(byte) (bytes.length >>> 8), (byte) bytes.length});
+				sha256.update(bytes);
+			}
+			
+			StringBuilder hex = new StringBuilder();
+			for (byte b : sha256.digest())
+			{
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException nsae) // every JVM is required to provide SHA-256
+		{
+			throw new IllegalStateException(nsae);
+		}
+	}
+	
+	/**
+	 * Raises a value to the remote user's public key modulo the remote user's n value
+	 * @param value value to be raised to the public key
+	 * @return value^e_B mod n_B
+	 */
+	BigInteger publicKeyOperation(BigInteger value)
+	{
+		long start = System.nanoTime();
+		BigInteger result = value.modPow(pubKey, n);
+		PUBLIC_KEY_LATENCY.recordSince(start);
+		return result;
+	}
+	
+	/**
+	 * @return name the remote user is known by
+	 */
+	public String getPeerId()
+	{
+		return peerId;
+	}
+	
+	/**
+	 * @return n value of the remote user
+	 */
+	public BigInteger getN()
+	{
+		return n;
+	}
+	
+	/**
+	 * @return public key of the remote user
+	 */
+	public BigInteger getPubKey()
+	{
+		return pubKey;
+	}
+	
+	/**
+	 * @return SHA-256 fingerprint of n and the public key, as lowercase hex
+	 */
+	public String getFingerprint()
+	{
+		return fingerprint;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters of a single PKI session or connection. Every count is
+ * also added to the process wide totals of the PKIMetrics it was opened by.
+ * @author Colby Bratton
+ *
+ */
+public final class SessionMetrics {
+	
+	// metrics the session was opened by
+	private final PKIMetrics metrics;
+	
+	// number the session is listed under
+	private final long id;
+	
+	// remote address or other name of the remote user
+	private final String label;
+	
+	// System.nanoTime() when the session opened
+	private final long openedNanos = System.nanoTime();
+	
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder messagesIn = new LongAdder();
+	private final LongAdder messagesOut = new LongAdder();
+	
+	// set once the session has been closed
+	private final AtomicBoolean closed = new AtomicBoolean();
+	
+	/**
+	 * Constructor used by PKIMetrics.openSession
+	 */
+	SessionMetrics(PKIMetrics metrics, long id, String label)
+	{
+		this.metrics = metrics;
+		this.id = id;
+		this.label = label;
+	}
+	
+	/**
+	 * Counts a frame written to the remote user
+	 * @param bytes frame size, header included
+	 */
+	public void frameSent(int bytes)
+	{
+		bytesOut.add(bytes);
+		metrics.bytesOut.add(bytes);
+	}
+	
+	/**
+	 * Counts a frame received from the remote user
+	 * @param bytes frame size, header included
+	 */
+	public void frameReceived(int bytes)
+	{
+		bytesIn.add(bytes);
+		metrics.bytesIn.add(bytes);
+	}
+	
+	/**
+	 * Counts a message sent to the remote user
+	 */
+	public void messageSent()
+	{
+		messagesOut.increment();
+		metrics.messagesOut.increment();
+	}
+	
+	/**
+	 * Counts a message received from the remote user
+	 */
+	public void messageReceived()
+	{
+		messagesIn.increment();
+		metrics.messagesIn.increment();
+	}
+	
+	/**
+	 * Marks the session closed and drops it from the active sessions.
+	 * Closing a session more than once has no further effect.
+	 */
+	public void close()
+	{
+		if (closed.compareAndSet(false, true))
+		{
+			metrics.sessionClosed(this);
+		}
+	}
+	
+	public long getId()
+	{
+		return id;
+	}
+	
+	public String getLabel()
+	{
+		return label;
+	}
+	
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+	
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+	
+	public long getMessagesIn()
+	{
+		return messagesIn.sum();
+	}
+	
+	public long getMessagesOut()
+	{
+		return messagesOut.sum();
+	}
+	
+	/**
+	 * @return single line summary of the session's traffic
+	 */
+	@Override
+	public String toString()
+	{
+		long seconds = (System.nanoTime() - openedNanos) / 1_000_000_000L;
+		return "session " + id + " (" + label + "), " + seconds + "s: "
+				+ getMessagesIn() + " messages / " + getBytesIn() + " bytes in, "
+				+ getMessagesOut() + " messages / " + getBytesOut() + " bytes out";
+	}
+}
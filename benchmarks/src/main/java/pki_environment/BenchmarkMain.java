@@ -0,0 +1,41 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Entry point of benchmarks.jar. Accepts the usual JMH command line, but
+ * writes the results as JSON to jmh-result.json unless -rf or -rff say
+ * otherwise, so every run leaves a machine-readable record to compare
+ * against earlier runs.
+ * @author Colby Bratton
+ *
+ */
+public class BenchmarkMain {
+	
+	// result file written when the command line names none
+	public static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+	
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		
+		// JSON results by default, command line settings win
+		if (!commandLine.getResultFormat().hasValue())
+		{
+			options.resultFormat(ResultFormatType.JSON);
+		}
+		if (!commandLine.getResult().hasValue())
+		{
+			options.result(DEFAULT_RESULT_FILE);
+		}
+		
+		new Runner(options.build()).run();
+	}
+}
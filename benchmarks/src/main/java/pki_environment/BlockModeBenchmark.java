@@ -0,0 +1,94 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the block mode array API, which allocates the output of every call,
+ * with the ByteBuffer API writing into buffers reused across calls. Run with
+ * -prof gc to see the allocation per operation of each.
+ * @author Colby Bratton
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockModeBenchmark {
+	
+	@Param({"CONFIDENTIALITY", "AUTHENTICATION", "BOTH"})
+	public RSAMode mode;
+	
+	// message length in bytes, spread over as many blocks as needed
+	@Param({"64", "4096"})
+	public int messageLength;
+	
+	private RSA sender; // local user encrypting
+	private RSA recipient; // remote user decrypting
+	private RSAPeerKey senderKey;
+	private RSAPeerKey recipientKey;
+	
+	private byte[] message;
+	private byte[] encrypted;
+	
+	// buffers reused by every ByteBuffer call
+	private ByteBuffer messageBuffer;
+	private ByteBuffer encryptedBuffer;
+	private ByteBuffer cipherOut;
+	private ByteBuffer plainOut;
+	
+	@Setup
+	public void setUp()
+	{
+		RSAKeyGenerator generator = new RSAKeyGenerator(RSAKeyGenerator.DEFAULT_PUBLIC_EXPONENT, 2048, 2);
+		sender = new RSA(generator.generateKeyPair());
+		recipient = new RSA(generator.generateKeyPair());
+		senderKey = new RSAPeerKey("sender", sender.getN(), sender.getPubKey());
+		recipientKey = new RSAPeerKey("recipient", recipient.getN(), recipient.getPubKey());
+		
+		message = SingleMessageBenchmark.randomMessage(messageLength);
+		encrypted = sender.encryptBlocks(message, mode, recipientKey);
+		
+		messageBuffer = ByteBuffer.wrap(message);
+		encryptedBuffer = ByteBuffer.wrap(encrypted);
+		cipherOut = ByteBuffer.allocate(encrypted.length);
+		plainOut = ByteBuffer.allocate(message.length);
+	}
+	
+	@Benchmark
+	public byte[] encryptArray()
+	{
+		return sender.encryptBlocks(message, mode, recipientKey);
+	}
+	
+	@Benchmark
+	public ByteBuffer encryptBuffer()
+	{
+		messageBuffer.clear();
+		cipherOut.clear();
+		sender.encryptBlocks(messageBuffer, cipherOut, mode, recipientKey);
+		return cipherOut;
+	}
+	
+	@Benchmark
+	public byte[] decryptArray()
+	{
+		return recipient.decryptBlocks(encrypted, mode, senderKey);
+	}
+	
+	@Benchmark
+	public ByteBuffer decryptBuffer()
+	{
+		encryptedBuffer.clear();
+		plainOut.clear();
+		recipient.decryptBlocks(encryptedBuffer, plainOut, mode, senderKey);
+		return plainOut;
+	}
+}
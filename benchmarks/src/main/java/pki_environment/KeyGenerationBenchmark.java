@@ -0,0 +1,49 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures key generation, from the prime search through building the RSA
+ * instance and its CRT values, at several modulus sizes. Each invocation
+ * generates one fresh key pair, so the run is measured in single shots.
+ * @author Colby Bratton
+ *
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeyGenerationBenchmark {
+	
+	// bit length of n, split evenly between the primes
+	@Param({"1024", "2048", "4096"})
+	public int modulusBitLength;
+	
+	// number of primes in n
+	@Param({"2"})
+	public int primeCount;
+	
+	private RSAKeyGenerator generator;
+	
+	@Setup
+	public void setUp()
+	{
+		generator = new RSAKeyGenerator(RSAKeyGenerator.DEFAULT_PUBLIC_EXPONENT, modulusBitLength, primeCount);
+	}
+	
+	/**
+	 * @return RSA instance built from a freshly generated key pair
+	 */
+	@Benchmark
+	public RSA generateKey()
+	{
+		return new RSA(generator.generateKeyPair());
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures a full message round trip over a loopback socket: the client
+ * encrypts and frames a message, a PKIServerConnection decrypts it and echoes
+ * it back with the same encryption type, and the client decrypts the echo.
+ * The public keys are exchanged once during setup, so only messaging is measured.
+ * @author Colby Bratton
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+	
+	// encryption type selected by the client for every message
+	@Param({"C", "A", "B", "H"})
+	public String selection;
+	
+	// message length in bytes, longer messages are split into blocks
+	@Param({"64", "1024"})
+	public int messageLength;
+	
+	// channel: blocking socket channels with pooled direct buffers, stream: socket streams
+	@Param({"channel", "stream"})
+	public String transport;
+	
+	private Closeable server;
+	private Socket socket;
+	private Thread serverThread;
+	private ExecutorService channelTasks; // echoes the connection's only channel
+	
+	private MessageSender sender; // client side of the session
+	private MessageReceiver receiver;
+	
+	private byte[] message;
+	
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, GeneralSecurityException
+	{
+		RSAKeyGenerator generator = new RSAKeyGenerator(
+				RSAKeyGenerator.DEFAULT_PUBLIC_EXPONENT, KnownPeers.MIN_MODULUS_BITLENGTH, 2);
+		RSA serverRSA = new RSA(generator.generateKeyPair());
+		RSA clientRSA = new RSA(generator.generateKeyPair());
+		
+		// loopback server on an ephemeral port, serving a single connection.
+		// PKIServerConnection uses the channel path for sockets accepted from a channel.
+		boolean channel = transport.equals("channel");
+		ServerSocketChannel serverChannel = channel ? ServerSocketChannel.open() : null;
+		ServerSocket serverSocket = channel ? serverChannel.socket() : new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+		server = serverSocket;
+		channelTasks = Executors.newSingleThreadExecutor();
+		serverThread = new Thread(() ->
+		{
+			try
+			{
+				Socket accepted = channel ? serverChannel.accept().socket() : serverSocket.accept();
+				new PKIServerConnection(accepted, serverRSA, KnownPeers.forServer(), channelTasks).run();
+			}
+			catch (IOException ioe) // server socket closed before a client connected
+			{
+				System.out.println(ioe);
+			}
+		}, "pki-benchmark-server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		HybridSession clientHybrid = new HybridSession(clientRSA);
+		if (channel)
+		{
+			SocketChannel clientChannel = SocketChannel.open(serverSocket.getLocalSocketAddress());
+			socket = clientChannel.socket();
+			sender = new MessageSender(new FrameWriter(clientChannel), clientRSA, clientHybrid);
+			receiver = new MessageReceiver(new FrameReader(clientChannel),
+					clientRSA, clientHybrid, new KnownPeers(null), "benchmark server");
+		}
+		else
+		{
+			socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+			sender = new MessageSender(new FrameWriter(socket.getOutputStream()), clientRSA, clientHybrid);
+			receiver = new MessageReceiver(new FrameReader(new BufferedInputStream(socket.getInputStream())),
+					clientRSA, clientHybrid, new KnownPeers(null), "benchmark server");
+		}
+		socket.setTcpNoDelay(true);
+		
+		// exchange public keys once, outside the measurement
+		sender.sendHello();
+		receiver.awaitPeer();
+		
+		message = SingleMessageBenchmark.randomMessage(messageLength);
+		
+		// the echo must match, or the numbers below would measure a broken session
+		if (!Arrays.equals(message, roundTrip()))
+		{
+			throw new IllegalStateException("Echoed message does not match for mode " + selection);
+		}
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException
+	{
+		// closing the client ends the server connection with EOF
+		socket.close();
+		server.close();
+		serverThread.join(TimeUnit.SECONDS.toMillis(5));
+		channelTasks.shutdown();
+	}
+	
+	/**
+	 * @return message echoed back by the server, decrypted
+	 */
+	@Benchmark
+	public byte[] roundTrip() throws IOException, GeneralSecurityException
+	{
+		sender.send(selection, message);
+		return receiver.receive();
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Name: Colby Bratton
+ */
+package pki_environment;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the single value RSA operations, encryptConfidentiality,
+ * encryptAuthentication, encryptBoth and their decrypt counterparts, along
+ * with hash-then-sign signing and verifying, across message sizes. Two local users are linked by their public keys, the sender
+ * encrypts and the recipient decrypts ciphertexts made during setup.
+ * @author Colby Bratton
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SingleMessageBenchmark {
+	
+	// bit length of both users' n
+	@Param({"2048", "4096"})
+	public int modulusBitLength;
+	
+	// message length in bytes, must stay below n
+	@Param({"16", "128", "240"})
+	public int messageLength;
+	
+	private RSA sender; // local user encrypting
+	private RSA recipient; // remote user decrypting
+	
+	private byte[] message;
+	private byte[] confidentialityCipher;
+	private byte[] authenticationCipher;
+	private byte[] bothCipher;
+	private byte[] signature;
+	
+	private RSAPeerKey senderKey; // sender's public key, as held by the recipient
+	
+	@Setup
+	public void setUp()
+	{
+		RSAKeyGenerator generator = new RSAKeyGenerator(
+				RSAKeyGenerator.DEFAULT_PUBLIC_EXPONENT, modulusBitLength, 2);
+		sender = new RSA(generator.generateKeyPair());
+		recipient = new RSA(generator.generateKeyPair());
+		
+		// exchange public keys, as the HELLO frames would
+		sender.setRemoteKey(new RSAPeerKey("recipient", recipient.getN(), recipient.getPubKey()));
+		senderKey = new RSAPeerKey("sender", sender.getN(), sender.getPubKey());
+		recipient.setRemoteKey(senderKey);
+		
+		message = randomMessage(messageLength);
+		
+		confidentialityCipher = sender.encryptConfidentiality(message);
+		authenticationCipher = sender.encryptAuthentication(message);
+		bothCipher = sender.encryptBoth(message);
+		signature = sender.sign(message);
+	}
+	
+	@Benchmark
+	public byte[] encryptConfidentiality()
+	{
+		return sender.encryptConfidentiality(message);
+	}
+	
+	@Benchmark
+	public byte[] decryptConfidentiality()
+	{
+		return recipient.decryptConfidentiality(confidentialityCipher);
+	}
+	
+	@Benchmark
+	public byte[] encryptAuthentication()
+	{
+		return sender.encryptAuthentication(message);
+	}
+	
+	@Benchmark
+	public byte[] decryptAuthentication()
+	{
+		return recipient.decryptAuthentication(authenticationCipher);
+	}
+	
+	@Benchmark
+	public byte[] encryptBoth()
+	{
+		return sender.encryptBoth(message);
+	}
+	
+	@Benchmark
+	public byte[] decryptBoth()
+	{
+		return recipient.decryptBoth(bothCipher);
+	}
+	
+	@Benchmark
+	public byte[] sign()
+	{
+		return sender.sign(message);
+	}
+	
+	@Benchmark
+	public boolean verify()
+	{
+		return recipient.verify(message, signature, senderKey);
+	}
+	
+	/**
+	 * Builds a repeatable message whose first byte is non-zero and positive,
+	 * so its value keeps its full length and stays below n
+	 * @param length message length in bytes
+	 * @return message of the given length
+	 */
+	static byte[] randomMessage(int length)
+	{
+		byte[] message = new byte[length];
+		new Random(length).nextBytes(message);
+		message[0] = (byte) (1 + (message[0] & 0x3F));
+		return message;
+	}
+}